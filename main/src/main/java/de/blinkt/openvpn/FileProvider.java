@@ -24,6 +24,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import de.blinkt.openvpn.core.DiagnosticBundle;
 import de.blinkt.openvpn.core.VpnStatus;
 
 /**
@@ -38,6 +39,22 @@ public class FileProvider extends ContentProvider implements PipeDataWriter<Inpu
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        String name = getPath(uri);
+        if (DiagnosticBundle.isShareName(name)) {
+            if (projection == null)
+                projection = new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+            // 压缩包边生成边读取, 大小未知
+            MatrixCursor c = new MatrixCursor(projection);
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; ++i) {
+                if (projection[i].equals(OpenableColumns.DISPLAY_NAME))
+                    row[i] = name;
+            }
+            c.addRow(row);
+            return c;
+        }
+
         try {
             File dumpfile = getFileFromURI(uri);
             MatrixCursor c = new MatrixCursor(projection);
@@ -81,12 +98,24 @@ public class FileProvider extends ContentProvider implements PipeDataWriter<Inpu
 
     @Override
     public String getType(Uri uri) {
+        if (DiagnosticBundle.isShareName(getPath(uri)))
+            return DiagnosticBundle.MIME_TYPE;
         // For this sample, assume all files are .apks.
         return "application/octet-stream";
     }
 
     @Override
     public AssetFileDescriptor openAssetFile(Uri uri, String mode) throws FileNotFoundException {
+        if (DiagnosticBundle.isShareName(getPath(uri))) {
+            try {
+                return new AssetFileDescriptor(DiagnosticBundle.openPipe(getContext()), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+
+            } catch (IOException ex) {
+                throw new FileNotFoundException("Unable to open diagnostics " + uri);
+            }
+        }
+
         File dumpfile = getFileFromURI(uri);
 
         try {
@@ -100,11 +129,18 @@ public class FileProvider extends ContentProvider implements PipeDataWriter<Inpu
         }
     }
 
-    private File getFileFromURI(Uri uri) throws FileNotFoundException {
-        // Try to open an asset with the given name.
+    private static String getPath(Uri uri) {
         String path = uri.getPath();
+        if (path == null)
+            return "";
         if (path.startsWith("/"))
             path = path.replaceFirst("/", "");
+        return path;
+    }
+
+    private File getFileFromURI(Uri uri) throws FileNotFoundException {
+        // Try to open an asset with the given name.
+        String path = getPath(uri);
 
         // I think this already random enough, no need for magic secure cookies
         // 1f9563a4-a1f5-2165-255f2219-111823ef.dmp
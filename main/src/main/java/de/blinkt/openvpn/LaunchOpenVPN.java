@@ -99,6 +99,7 @@ public class LaunchOpenVPN extends AppCompatActivity {
     private volatile String mTransientAuthPW;
     private volatile String mTransientProtectPW;
     private volatile boolean mUserCancled = false;
+    private long mLaunchTime;
 
     private ServiceConnection mConnection = new ServiceConnection() {
         @Override
@@ -146,6 +147,7 @@ public class LaunchOpenVPN extends AppCompatActivity {
         if (intent == null || !Intent.ACTION_MAIN.equals(intent.getAction())) {
             return;
         }
+        mLaunchTime = System.nanoTime();
 
         synchronized (VpnStatus.STATUS_LOCK) {
             VpnStatus.LAST_VPN_TUNNEL.clearDefaults();
@@ -422,7 +424,7 @@ public class LaunchOpenVPN extends AppCompatActivity {
                 showLogActivity();
 
             ProfileManager.getInstance(this).updateLRU(this, mProfile);
-            OpenVPNLaunchHelper.startOpenVpn(getBaseContext(), mProfile);
+            OpenVPNLaunchHelper.startOpenVpn(getBaseContext(), mProfile, mLaunchTime);
             finish();
         }
     }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 按命令(needok 'ROUTE', password 'Auth', pk-sig, hold ...)统计管理命令从写出到收到应答的延迟, 单位微秒
+ */
+public class CommandLatencyStats {
+
+    // gHistograms 使用需持有STATS_LOCK锁
+    private static final Object STATS_LOCK = new Object();
+    private static final Map<String, LatencyHistogram> gHistograms = new LinkedHashMap<>();
+
+    // 管理接口socket从bind完成到OpenVPN连接上的时间, 不是命令, 单独统计
+    private static final LatencyHistogram gBindToAccept = new LatencyHistogram();
+
+    /**
+     * 记录一个已收到应答的命令
+     */
+    public static void record(@NonNull ManagementCommandWriter.Command command) {
+        if (command.getWriteTime() == 0 || command.getReplyTime() == 0)
+            return;
+
+        long micros = (command.getReplyTime() - command.getWriteTime()) / 1000;
+        getHistogram(getVerb(command.getText())).record(micros);
+    }
+
+    @NonNull
+    public static LatencyHistogram getHistogram(@NonNull String verb) {
+        synchronized (STATS_LOCK) {
+            LatencyHistogram histogram = gHistograms.get(verb);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                gHistograms.put(verb, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * @return 管理接口socket从bind完成到OpenVPN连接上的时间, 单位微秒
+     */
+    @NonNull
+    public static LatencyHistogram getBindToAccept() {
+        return gBindToAccept;
+    }
+
+    public static void reset() {
+        synchronized (STATS_LOCK) {
+            gHistograms.clear();
+        }
+        gBindToAccept.reset();
+    }
+
+    /**
+     * 命令的第一个单词, 如果后面跟着引号括起的参数, 一起作为统计的键
+     */
+    @NonNull
+    static String getVerb(@NonNull String cmd) {
+        int end = 0;
+        while (end < cmd.length() && !Character.isWhitespace(cmd.charAt(end)))
+            ++end;
+
+        if (end + 1 < cmd.length() && cmd.charAt(end) == ' ' && cmd.charAt(end + 1) == '\'') {
+            int quote = cmd.indexOf('\'', end + 2);
+            if (quote != -1)
+                return cmd.substring(0, quote + 1);
+        }
+        return cmd.substring(0, end);
+    }
+
+    /**
+     * @return 每个命令一行: 次数, 平均, p50, p90, p99, 最大值(毫秒); 之后单独一行bind到连接的时间
+     */
+    @NonNull
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "%-24s %6s %9s %9s %9s %9s %9s\n",
+            "command", "count", "mean", "p50", "p90", "p99", "max"));
+
+        synchronized (STATS_LOCK) {
+            for (Map.Entry<String, LatencyHistogram> entry : gHistograms.entrySet())
+                appendRow(builder, entry.getKey(), entry.getValue());
+        }
+
+        builder.append('\n');
+        appendRow(builder, "bind-to-accept", gBindToAccept);
+        return builder.toString();
+    }
+
+    private static void appendRow(@NonNull StringBuilder builder, @NonNull String name, @NonNull LatencyHistogram histogram) {
+        builder.append(String.format(Locale.US, "%-24s %6d %9.2f %9.2f %9.2f %9.2f %9.2f\n",
+            name, histogram.getCount(), histogram.getMean() / 1000.0,
+            histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+            histogram.getValueAtPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 记录每次连接各阶段(启动服务, 启动进程, 管理接口连接, HOLD, NEED-OK ... CONNECTED)的时间, 生成瀑布图数据
+ * <p>
+ * 使用System.nanoTime(), Android上是系统范围的CLOCK_MONOTONIC, 界面进程传来的启动时间可以直接比较;
+ * 最近MAX_CONNECTS次连接保存为JSON, 在后台线程中写入文件
+ */
+public class ConnectPhaseTracker {
+
+    private static final String TAG = "ConnectPhaseTracker";
+
+    public static final String EXTRA_LAUNCH_TIME = "de.blinkt.openvpn.LAUNCH_TIME";
+
+    public static final String LAUNCH = "launch";
+    public static final String SERVICE_START = "service_start";
+    public static final String OLD_PROCESS_STOPPED = "old_process_stopped";
+    public static final String ARGV_READY = "argv_ready";
+    public static final String MANAGEMENT_BOUND = "management_bound";
+    public static final String PROCESS_STARTED = "process_started";
+    public static final String MANAGEMENT_ACCEPTED = "management_accepted";
+    public static final String HOLD = "hold";
+    public static final String HOLD_RELEASE = "hold_release";
+    public static final String PASSWORD = "password";
+    public static final String NEED_OK_IFCONFIG = "needok_ifconfig";
+    public static final String NEED_OK_ROUTE = "needok_route";
+    public static final String NEED_OK_OPENTUN = "needok_opentun";
+    public static final String CONNECTED = "connected";
+
+    static final int MAX_CONNECTS = 10;
+    static final String FILE_NAME = "connect_phases.json";
+
+    private static class Phase {
+        final String name;
+        final long nanos;
+
+        Phase(@NonNull String name, long nanos) {
+            this.name = name;
+            this.nanos = nanos;
+        }
+    }
+
+    private static class Connect {
+        final String profile;
+        final long wallStart = System.currentTimeMillis();
+        final long startNanos;
+        final List<Phase> phases = new ArrayList<>();
+        int lastLevel = ConnectionStatus.LEVEL_UNKNOWN;
+
+        Connect(@Nullable String profile, long startNanos) {
+            this.profile = profile;
+            this.startNanos = startNanos;
+        }
+
+        boolean contains(@NonNull String name) {
+            for (Phase phase : phases) {
+                if (phase.name.equals(name))
+                    return true;
+            }
+            return false;
+        }
+
+        @NonNull
+        JSONObject toJson(@NonNull String outcome) throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("profile", profile);
+            json.put("start", wallStart);
+            json.put("outcome", outcome);
+
+            JSONArray waterfall = new JSONArray();
+            long previous = startNanos;
+            for (Phase phase : phases) {
+                JSONObject item = new JSONObject();
+                item.put("phase", phase.name);
+                item.put("at_ms", toMillis(phase.nanos - startNanos));
+                item.put("delta_ms", toMillis(phase.nanos - previous));
+                waterfall.put(item);
+                previous = phase.nanos;
+            }
+            json.put("total_ms", toMillis(previous - startNanos));
+            json.put("phases", waterfall);
+            return json;
+        }
+    }
+
+    // 以下使用需持有PHASE_LOCK锁
+    private static final Object PHASE_LOCK = new Object();
+    private static final LinkedList<JSONObject> gHistory = new LinkedList<>();
+    private static Connect gCurrent;
+    private static File gFile;
+
+    // markStatus()在VpnStatus.STATUS_LOCK内调用, 不在调用线程中写文件; 单线程按顺序写入
+    private static final ExecutorService gWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ConnectPhaseWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 加载保存的连接记录, 之后结束的连接会写回这个文件
+     */
+    public static void init(@NonNull File dir) {
+        awaitWrites();
+        synchronized (PHASE_LOCK) {
+            gFile = new File(dir, FILE_NAME);
+            gHistory.clear();
+            if (!gFile.exists())
+                return;
+
+            try (InputStream in = new FileInputStream(gFile)) {
+                byte[] data = new byte[(int) gFile.length()];
+                int len = 0, read;
+                while (len < data.length && (read = in.read(data, len, data.length - len)) != -1)
+                    len += read;
+
+                JSONArray connects = new JSONArray(new String(data, 0, len, StandardCharsets.UTF_8));
+                for (int i = 0; i < connects.length(); ++i)
+                    gHistory.add(connects.getJSONObject(i));
+
+            } catch (IOException | JSONException ex) {
+                Log.w(TAG, "Could not read " + gFile, ex);
+            }
+        }
+    }
+
+    /**
+     * 开始记录一次新连接, 未结束的上一次连接记为"abandoned"; 应在旧的OpenVPN进程停止之后调用,
+     * 以免旧进程的NOPROCESS状态结束本次记录
+     * @param launchNanos 用户发起连接的时间(System.nanoTime()), 0表示未知
+     * @param serviceStartNanos OpenVPNService收到启动请求的时间
+     */
+    public static void begin(@Nullable String profile, long launchNanos, long serviceStartNanos) {
+        long now = System.nanoTime();
+        synchronized (PHASE_LOCK) {
+            if (gCurrent != null)
+                finishLocked("abandoned");
+
+            boolean launched = launchNanos > 0 && launchNanos <= serviceStartNanos;
+            gCurrent = new Connect(profile, launched ? launchNanos : serviceStartNanos);
+            if (launched)
+                gCurrent.phases.add(new Phase(LAUNCH, launchNanos));
+            gCurrent.phases.add(new Phase(SERVICE_START, serviceStartNanos));
+            gCurrent.phases.add(new Phase(OLD_PROCESS_STOPPED, now));
+        }
+    }
+
+    /**
+     * 记录一个阶段; 同一次连接中同名阶段只记录第一次
+     */
+    public static void mark(@NonNull String phase) {
+        long now = System.nanoTime();
+        synchronized (PHASE_LOCK) {
+            if (gCurrent != null && !gCurrent.contains(phase))
+                gCurrent.phases.add(new Phase(phase, now));
+        }
+    }
+
+    /**
+     * 记录VpnStatus的状态变化; 只在level改变时记录, 连接成功或失败时结束本次记录
+     */
+    public static void markStatus(@NonNull String status, int level) {
+        long now = System.nanoTime();
+        synchronized (PHASE_LOCK) {
+            if (gCurrent == null) {
+                // 连接成功后的重连也单独统计
+                if (!"RECONNECTING".equals(status))
+                    return;
+                gCurrent = new Connect(gHistory.isEmpty() ? null : gHistory.getLast().optString("profile", null), now);
+            }
+
+            if (level == gCurrent.lastLevel)
+                return;
+            gCurrent.lastLevel = level;
+            gCurrent.phases.add(new Phase("level:" + ConnectionStatus.getLevelString(level) + "(" + status + ")", now));
+
+            switch (level) {
+                case ConnectionStatus.LEVEL_CONNECTED:
+                    gCurrent.phases.add(new Phase(CONNECTED, now));
+                    finishLocked("connected");
+                    break;
+                case ConnectionStatus.LEVEL_AUTH_FAILED:
+                    finishLocked("auth_failed");
+                    break;
+                case ConnectionStatus.LEVEL_NOTCONNECTED:
+                case ConnectionStatus.LEVEL_GENERAL_ERROR:
+                    finishLocked(status.toLowerCase(Locale.US));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return 最近MAX_CONNECTS次连接的瀑布图, JSON数组, 最早的在前
+     */
+    @NonNull
+    public static String toJson() {
+        synchronized (PHASE_LOCK) {
+            return new JSONArray(gHistory).toString();
+        }
+    }
+
+    private static void finishLocked(@NonNull String outcome) {
+        try {
+            gHistory.add(gCurrent.toJson(outcome));
+            while (gHistory.size() > MAX_CONNECTS)
+                gHistory.removeFirst();
+
+        } catch (JSONException ex) {
+            Log.w(TAG, "Could not record connect", ex);
+        }
+        gCurrent = null;
+
+        if (gFile != null) {
+            // 在锁内生成快照, 写入在gWriter中进行
+            File file = gFile;
+            byte[] data = new JSONArray(gHistory).toString().getBytes(StandardCharsets.UTF_8);
+            gWriter.execute(() -> write(file, data));
+        }
+    }
+
+    private static void write(@NonNull File file, @NonNull byte[] data) {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not write " + file, ex);
+        }
+    }
+
+    /**
+     * 等待已提交的写入完成, 之后读取的文件包含全部已结束的连接
+     */
+    static void awaitWrites() {
+        try {
+            gWriter.submit(() -> { }).get();
+        } catch (ExecutionException ex) {
+            Log.w(TAG, "Could not wait for writes", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 10000.0) / 100.0;
+    }
+
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+import android.content.RestrictionsManager;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import de.blinkt.xp.openvpn.R;
+
+/**
+ * OpenVPN控制台输出中失败特征的规则表, 编译为关键字自动机加预编译正则, 每行只扫描一遍
+ * <p>
+ * 除内置规则外, 可以从asset(console_error_rules.json)或托管配置(console_error_rules)加载规则, 每次连接前重新加载:
+ * <pre>
+ * {"rules": [{"keyword": "hello", "pattern": "TLS Error: TLS start hello failed",
+ *             "status": "GENERAL_ERROR", "resource": "tls_start_hello_failed", "severity": "ERROR"}]}
+ * </pre>
+ * keyword是每个匹配中必然出现的ASCII字面量; resource是字符串资源名, 没有合适的资源时用message给出文字;
+ * severity(可选)是匹配行记录到日志中的最低级别. 加载的规则按顺序排在内置规则之前
+ */
+public class ConsoleErrorRules {
+
+    public static final String ASSET_NAME = "console_error_rules.json";
+    public static final String RESTRICTION_KEY = "console_error_rules";
+
+    // 自动机的输出是long位掩码
+    static final int MAX_RULES = 64;
+
+    /**
+     * 把规则中的资源名转换为资源id, 不存在时返回0
+     */
+    public interface ResourceResolver {
+        int getStringId(@NonNull String name);
+    }
+
+    public static class Rule {
+        @NonNull
+        final String keyword;
+        @NonNull
+        final Pattern pattern;
+        // 传给VpnStatus.updateStatus(...)的状态
+        @NonNull
+        final String status;
+        final int resid;
+        @Nullable
+        final String message;
+        @Nullable
+        final LogLevel severity;
+
+        Rule(@NonNull String keyword, @NonNull String regex, @NonNull String status, int resid,
+             @Nullable String message, @Nullable LogLevel severity) {
+            this.keyword = keyword;
+            this.pattern = Pattern.compile(regex);
+            this.status = status;
+            this.resid = resid;
+            this.message = message;
+            this.severity = severity;
+        }
+
+        @NonNull
+        public String getStatus() {
+            return status;
+        }
+
+        public int getResid() {
+            return resid;
+        }
+
+        @NonNull
+        public String getMessage() {
+            return message == null ? "" : message;
+        }
+
+        @Nullable
+        public LogLevel getSeverity() {
+            return severity;
+        }
+
+        @Override
+        public String toString() {
+            return pattern.pattern();
+        }
+    }
+
+    private static volatile ConsoleErrorRules gCurrent = new ConsoleErrorRules(builtIn());
+
+    private final Rule[] mRules;
+    private final KeywordMatcher mKeywords;
+
+    ConsoleErrorRules(@NonNull List<Rule> rules) {
+        int count = Math.min(rules.size(), MAX_RULES);
+        mRules = rules.subList(0, count).toArray(new Rule[0]);
+
+        String[] keywords = new String[count];
+        long[] values = new long[count];
+        for (int i = 0; i < count; ++i) {
+            keywords[i] = mRules[i].keyword;
+            values[i] = 1L << i;
+        }
+        mKeywords = new KeywordMatcher(keywords, values);
+    }
+
+    @NonNull
+    public static ConsoleErrorRules getCurrent() {
+        return gCurrent;
+    }
+
+    static void setCurrent(@NonNull ConsoleErrorRules rules) {
+        gCurrent = rules;
+    }
+
+    int size() {
+        return mRules.length;
+    }
+
+    /**
+     * 原来OpenVPNThread.processLogline()中的if/else-if链, 顺序不变
+     */
+    @NonNull
+    static List<Rule> builtIn() {
+        String error = ConnectionStatus.getLevelString(ConnectionStatus.LEVEL_GENERAL_ERROR);
+        List<Rule> rules = new ArrayList<>();
+        // TLS Error: TLS start hello failed to occur within 60 seconds
+        rules.add(new Rule("hello", "TLS[\\x20|\\t]+Error:[\\x20|\\t]+TLS[\\x20|\\t]+start[\\x20|\\t]+hello[\\x20|\\t]+failed",
+            error, R.string.tls_start_hello_failed, null, null));
+        // can't ask for 'Enter Client certificate:TLSv1.2
+        rules.add(new Rule("can't", "can't[\\x20|\\t]+ask[\\x20|\\t]+for[\\x20|\\t|']+Enter[\\x20|\\t]+Client[\\x20|\\t]+certificate",
+            error, R.string.ask_for_client_certificate, null, null));
+        // TLS Error: TLS key negotiation failed to occur within 600 seconds
+        rules.add(new Rule("negotiation", "TLS[\\x20|\\t]+Error:[\\x20|\\t]+TLS[\\x20|\\t]+key[\\x20|\\t]+negotiation[\\x20|\\t]+failed",
+            error, R.string.tls_negotiation_failed, null, null));
+        // HALT,Failed to negotiation tunnel options' (status=1)
+        rules.add(new Rule("negotiation", "Failed[\\x20|\\t]+to[\\x20|\\t]+negotiation[\\x20|\\t]+tunnel",
+            error, R.string.tunnel_negotiation_failed, null, null));
+        // (服务端|客户端)证书未生效
+        rules.add(new Rule("valid", "certificate[\\x20|\\t]+is[\\x20|\\t]+not[\\x20|\\t]+yet[\\x20|\\t]+valid",
+            error, R.string.cert_no_yet_valid, null, null));
+        // VERIFY ERROR: depth=1, error=certificate has expired: C=CN, ST=ShangHai ...
+        rules.add(new Rule("expired:", "certificate[\\x20|\\t]+has[\\x20|\\t]+expired:",
+            error, R.string.server_cert_expired, null, null));
+        // VERIFY ERROR: depth=1, error=self signed certificate in certificate chain: CN=sm2_test, ...
+        rules.add(new Rule("signed", "self[\\x20|\\t]+signed[\\x20|\\t]+certificate[\\x20|\\t]+in[\\x20|\\t]+certificate[\\x20|\\t]+chain",
+            error, R.string.server_cert_unknown_ca, null, null));
+        rules.add(new Rule("revoked", "alert[\\x20|\\t]+certificate[\\x20|\\t]+revoked",
+            error, R.string.client_cert_revoked, null, null));
+        rules.add(new Rule("alert", "alert[\\x20|\\t]+certificate[\\x20|\\t]+expired",
+            error, R.string.client_cert_expired, null, null));
+        // OpenSSL: error:14094418:SSL routines:SSL3_READ_BYTES:tlsv1 alert unknown ca
+        rules.add(new Rule("alert", "alert[\\x20|\\t]+unknown[\\x20|\\t]+ca",
+            error, R.string.client_cert_unknown_ca, null, null));
+        return rules;
+    }
+
+    /**
+     * 解析JSON规则表, 可以是{"rules": [...]}或直接是数组
+     */
+    @NonNull
+    static List<Rule> parse(@NonNull String json, @NonNull ResourceResolver resolver) throws JSONException {
+        String text = json.trim();
+        JSONArray array = text.startsWith("[") ? new JSONArray(text) : new JSONObject(text).getJSONArray("rules");
+        String error = ConnectionStatus.getLevelString(ConnectionStatus.LEVEL_GENERAL_ERROR);
+
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < array.length(); ++i) {
+            JSONObject item = array.getJSONObject(i);
+            String keyword = item.getString("keyword");
+            String pattern = item.getString("pattern");
+            String status = item.optString("status", error);
+            String message = item.has("message") ? item.getString("message") : null;
+
+            int resid = 0;
+            if (item.has("resource")) {
+                resid = resolver.getStringId(item.getString("resource"));
+                if (resid == 0)
+                    throw new JSONException("Rule " + i + ": unknown string resource " + item.getString("resource"));
+            } else if (message == null) {
+                throw new JSONException("Rule " + i + ": needs resource or message");
+            } else {
+                resid = R.string.state_general_error;
+            }
+
+            LogLevel severity = null;
+            if (item.has("severity")) {
+                try {
+                    severity = LogLevel.valueOf(item.getString("severity").toUpperCase(Locale.US));
+                } catch (IllegalArgumentException e) {
+                    throw new JSONException("Rule " + i + ": unknown severity " + item.getString("severity"));
+                }
+            }
+
+            for (int c = 0; c < keyword.length(); ++c) {
+                if (keyword.charAt(c) >= 128)
+                    throw new JSONException("Rule " + i + ": keyword must be ASCII");
+            }
+            if (keyword.isEmpty())
+                throw new JSONException("Rule " + i + ": empty keyword");
+
+            try {
+                rules.add(new Rule(keyword, pattern, status, resid, message, severity));
+            } catch (PatternSyntaxException e) {
+                throw new JSONException("Rule " + i + ": " + e.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * 重新加载asset和托管配置中的规则, 下一行控制台输出开始生效; 加载失败的来源被忽略
+     */
+    public static void reload(@NonNull Context c) {
+        ResourceResolver resolver = name -> c.getResources().getIdentifier(name, "string", c.getPackageName());
+        List<Rule> rules = new ArrayList<>();
+
+        try (InputStream in = c.getAssets().open(ASSET_NAME)) {
+            rules.addAll(parse(readFully(in), resolver));
+        } catch (FileNotFoundException ignored) {
+            // 没有额外的规则
+        } catch (IOException | JSONException e) {
+            VpnStatus.logError("Invalid " + ASSET_NAME + ": " + e.getMessage());
+        }
+
+        RestrictionsManager restrictionsManager = (RestrictionsManager) c.getSystemService(Context.RESTRICTIONS_SERVICE);
+        Bundle restrictions = restrictionsManager == null ? null : restrictionsManager.getApplicationRestrictions();
+        String managed = restrictions == null ? null : restrictions.getString(RESTRICTION_KEY);
+        if (managed != null && !managed.trim().isEmpty()) {
+            try {
+                // 托管配置优先
+                rules.addAll(0, parse(managed, resolver));
+            } catch (JSONException e) {
+                VpnStatus.logError("Invalid managed configuration " + RESTRICTION_KEY + ": " + e.getMessage());
+            }
+        }
+
+        setCurrent(new ConsoleErrorRules(withBuiltIn(rules)));
+    }
+
+    /**
+     * 在外部规则之后追加内置规则; 外部规则最多MAX_RULES - builtIn().size()条, 超出的部分丢弃, 内置规则总是保留
+     */
+    @NonNull
+    static List<Rule> withBuiltIn(@NonNull List<Rule> external) {
+        List<Rule> builtIn = builtIn();
+        int maxExternal = MAX_RULES - builtIn.size();
+        if (external.size() > maxExternal)
+            VpnStatus.logWarning(String.format(Locale.US, "Only the first %d console error rules are used (%d configured)",
+                maxExternal, external.size()));
+
+        List<Rule> rules = new ArrayList<>(external.subList(0, Math.min(external.size(), maxExternal)));
+        rules.addAll(builtIn);
+        return rules;
+    }
+
+    @NonNull
+    private static String readFully(@NonNull InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 只扫描关键字, 不运行正则, 可以在任意线程中调用; 返回false时一定没有规则匹配
+     */
+    public boolean mayMatch(@NonNull CharSequence line) {
+        return mKeywords.match(line) != 0;
+    }
+
+    @NonNull
+    public RuleMatcher newMatcher() {
+        return new RuleMatcher();
+    }
+
+    /**
+     * 持有可重用的Matcher, 只能在一个线程中使用
+     */
+    public class RuleMatcher {
+        private final Matcher[] mMatchers = new Matcher[mRules.length];
+
+        @NonNull
+        public ConsoleErrorRules getRules() {
+            return ConsoleErrorRules.this;
+        }
+
+        /**
+         * @return 按顺序第一个匹配的规则, 没有时返回null
+         */
+        @Nullable
+        public Rule match(@NonNull String line) {
+            long candidates = mKeywords.match(line);
+            while (candidates != 0) {
+                int index = Long.numberOfTrailingZeros(candidates);
+                candidates &= candidates - 1;
+
+                Matcher matcher = mMatchers[index];
+                if (matcher == null)
+                    matcher = mMatchers[index] = mRules[index].pattern.matcher(line);
+                else
+                    matcher.reset(line);
+                if (matcher.find())
+                    return mRules[index];
+            }
+            return null;
+        }
+    }
+
+}
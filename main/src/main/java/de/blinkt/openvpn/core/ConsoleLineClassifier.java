@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * OpenVPN进程控制台输出的分类器: 先用关键字自动机一遍筛出候选规则, 再用预编译的正则确认
+ * <p>
+ * 失败特征由可配置的ConsoleErrorRules识别
+ * <p>
+ * 持有可重用的Matcher, 只能在一个线程中使用
+ */
+class ConsoleLineClassifier {
+
+    // 隧道信息, 最多匹配一个
+    static final int PUSH_CONTROL_MESSAGE = 0;
+    static final int CONTROL_CHANNEL = 1;
+    static final int DATA_CHANNEL = 2;
+    // 策略
+    static final int POLICY_RESOURCE = 3;
+    // SIGUSR1/SIGHUP重启, 进程不退出, 重新建立连接
+    static final int RESTART = 4;
+    static final int RULE_COUNT = 5;
+
+    private static final int TUNNEL_RULES = bit(PUSH_CONTROL_MESSAGE) | bit(CONTROL_CHANNEL) | bit(DATA_CHANNEL);
+    private static final int POLICY_RULES = bit(POLICY_RESOURCE);
+    private static final int RESTART_RULES = bit(RESTART);
+
+    // 每条规则: 匹配时必然出现的关键字, 确认用的正则
+    private static final String[][] RULES = new String[RULE_COUNT][];
+    private static final Pattern[] PATTERNS = new Pattern[RULE_COUNT];
+    private static final KeywordMatcher KEYWORDS;
+
+    static {
+        rule(PUSH_CONTROL_MESSAGE, "PUSH:", "PUSH:[\\x20|\\t]+Received[\\x20|\\t]+control[\\x20|\\t]+message");
+        rule(CONTROL_CHANNEL, "Channel:", "Control[\\x20|\\t]+Channel:");
+        rule(DATA_CHANNEL, "Channel:", "Data[\\x20|\\t]+Channel:");
+        rule(POLICY_RESOURCE, "POLICY:", "POLICY:[\\x20|\\t|\\\"]+resource[\\x20|\\t|\\\"]");
+        // SIGUSR1[soft,ping-restart] received, process restarting
+        rule(RESTART, "restarting", "SIG(?:USR1|HUP)\\[[^\\]]*\\][\\x20|\\t]+received,[\\x20|\\t]+process[\\x20|\\t]+restarting");
+
+        String[] keywords = new String[RULE_COUNT];
+        long[] values = new long[RULE_COUNT];
+        for (int i = 0; i < RULE_COUNT; ++i) {
+            keywords[i] = RULES[i][0];
+            values[i] = bit(i);
+            PATTERNS[i] = Pattern.compile(RULES[i][1]);
+        }
+        KEYWORDS = new KeywordMatcher(keywords, values);
+    }
+
+    private final Matcher[] mMatchers = new Matcher[RULE_COUNT];
+
+    private static void rule(int rule, @NonNull String keyword, @NonNull String regex) {
+        RULES[rule] = new String[]{ keyword, regex };
+    }
+
+    static int bit(int rule) {
+        return 1 << rule;
+    }
+
+    /**
+     * 只扫描关键字, 不运行正则; 返回false时classify(...)一定返回0
+     */
+    static boolean mayMatch(@NonNull CharSequence line) {
+        return KEYWORDS.match(line) != 0;
+    }
+
+    /**
+     * @return 匹配的规则的位掩码; 隧道信息中只返回第一个匹配的规则
+     */
+    int classify(@NonNull String line) {
+        int candidates = (int) KEYWORDS.match(line);
+        if (candidates == 0)
+            return 0;
+
+        return first(candidates & TUNNEL_RULES, line)
+            | first(candidates & POLICY_RULES, line)
+            | first(candidates & RESTART_RULES, line);
+    }
+
+    private int first(int candidates, @NonNull String line) {
+        while (candidates != 0) {
+            int rule = Integer.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+
+            Matcher matcher = mMatchers[rule];
+            if (matcher == null)
+                matcher = mMatchers[rule] = PATTERNS[rule].matcher(line);
+            else
+                matcher.reset(line);
+            if (matcher.find())
+                return bit(rule);
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 读取OpenVPN进程stdout的线程: 用可重用的大缓冲区按字节读取管道, 完整的行解码后交给处理线程
+ * <p>
+ * 处理线程跟不上时不阻塞OpenVPN的stdout(阻塞会卡住OpenVPN的事件循环): 积压超过DROP_THRESHOLD行后,
+ * 不含任何规则关键字的DEBUG行不解码直接丢弃, 只计数; 其他行仍然保留, 积压到CAPACITY行时才阻塞
+ */
+class ConsoleReader extends Thread {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int CAPACITY = 1024;
+    static final int DROP_THRESHOLD = 256;
+
+    // 流结束标记, 按引用比较
+    @SuppressWarnings("RedundantStringConstructorCall")
+    private static final String EOF = new String("");
+
+    private final InputStream mIn;
+    private final ArrayBlockingQueue<String> mLines = new ArrayBlockingQueue<>(CAPACITY);
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private volatile IOException mError;
+
+    // 只在读线程中使用
+    private final LineView mLine = new LineView();
+    private final MachineReadableLine mMachineReadable = new MachineReadableLine();
+    private boolean mInterrupted;
+
+    /**
+     * 处理线程退出时调用interrupt()结束读线程
+     */
+    ConsoleReader(@NonNull InputStream in) {
+        super("OpenVPNConsole");
+        setDaemon(true);
+        mIn = in;
+    }
+
+    @Override
+    public void run() {
+        LineFramer framer = new LineFramer(BUFFER_SIZE, this::onLine);
+        try {
+            while (!mInterrupted && framer.fill(mIn) != -1) {
+                framer.processLines();
+            }
+
+            // 最后一行可能没有换行符
+            if (!mInterrupted && framer.pending() > 0)
+                framer.feed(new byte[]{ '\n' }, 0, 1);
+
+        } catch (IOException ex) {
+            mError = ex;
+
+        } finally {
+            if (!mInterrupted) {
+                try {
+                    mLines.put(EOF);
+                } catch (InterruptedException e) {
+                    mInterrupted = true;
+                }
+            }
+            if (mInterrupted) {
+                // 处理线程已经退出, 不会再取走积压的行; 队列满时put(EOF)会一直阻塞
+                mLines.clear();
+                mLines.offer(EOF);
+            }
+        }
+    }
+
+    private void onLine(@NonNull byte[] buffer, int offset, int length) {
+        if (mInterrupted)
+            return;
+
+        mLine.set(buffer, offset, length);
+        if (mLines.size() >= DROP_THRESHOLD && isDroppable(mLine)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+
+        try {
+            mLines.put(new String(buffer, offset, length, StandardCharsets.UTF_8));
+        } catch (InterruptedException e) {
+            mInterrupted = true;
+        }
+    }
+
+    /**
+     * 只丢弃machine-readable格式中只带M_DEBUG标志, 而且不可能匹配隧道信息, 策略和失败规则的行
+     */
+    private boolean isDroppable(@NonNull LineView line) {
+        if (!mMachineReadable.parse(line))
+            return false;
+
+        int flags = mMachineReadable.getFlags();
+        if ((flags & OpenVPNThread.M_DEBUG) == 0
+                || (flags & (OpenVPNThread.M_FATAL | OpenVPNThread.M_NONFATAL | OpenVPNThread.M_WARN)) != 0)
+            return false;
+
+        return !ConsoleLineClassifier.mayMatch(line) && !ConsoleErrorRules.getCurrent().mayMatch(line);
+    }
+
+    /**
+     * 取下一行, 没有时等待
+     *
+     * @return 下一行; 流结束时返回null
+     * @throws IOException 读取管道出错
+     */
+    @Nullable
+    String take() throws IOException, InterruptedException {
+        String line = mLines.take();
+        if (line == EOF) {
+            // 之后的调用仍然返回null
+            mLines.offer(EOF);
+            if (mError != null)
+                throw mError;
+            return null;
+        }
+        return line;
+    }
+
+    /**
+     * @return 是否有已读入但还没取走的行
+     */
+    boolean hasPending() {
+        return !mLines.isEmpty();
+    }
+
+    /**
+     * @return 上次调用后丢弃的行数
+     */
+    int takeDropped() {
+        return mDropped.getAndSet(0);
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import de.blinkt.openvpn.utils.MailUtils;
+
+/**
+ * 诊断信息压缩包: 日志历史, 最近的连接耗时, 流量历史和脱敏后的OpenVPN配置
+ * <p>
+ * 边生成边写入输出流, 不在内存或缓存目录中保存整个压缩包
+ */
+public class DiagnosticBundle {
+
+    public static final String MIME_TYPE = "application/zip";
+
+    // 配置中包含私钥, 密码等的inline块, 内容不导出
+    private static final Set<String> SECRET_BLOCKS = new HashSet<>(Arrays.asList(
+        "key", "pkcs12", "secret", "tls-auth", "tls-crypt", "tls-crypt-v2", "auth-user-pass", "http-proxy-user-pass"));
+
+    // 共享的名字在这段时间内有效; 邮件等应用可能先查询再多次打开, 不能只用一次
+    static final long SHARE_NAME_TTL_MS = 10 * 60 * 1000;
+
+    // FileProvider可以打开的压缩包名字 -> 过期时间(System.nanoTime()), 使用需持有gShareNames锁
+    private static final Map<String, Long> gShareNames = new HashMap<>();
+
+    /**
+     * 生成一个FileProvider可以打开的名字; FileProvider是exported的, 名字中带随机部分, SHARE_NAME_TTL_MS后失效
+     */
+    @NonNull
+    public static String newShareName() {
+        String name = "diagnostics-" + UUID.randomUUID() + ".zip";
+        long now = System.nanoTime();
+        synchronized (gShareNames) {
+            removeExpiredLocked(now);
+            gShareNames.put(name, now + TimeUnit.MILLISECONDS.toNanos(SHARE_NAME_TTL_MS));
+        }
+        return name;
+    }
+
+    public static boolean isShareName(@NonNull String name) {
+        return isShareName(name, System.nanoTime());
+    }
+
+    static boolean isShareName(@NonNull String name, long now) {
+        synchronized (gShareNames) {
+            removeExpiredLocked(now);
+            return gShareNames.containsKey(name);
+        }
+    }
+
+    private static void removeExpiredLocked(long now) {
+        Iterator<Long> expiries = gShareNames.values().iterator();
+        while (expiries.hasNext()) {
+            if (now - expiries.next() >= 0)
+                expiries.remove();
+        }
+    }
+
+    /**
+     * 在后台线程中生成压缩包, 写入管道
+     *
+     * @return 管道的读端, 读到结尾时压缩包完整; 读端提前关闭时停止生成
+     */
+    @NonNull
+    public static ParcelFileDescriptor openPipe(@NonNull Context c) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Context context = c.getApplicationContext();
+
+        new Thread(() -> {
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                write(context, out);
+            } catch (IOException ex) {
+                // 读端已关闭
+                ex.printStackTrace();
+            }
+        }, "DiagnosticBundle").start();
+
+        return pipe[0];
+    }
+
+    /**
+     * 写入压缩包, 不关闭out
+     */
+    public static void write(@NonNull Context c, @NonNull OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, 16 * 1024));
+        Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+
+        putEntry(zip, writer, "info.txt");
+        writer.write(MailUtils.collectAppAndSystemInfo(c));
+
+        putEntry(zip, writer, "logs.txt");
+        writeLogs(c, writer);
+
+        // 最近的警告和错误单独列出, 不必在完整日志中查找
+        putEntry(zip, writer, "warnings.txt");
+        writeWarnings(c, writer);
+
+        File phases = new File(c.getFilesDir(), ConnectPhaseTracker.FILE_NAME);
+        if (phases.exists()) {
+            putEntry(zip, writer, phases.getName());
+            try (InputStream in = new FileInputStream(phases)) {
+                copy(in, zip);
+            }
+        }
+
+        putEntry(zip, writer, "traffic.csv");
+        writeTraffic(writer);
+
+        File config = OpenVPNLaunchHelper.getConfigFile(c);
+        if (config.exists()) {
+            putEntry(zip, writer, "config.ovpn");
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(config), StandardCharsets.UTF_8))) {
+                redactConfig(reader, writer);
+            }
+        }
+
+        writer.flush();
+        zip.finish();
+        zip.flush();
+    }
+
+    private static void putEntry(@NonNull ZipOutputStream zip, @NonNull Writer writer, @NonNull String name)
+            throws IOException {
+        writer.flush();
+        zip.putNextEntry(new ZipEntry(name));
+    }
+
+    private static void copy(@NonNull InputStream in, @NonNull OutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = in.read(buf)) > 0) {
+            out.write(buf, 0, bytesRead);
+        }
+    }
+
+    /**
+     * 写入过程中出错, 结束遍历日志
+     */
+    private static final class WriteFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WriteFailed(@NonNull IOException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * 一条日志一行: 时间 LogSource LogLevel 文本
+     */
+    private static final class LineFormat {
+        private final DateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        private final StringBuilder mLine = new StringBuilder();
+        private final Date mDate = new Date();
+
+        @NonNull
+        CharSequence format(@NonNull Context c, @NonNull LogItem li) {
+            mDate.setTime(li.getLogtime());
+            mLine.setLength(0);
+            mLine.append(mDateFormat.format(mDate)).append(' ')
+                .append(li.getLogSource()).append(' ')
+                .append(li.getLogLevel()).append(' ')
+                .append(li.getBasicString(c)).append('\n');
+            return mLine;
+        }
+    }
+
+    private static void writeWarnings(@NonNull Context c, @NonNull Writer writer) throws IOException {
+        LogQuery query = new LogQuery.Builder()
+            .setMinLevel(LogLevel.WARNING)
+            .setLimit(LogQuery.MAX_LIMIT)
+            .build();
+        LineFormat format = new LineFormat();
+        for (LogItem li : VpnStatus.queryLogs(query))
+            writer.append(format.format(c, li));
+    }
+
+    private static void writeLogs(@NonNull Context c, @NonNull Writer writer) throws IOException {
+        LineFormat format = new LineFormat();
+
+        try {
+            VpnStatus.forEachLog(li -> {
+                try {
+                    writer.append(format.format(c, li));
+                } catch (IOException ex) {
+                    throw new WriteFailed(ex);
+                }
+                return false;
+            });
+
+        } catch (WriteFailed ex) {
+            throw (IOException) ex.getCause();
+        }
+    }
+
+    private static void writeTraffic(@NonNull Writer writer) throws IOException {
+        List<TrafficHistory.TrafficDatapoint> seconds;
+        List<TrafficHistory.TrafficDatapoint> minutes;
+        List<TrafficHistory.TrafficDatapoint> hours;
+        synchronized (VpnStatus.TRAFFIC_LOCK) {
+            seconds = VpnStatus.TRAFFIC_HISTORY.getSeconds();
+            minutes = VpnStatus.TRAFFIC_HISTORY.getMinutes();
+            hours = VpnStatus.TRAFFIC_HISTORY.getHours();
+        }
+
+        writer.write("period,timestamp,in,out\n");
+        writeTraffic(writer, "second", seconds);
+        writeTraffic(writer, "minute", minutes);
+        writeTraffic(writer, "hour", hours);
+    }
+
+    private static void writeTraffic(@NonNull Writer writer, @NonNull String period,
+                                     @NonNull List<TrafficHistory.TrafficDatapoint> points) throws IOException {
+        for (TrafficHistory.TrafficDatapoint point : points) {
+            writer.write(period + "," + point.timestamp + "," + point.in + "," + point.out + "\n");
+        }
+    }
+
+    /**
+     * 逐行复制配置, SECRET_BLOCKS中inline块的内容替换为一行说明
+     */
+    static void redactConfig(@NonNull BufferedReader reader, @NonNull Writer writer) throws IOException {
+        String secretEnd = null;
+        int redacted = 0;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimmed = line.trim();
+
+            if (secretEnd != null) {
+                if (!trimmed.equals(secretEnd)) {
+                    ++redacted;
+                    continue;
+                }
+                writer.write("[" + redacted + " lines redacted]\n");
+                secretEnd = null;
+
+            } else if (trimmed.startsWith("<") && trimmed.endsWith(">") && !trimmed.startsWith("</")) {
+                String tag = trimmed.substring(1, trimmed.length() - 1);
+                if (SECRET_BLOCKS.contains(tag)) {
+                    secretEnd = "</" + tag + ">";
+                    redacted = 0;
+                }
+            }
+
+            writer.write(line);
+            writer.write('\n');
+        }
+
+        // 块没有结束
+        if (secretEnd != null)
+            writer.write("[" + redacted + " lines redacted]\n");
+    }
+
+}
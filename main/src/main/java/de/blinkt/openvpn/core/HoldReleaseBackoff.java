@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * hold release 的限速策略: 令牌桶允许短时间内连续释放几次, 令牌用完后按指数退避延迟释放;
+ * 令牌桶重新装满(一段时间没有释放)后, 退避重置
+ */
+public class HoldReleaseBackoff {
+
+    public static final int DEFAULT_BURST = 2;
+    public static final long DEFAULT_REFILL_MILLIS = 5000;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    /**
+     * 毫秒时钟, 测试时可以替换为手动推进的时钟
+     */
+    public interface Clock {
+        long millis();
+    }
+
+    public static final Clock MONOTONIC = () -> System.nanoTime() / 1000000;
+
+    private final Clock mClock;
+    private final int mBurst;
+    private final long mRefillMillis;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+
+    private double mTokens;
+    private long mLastRefill = Long.MIN_VALUE;
+    private int mThrottled;
+
+    public HoldReleaseBackoff() {
+        this(MONOTONIC);
+    }
+
+    public HoldReleaseBackoff(@NonNull Clock clock) {
+        this(DEFAULT_BURST, DEFAULT_REFILL_MILLIS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, clock);
+    }
+
+    public HoldReleaseBackoff(int burst, long refillMillis, long baseDelay, long maxDelay) {
+        this(burst, refillMillis, baseDelay, maxDelay, MONOTONIC);
+    }
+
+    public HoldReleaseBackoff(int burst, long refillMillis, long baseDelay, long maxDelay, @NonNull Clock clock) {
+        mClock = clock;
+        mBurst = burst;
+        mRefillMillis = refillMillis;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mTokens = burst;
+    }
+
+    /**
+     * @return 现在释放需要等待的时间(毫秒), 0表示可以立即释放
+     */
+    public long getDelay() {
+        return getDelay(mClock.millis());
+    }
+
+    public synchronized long getDelay(long now) {
+        refill(now);
+        if (mTokens >= 1)
+            return 0;
+        return Math.min(mMaxDelay, mBaseDelay << Math.min(mThrottled, 20));
+    }
+
+    /**
+     * 记录一次释放
+     */
+    public void onRelease() {
+        onRelease(mClock.millis());
+    }
+
+    public synchronized void onRelease(long now) {
+        refill(now);
+        if (mTokens >= 1)
+            mTokens -= 1;
+        else
+            ++mThrottled;
+    }
+
+    private void refill(long now) {
+        if (mLastRefill != Long.MIN_VALUE && now > mLastRefill)
+            mTokens = Math.min(mBurst, mTokens + (double) (now - mLastRefill) / mRefillMillis);
+        mLastRefill = now;
+        if (mTokens >= mBurst)
+            mThrottled = 0;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 多关键字(ASCII)的Aho-Corasick自动机, 一遍扫描找出文本中出现的所有关键字
+ * <p>
+ * 构造后不可变, 可在多个线程中共用
+ */
+class KeywordMatcher {
+
+    private static final int ALPHABET = 128;
+
+    // 状态转移表, mNext[state * ALPHABET + c]
+    private final int[] mNext;
+    // 到达每个状态时匹配到的关键字(包括后缀)对应的值
+    private final long[] mOutput;
+
+    /**
+     * @param keywords 只能包含ASCII字符
+     * @param values   每个关键字对应的位掩码, match()返回出现的关键字的值的或
+     */
+    KeywordMatcher(@NonNull String[] keywords, @NonNull long[] values) {
+        if (keywords.length != values.length)
+            throw new IllegalArgumentException("keywords and values differ in length");
+
+        // 先建字典树, -1表示没有转移
+        List<int[]> gotos = new ArrayList<>();
+        List<Long> outputs = new ArrayList<>();
+        gotos.add(newState());
+        outputs.add(0L);
+
+        for (int k = 0; k < keywords.length; ++k) {
+            String keyword = keywords[k];
+            if (keyword.isEmpty())
+                throw new IllegalArgumentException("empty keyword");
+            int state = 0;
+            for (int i = 0; i < keyword.length(); ++i) {
+                char c = keyword.charAt(i);
+                if (c >= ALPHABET)
+                    throw new IllegalArgumentException("non ASCII keyword: " + keyword);
+                if (gotos.get(state)[c] == -1) {
+                    gotos.get(state)[c] = gotos.size();
+                    gotos.add(newState());
+                    outputs.add(0L);
+                }
+                state = gotos.get(state)[c];
+            }
+            outputs.set(state, outputs.get(state) | values[k]);
+        }
+
+        // 按广度优先计算失败链接, 同时把字典树补全为确定自动机
+        int states = gotos.size();
+        mNext = new int[states * ALPHABET];
+        mOutput = new long[states];
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+        for (int c = 0; c < ALPHABET; ++c) {
+            int next = gotos.get(0)[c];
+            if (next == -1) {
+                mNext[c] = 0;
+            } else {
+                mNext[c] = next;
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+        mOutput[0] = outputs.get(0);
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            mOutput[state] = outputs.get(state) | mOutput[fail[state]];
+            for (int c = 0; c < ALPHABET; ++c) {
+                int next = gotos.get(state)[c];
+                if (next == -1) {
+                    mNext[state * ALPHABET + c] = mNext[fail[state] * ALPHABET + c];
+                } else {
+                    mNext[state * ALPHABET + c] = next;
+                    fail[next] = mNext[fail[state] * ALPHABET + c];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private static int[] newState() {
+        int[] next = new int[ALPHABET];
+        Arrays.fill(next, -1);
+        return next;
+    }
+
+    /**
+     * @return 文本中出现的所有关键字的值的或, 没有关键字出现时返回0
+     */
+    long match(@NonNull CharSequence text) {
+        long result = 0;
+        int state = 0;
+        int length = text.length();
+        for (int i = 0; i < length; ++i) {
+            char c = text.charAt(i);
+            // 关键字都是ASCII, 其他字符回到初始状态
+            state = c < ALPHABET ? mNext[state * ALPHABET + c] : 0;
+            result |= mOutput[state];
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.Arrays;
+
+/**
+ * 固定桶的延迟直方图(HdrHistogram风格), 每个2的幂区间再线性分为8个桶, 相对误差不超过12.5%
+ * <p>
+ * 记录不分配对象; 数值单位由调用者决定(通常是微秒)
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 覆盖 [0, 2^40)
+    private static final int MAX_MAGNITUDE = 39;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mTotalCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) Math.max(0, value);
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE)
+            return BUCKETS - 1;
+        int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return 第index个桶能容纳的最大值
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public synchronized void record(long value) {
+        value = Math.max(0, value);
+        ++mCounts[bucketIndex(value)];
+        ++mTotalCount;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public synchronized long getCount() {
+        return mTotalCount;
+    }
+
+    public synchronized long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized double getMean() {
+        return mTotalCount == 0 ? 0 : (double) mSum / mTotalCount;
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return 不小于percentile百分比记录值的最小桶上界(不超过最大记录值)
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * mTotalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += mCounts[i];
+            if (seen >= rank)
+                return Math.min(bucketUpperBound(i), mMax);
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+}
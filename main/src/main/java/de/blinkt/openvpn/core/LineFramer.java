@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 按'\n'切分字节流, 只把完整的行交给LineHandler; 行内容直接引用接收缓冲区, 不做中间拷贝
+ */
+public class LineFramer {
+
+    public interface LineHandler {
+        /**
+         * @param buffer 接收缓冲区, 仅在回调期间有效
+         * @param offset 行起始位置
+         * @param length 行长度, 不包括行尾的"\r\n"或"\n"
+         */
+        void onLine(@NonNull byte[] buffer, int offset, int length);
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final LineHandler mHandler;
+    private ByteBuffer mBuffer;
+    // 已扫描过(确认不含'\n')的字节数, 避免重复扫描
+    private int mScanned = 0;
+
+    public LineFramer(@NonNull LineHandler handler) {
+        this(DEFAULT_CAPACITY, handler);
+    }
+
+    public LineFramer(int capacity, @NonNull LineHandler handler) {
+        mBuffer = ByteBuffer.allocate(capacity);
+        mHandler = handler;
+    }
+
+    /**
+     * 从输入流读一次, 读入的数据追加到缓冲区; 需要调用processLines()处理完整的行
+     * @return 读入的字节数, 流结束时返回-1
+     */
+    public int fill(@NonNull InputStream in) throws IOException {
+        ensureWritable();
+        int read = in.read(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), mBuffer.remaining());
+        if (read > 0)
+            mBuffer.position(mBuffer.position() + read);
+        return read;
+    }
+
+    /**
+     * 追加数据并处理所有完整的行
+     */
+    public void feed(@NonNull byte[] data, int offset, int length) {
+        while (length > 0) {
+            ensureWritable();
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.put(data, offset, count);
+            offset += count;
+            length -= count;
+            processLines();
+        }
+    }
+
+    /**
+     * 处理缓冲区中所有完整的行, 不完整的行留在缓冲区等待后续数据
+     */
+    public void processLines() {
+        byte[] array = mBuffer.array();
+        int base = mBuffer.arrayOffset();
+        int end = base + mBuffer.position();
+        int start = base;
+
+        for (int i = base + mScanned; i < end; ++i) {
+            if (array[i] == '\n') {
+                int lineEnd = i;
+                if (lineEnd > start && array[lineEnd - 1] == '\r')
+                    --lineEnd;
+                mHandler.onLine(array, start, lineEnd - start);
+                start = i + 1;
+            }
+        }
+
+        if (start > base) {
+            // 把不完整的行移到缓冲区头部
+            mBuffer.flip();
+            mBuffer.position(start - base);
+            mBuffer.compact();
+        }
+        mScanned = mBuffer.position();
+    }
+
+    /**
+     * @return 缓冲区中未处理(不完整的行)的字节数
+     */
+    public int pending() {
+        return mBuffer.position();
+    }
+
+    public void clear() {
+        mBuffer.clear();
+        mScanned = 0;
+    }
+
+    private void ensureWritable() {
+        if (!mBuffer.hasRemaining()) {
+            // 单行超过缓冲区大小, 扩大缓冲区
+            ByteBuffer larger = ByteBuffer.allocate(mBuffer.capacity() * 2);
+            mBuffer.flip();
+            larger.put(mBuffer);
+            mBuffer = larger;
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 接收缓冲区中一行的轻量视图, 可重复指向不同的行; 字段解析不分配对象
+ * <p>
+ * charAt()按字节返回, 适合解析管理协议中的ASCII关键字和数字; 需要完整文本时用substring()/toString()按UTF-8解码
+ */
+public class LineView implements CharSequence {
+
+    private byte[] mBuffer;
+    private int mOffset;
+    private int mLength;
+
+    public LineView() {
+    }
+
+    public LineView(@NonNull byte[] buffer, int offset, int length) {
+        set(buffer, offset, length);
+    }
+
+    public LineView(@NonNull String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        set(bytes, 0, bytes.length);
+    }
+
+    public LineView set(@NonNull byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (mBuffer[mOffset + index] & 0xff);
+    }
+
+    public byte byteAt(int index) {
+        return mBuffer[mOffset + index];
+    }
+
+    @NonNull
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
+
+    @NonNull
+    public String substring(int start) {
+        return substring(start, mLength);
+    }
+
+    @NonNull
+    public String substring(int start, int end) {
+        return new String(mBuffer, mOffset + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    public int indexOf(char c, int from) {
+        for (int i = from; i < mLength; ++i) {
+            if (mBuffer[mOffset + i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    public int lastIndexOf(char c) {
+        for (int i = mLength - 1; i >= 0; --i) {
+            if (mBuffer[mOffset + i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    public boolean startsWith(@NonNull byte[] prefix) {
+        return regionMatches(0, prefix);
+    }
+
+    public boolean regionMatches(int start, @NonNull byte[] region) {
+        if (start < 0 || start + region.length > mLength)
+            return false;
+        for (int i = 0; i < region.length; ++i) {
+            if (mBuffer[mOffset + start + i] != region[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 比较[start, end)是否等于ASCII字符串text
+     */
+    public boolean equals(int start, int end, @NonNull String text) {
+        if (end - start != text.length())
+            return false;
+        for (int i = 0; i < text.length(); ++i) {
+            if (mBuffer[mOffset + start + i] != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 解析[start, end)中的十进制整数
+     * @throws NumberFormatException 不是合法的十进制整数
+     */
+    public long parseLong(int start, int end) {
+        if (start >= end)
+            throw new NumberFormatException("empty number at " + start);
+
+        boolean negative = mBuffer[mOffset + start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= end)
+            throw new NumberFormatException("invalid number at " + start);
+
+        long value = 0;
+        for (; i < end; ++i) {
+            int digit = mBuffer[mOffset + i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("invalid digit at " + i);
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * 解析[start, end)中的十进制整数, 不是合法的十进制整数时返回fallback, 不抛出异常
+     */
+    public long parseLong(int start, int end, long fallback) {
+        if (start >= end)
+            return fallback;
+
+        boolean negative = mBuffer[mOffset + start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= end)
+            return fallback;
+
+        long value = 0;
+        for (; i < end; ++i) {
+            int digit = mBuffer[mOffset + i] - '0';
+            if (digit < 0 || digit > 9)
+                return fallback;
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    public int parseInt(int start, int end) {
+        return (int) parseLong(start, end);
+    }
+
+    /**
+     * 从start开始按sep切分, 最多切出maxFields个字段(最后一个字段包含剩余全部内容)
+     * @param bounds 输出, bounds[2 * i]和bounds[2 * i + 1]是第i个字段的[start, end)
+     * @return 字段个数
+     */
+    public int split(int start, char sep, int maxFields, @NonNull int[] bounds) {
+        maxFields = Math.min(maxFields, bounds.length / 2);
+        int count = 0;
+        int fieldStart = start;
+
+        while (count < maxFields - 1) {
+            int idx = indexOf(sep, fieldStart);
+            if (idx == -1)
+                break;
+            bounds[2 * count] = fieldStart;
+            bounds[2 * count + 1] = idx;
+            ++count;
+            fieldStart = idx + 1;
+        }
+
+        bounds[2 * count] = fieldStart;
+        bounds[2 * count + 1] = mLength;
+        return count + 1;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return substring(0, mLength);
+    }
+
+}
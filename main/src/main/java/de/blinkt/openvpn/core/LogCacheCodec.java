@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 日志文件缓存的二进制格式, 取代ObjectOutputStream
+ * <p>
+ * 文件头: "OVLC", 格式版本(1字节), 应用versionCode(4字节)<br>
+ * 记录: 负载字节数(varint), 负载, 负载的CRC32(4字节)<br>
+ * 负载: source(1字节), level(1字节), logtime(varint), resId(varint), message, 参数个数+1(varint, 0表示null), 参数<br>
+ * 字符串: UTF-8字节数+1(varint, 0表示null), UTF-8字节; 参数: 类型(1字节), 值
+ */
+class LogCacheCodec {
+
+    static final int MAGIC = 0x4F564C43; // "OVLC"
+    static final int VERSION = 1;
+
+    // 超过这个长度的记录视为文件损坏
+    static final int MAX_RECORD_LENGTH = 256 * 1024;
+
+    // 参数类型, 其他类型的参数按String.valueOf()保存
+    private static final int ARG_NULL = 0;
+    private static final int ARG_STRING = 1;
+    private static final int ARG_INT = 2;
+    private static final int ARG_LONG = 3;
+
+    /**
+     * 把日志编码到一个可重用的缓冲区, 攒够FLUSH_THRESHOLD字节或flush()时一次写出; 只能在一个线程中使用
+     */
+    static final class Writer implements Closeable, Flushable {
+
+        static final int FLUSH_THRESHOLD = 8 * 1024;
+
+        // 负载之前为长度预留的字节数, 编码后把负载前移到实际的长度之后
+        private static final int LENGTH_RESERVED = 5;
+
+        private final OutputStream mOut;
+        private final CRC32 mCrc = new CRC32();
+        private byte[] mBuffer = new byte[2 * FLUSH_THRESHOLD];
+        private int mLength;
+        // 已写出到mOut的字节数
+        private long mWritten;
+
+        /**
+         * 立即写入文件头
+         */
+        Writer(@NonNull OutputStream out, int appVersion) throws IOException {
+            mOut = out;
+            writeFixedInt(MAGIC);
+            put(VERSION);
+            writeFixedInt(appVersion);
+            flush();
+        }
+
+        void write(@NonNull LogItem li) throws IOException {
+            int start = mLength;
+            mLength += LENGTH_RESERVED;
+            int payloadStart = mLength;
+
+            put(li.getLogSource().getInt());
+            put(li.getLogLevel().getInt());
+            putVarLong(li.getLogtime());
+            putVarLong(li.getResourceId() & 0xFFFFFFFFL);
+            putString(li.getMessage());
+            putArgs(li.getArgs());
+
+            int payloadLength = mLength - payloadStart;
+            mLength = start;
+            putVarLong(payloadLength);
+            System.arraycopy(mBuffer, payloadStart, mBuffer, mLength, payloadLength);
+            mCrc.reset();
+            mCrc.update(mBuffer, mLength, payloadLength);
+            mLength += payloadLength;
+            writeFixedInt((int) mCrc.getValue());
+
+            if (mLength >= FLUSH_THRESHOLD)
+                drain();
+        }
+
+        private void putArgs(Object[] args) {
+            if (args == null) {
+                putVarLong(0);
+                return;
+            }
+
+            putVarLong(args.length + 1L);
+            for (Object arg : args) {
+                if (arg == null) {
+                    put(ARG_NULL);
+                } else if (arg instanceof Integer) {
+                    put(ARG_INT);
+                    putVarLong(zigzag((Integer) arg));
+                } else if (arg instanceof Long) {
+                    put(ARG_LONG);
+                    putVarLong(zigzag((Long) arg));
+                } else {
+                    put(ARG_STRING);
+                    putString(String.valueOf(arg));
+                }
+            }
+        }
+
+        private void putString(String value) {
+            if (value == null) {
+                putVarLong(0);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarLong(bytes.length + 1L);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+            mLength += bytes.length;
+        }
+
+        private void putVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                mBuffer[mLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        private void writeFixedInt(int value) {
+            ensureCapacity(4);
+            mBuffer[mLength++] = (byte) (value >>> 24);
+            mBuffer[mLength++] = (byte) (value >>> 16);
+            mBuffer[mLength++] = (byte) (value >>> 8);
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        private void put(int value) {
+            ensureCapacity(1);
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mLength + extra > mBuffer.length) {
+                byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                mBuffer = buffer;
+            }
+        }
+
+        private void drain() throws IOException {
+            if (mLength > 0) {
+                mOut.write(mBuffer, 0, mLength);
+                mWritten += mLength;
+                mLength = 0;
+            }
+        }
+
+        /**
+         * @return 包括文件头和缓冲区中还没写出的字节
+         */
+        long size() {
+            return mWritten + mLength;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * 读取记录时选择保留哪些日志
+     */
+    interface Filter {
+        boolean accept(@NonNull LogItem li);
+    }
+
+    @NonNull
+    static List<LogItem> read(@NonNull InputStream in, int appVersion, int maxItems) throws IOException {
+        return read(in, appVersion, maxItems, null);
+    }
+
+    /**
+     * 顺序读取全部记录, 只保留filter接受的最后maxItems条
+     * <p>
+     * 文件头不匹配(如旧的ObjectOutputStream格式)时返回空列表; 遇到截断或损坏的记录时停止, 返回之前读到的记录;
+     * 应用版本改变后资源ID可能已经改变, 只保留不引用资源的日志
+     *
+     * @throws IOException 读取文件出错
+     */
+    @NonNull
+    static List<LogItem> read(@NonNull InputStream in, int appVersion, int maxItems, @Nullable Filter filter)
+            throws IOException {
+        ArrayDeque<LogItem> items = new ArrayDeque<>();
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, 16 * 1024));
+        boolean sameVersion;
+
+        try {
+            if (dataIn.readInt() != MAGIC || dataIn.readUnsignedByte() != VERSION)
+                return new ArrayList<>();
+            sameVersion = dataIn.readInt() == appVersion;
+        } catch (EOFException ex) {
+            return new ArrayList<>();
+        }
+
+        Reader reader = new Reader();
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[256];
+
+        try {
+            while (true) {
+                int first = dataIn.read();
+                if (first == -1)
+                    break;
+
+                long length = readVarLong(dataIn, first);
+                if (length <= 0 || length > MAX_RECORD_LENGTH)
+                    break;
+
+                if (payload.length < length)
+                    payload = new byte[(int) Math.max(length, payload.length * 2L)];
+                dataIn.readFully(payload, 0, (int) length);
+                int checksum = dataIn.readInt();
+
+                crc.reset();
+                crc.update(payload, 0, (int) length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                LogItem li = reader.decode(payload, (int) length);
+                if (li == null)
+                    break;
+                if (!sameVersion && li.getResourceId() != 0)
+                    continue;
+                if (filter != null && !filter.accept(li))
+                    continue;
+
+                if (items.size() == maxItems)
+                    items.pollFirst();
+                items.addLast(li);
+            }
+
+        } catch (EOFException ex) {
+            // 最后一条记录没有写完
+        }
+
+        return new ArrayList<>(items);
+    }
+
+    private static long readVarLong(@NonNull DataInputStream in, int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 63)
+                return -1;
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * 从负载解码一条日志
+     */
+    private static final class Reader {
+
+        private byte[] mBuffer;
+        private int mPosition;
+        private int mLimit;
+
+        /**
+         * @return 负载格式错误时返回null
+         */
+        LogItem decode(@NonNull byte[] buffer, int length) {
+            mBuffer = buffer;
+            mPosition = 0;
+            mLimit = length;
+
+            try {
+                int source = get();
+                int level = get();
+                if (source >= LogSource.values().length || level >= LogLevel.values().length)
+                    return null;
+
+                long logtime = getVarLong();
+                int resourceId = (int) getVarLong();
+                String message = getString();
+                Object[] args = getArgs();
+                if (mPosition != mLimit)
+                    return null;
+
+                return new LogItem(LogSource.getEnumByValue(source), LogLevel.getEnumByValue(level), logtime, message, resourceId, args);
+
+            } catch (IndexOutOfBoundsException ex) {
+                return null;
+            }
+        }
+
+        private Object[] getArgs() {
+            long count = getVarLong() - 1;
+            if (count < 0)
+                return null;
+            if (count > mLimit - mPosition)
+                throw new IndexOutOfBoundsException("args " + count);
+
+            Object[] args = new Object[(int) count];
+            for (int i = 0; i < count; ++i) {
+                switch (get()) {
+                    case ARG_NULL:
+                        break;
+                    case ARG_STRING:
+                        args[i] = getString();
+                        break;
+                    case ARG_INT:
+                        args[i] = (int) unzigzag(getVarLong());
+                        break;
+                    case ARG_LONG:
+                        args[i] = unzigzag(getVarLong());
+                        break;
+                    default:
+                        throw new IndexOutOfBoundsException("arg type");
+                }
+            }
+            return args;
+        }
+
+        private String getString() {
+            long length = getVarLong() - 1;
+            if (length < 0)
+                return null;
+            if (length > mLimit - mPosition)
+                throw new IndexOutOfBoundsException("string " + length);
+
+            String value = new String(mBuffer, mPosition, (int) length, StandardCharsets.UTF_8);
+            mPosition += length;
+            return value;
+        }
+
+        private long getVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IndexOutOfBoundsException("varint");
+        }
+
+        private int get() {
+            if (mPosition >= mLimit)
+                throw new IndexOutOfBoundsException("payload");
+            return mBuffer[mPosition++] & 0xFF;
+        }
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * LogListener的异步分发: 每个监听器一个有界队列和一个投递线程, 生产者只入队
+ * <p>
+ * 慢的监听器只会让自己的队列积压, 不会阻塞管理接口和控制台读线程(BLOCK策略除外)
+ */
+class LogDispatcher {
+
+    private static final String TAG = "LogDispatcher";
+
+    static final int DEFAULT_CAPACITY = 1024;
+    // 一次newLogs()最多投递的日志数; OpenVPNStatusService把一批日志作为一次oneway Binder调用转发, 不能超过异步事务缓冲区
+    static final int MAX_BATCH = 64;
+
+    /**
+     * 队列满时的处理
+     */
+    enum Overflow {
+        // 丢弃最旧的日志
+        DROP_OLDEST,
+        // 丢弃最旧的日志, 下次投递时在最前面用一条日志说明丢弃了多少条
+        COALESCE,
+        // 生产者等待监听器处理
+        BLOCK
+    }
+
+    private final List<ListenerQueue> mQueues = new CopyOnWriteArrayList<>();
+
+    void add(@NonNull VpnStatus.LogListener listener, @NonNull Overflow overflow, int capacity) {
+        mQueues.add(new ListenerQueue(listener, overflow, capacity));
+    }
+
+    void remove(@NonNull VpnStatus.LogListener listener) {
+        for (ListenerQueue queue : mQueues) {
+            if (queue.listener == listener) {
+                mQueues.remove(queue);
+                queue.close();
+                return;
+            }
+        }
+    }
+
+    void publish(@NonNull LogItem item) {
+        for (ListenerQueue queue : mQueues) {
+            queue.offer(item);
+        }
+    }
+
+    void publish(@NonNull List<LogItem> items) {
+        for (ListenerQueue queue : mQueues) {
+            queue.offer(items);
+        }
+    }
+
+    /**
+     * 等待所有已发布的日志都投递完
+     *
+     * @return 超时返回false
+     */
+    boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (ListenerQueue queue : mQueues) {
+            if (!queue.awaitIdle(Math.max(0, deadline - System.currentTimeMillis())))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 每个监听器一行: 队列深度, 最大深度, 投递数和丢弃数
+     */
+    @NonNull
+    String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (ListenerQueue queue : mQueues) {
+            sb.append(queue).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static final class ListenerQueue implements Runnable {
+
+        @NonNull
+        final VpnStatus.LogListener listener;
+        @NonNull
+        final Overflow overflow;
+        final int capacity;
+
+        // 以下字段使用需持有this锁
+        private final ArrayDeque<LogItem> mItems = new ArrayDeque<>();
+        private int mCoalesced;
+        private int mMaxDepth;
+        private long mDropped;
+        private long mDelivered;
+        private boolean mDelivering;
+        private boolean mClosed;
+
+        private final Thread mThread;
+
+        ListenerQueue(@NonNull VpnStatus.LogListener listener, @NonNull Overflow overflow, int capacity) {
+            this.listener = listener;
+            this.overflow = overflow;
+            this.capacity = capacity;
+            mThread = new Thread(this, "LogListener-" + listener.getClass().getSimpleName());
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        synchronized void offer(@NonNull LogItem item) {
+            if (mClosed)
+                return;
+            add(item);
+            notifyAll();
+        }
+
+        synchronized void offer(@NonNull List<LogItem> items) {
+            if (mClosed)
+                return;
+            for (LogItem item : items) {
+                add(item);
+            }
+            notifyAll();
+        }
+
+        // 调用需持有this锁
+        private void add(@NonNull LogItem item) {
+            if (mItems.size() >= capacity) {
+                // 投递线程自己记日志时不能等待自己
+                if (overflow == Overflow.BLOCK && Thread.currentThread() != mThread) {
+                    while (mItems.size() >= capacity && !mClosed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+
+                if (mClosed)
+                    return;
+                if (mItems.size() >= capacity) {
+                    mItems.pollFirst();
+                    ++mDropped;
+                    if (overflow == Overflow.COALESCE)
+                        ++mCoalesced;
+                }
+            }
+
+            mItems.addLast(item);
+            mMaxDepth = Math.max(mMaxDepth, mItems.size());
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<LogItem> batch;
+                synchronized (this) {
+                    while (mItems.isEmpty() && !mClosed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            mClosed = true;
+                        }
+                    }
+                    if (mClosed)
+                        return;
+
+                    int count = Math.min(mItems.size(), MAX_BATCH);
+                    batch = new ArrayList<>(count);
+                    if (mCoalesced > 0) {
+                        batch.add(new LogItem(LogSource.OPENVPN_FRONT, LogLevel.WARNING,
+                            mCoalesced + " log lines skipped, log listener could not keep up"));
+                        mCoalesced = 0;
+                        --count;
+                    }
+                    for (int i = 0; i < count; ++i) {
+                        batch.add(mItems.pollFirst());
+                    }
+                    mDelivering = true;
+                    // 唤醒BLOCK策略下等待的生产者
+                    notifyAll();
+                }
+
+                try {
+                    if (batch.size() == 1)
+                        listener.newLog(batch.get(0));
+                    else
+                        listener.newLogs(batch);
+                } catch (RuntimeException ex) {
+                    // 不能用VpnStatus.logException: 异常日志会再分发给出错的监听器
+                    Log.e(TAG, "Log listener " + listener.getClass().getName() + " failed", ex);
+                }
+
+                synchronized (this) {
+                    mDelivered += batch.size();
+                    mDelivering = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * 丢弃还没投递的日志, 结束投递线程
+         */
+        synchronized void close() {
+            mClosed = true;
+            mItems.clear();
+            notifyAll();
+        }
+
+        /**
+         * 等待已入队的日志都投递完
+         *
+         * @return 超时返回false
+         */
+        synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while ((!mItems.isEmpty() || mDelivering) && !mClosed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+            return true;
+        }
+
+        synchronized int getDepth() {
+            return mItems.size();
+        }
+
+        synchronized int getMaxDepth() {
+            return mMaxDepth;
+        }
+
+        synchronized long getDropped() {
+            return mDropped;
+        }
+
+        synchronized long getDelivered() {
+            return mDelivered;
+        }
+
+        @NonNull
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "%s %s depth %d/%d max %d delivered %d dropped %d",
+                listener.getClass().getName(), overflow, mItems.size(), capacity, mMaxDepth, mDelivered, mDropped);
+        }
+    }
+
+}
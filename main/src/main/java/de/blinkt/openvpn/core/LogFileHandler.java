@@ -11,80 +11,196 @@ import android.os.Looper;
 import android.os.Message;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectStreamException;
-import java.io.OutputStream;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.blinkt.xp.openvpn.BuildConfig;
 
 /**
  * Created by arne on 23.01.16.
  */
 class LogFileHandler extends Handler {
 
-    public static final String CACHE_LOGFILE_NAME = "logcache.dat";
+    // 文件缓存的目录, 见SegmentedLogStore
+    public static final String CACHE_LOG_DIR = "logcache";
+    // 旧版本的单文件缓存, 初始化时删除
+    private static final String LEGACY_CACHE_LOGFILE_NAME = "logcache.dat";
 
     public static final int TRIM_LOG_FILE = 100;
     public static final int FLUSH_TO_DISK = 101;
     public static final int LOG_INIT = 102;
     public static final int LOG_MESSAGE = 103;
+    public static final int FLUSH_INTERVAL = 104;
+
+    // query()和forEach()等待写出已入队日志的最长时间
+    static final long QUERY_FLUSH_TIMEOUT_MS = 2000;
+    // 第一条日志入队后等待这么久再整批写入, ERROR日志立即写入
+    static final long WRITE_DELAY_MS = 100;
+    // 文件缓存中未写出的记录最多保留这么久
+    static final long FLUSH_INTERVAL_MS = 5000;
 
     // protected 方便子类化测试
     protected DateFormat mDateFormat;
     protected Context mContext;
-    protected OutputStream mLogOutBin;
-    protected ObjectOutputStream mLogOutObj;
+    // 在Handler线程中创建, query()在其他线程中读取
+    protected volatile SegmentedLogStore mLogStore;
 
     // for debug 发送日志时使用
-    protected OutputStream mLogOpenvpnUI;
-    protected OutputStream mLogOpenvpnConsole;
-    protected OutputStream mLogOpenvpnManagement;
+    protected TextLogFile mLogOpenvpnUI;
+    protected TextLogFile mLogOpenvpnConsole;
+    protected TextLogFile mLogOpenvpnManagement;
+
+    // 压缩写满的缓存段
+    private final ExecutorService mCompressor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "LogCompressor");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 等待写入的日志, 任意线程入队, Handler线程整批取出
+    private final ConcurrentLinkedQueue<LogItem> mPending = new ConcurrentLinkedQueue<>();
+    // 已发送LOG_MESSAGE, 还没开始处理
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+
+    // 以下字段只在Handler线程中使用
+    private final StringBuilder mLine = new StringBuilder();
+    private boolean mCacheDirty;
+    private boolean mFlushScheduled;
 
     public LogFileHandler(@NonNull Looper looper) {
         super(looper);
     }
 
+    /**
+     * 可以由多个线程同时调用
+     */
+    void enqueue(@NonNull LogItem li) {
+        mPending.offer(li);
+        scheduleWrite(li.getLogLevel() == LogLevel.ERROR);
+    }
+
+    /**
+     * 可以由多个线程同时调用
+     */
+    void enqueue(@NonNull List<LogItem> items) {
+        boolean error = false;
+        for (LogItem li : items) {
+            mPending.offer(li);
+            error |= li.getLogLevel() == LogLevel.ERROR;
+        }
+        scheduleWrite(error);
+    }
+
+    /**
+     * 每次唤醒写入期间积累的全部日志; 已安排了写入时不再发送消息
+     */
+    private void scheduleWrite(boolean immediately) {
+        if (immediately) {
+            mWriteScheduled.set(true);
+            sendEmptyMessage(LOG_MESSAGE);
+        } else if (mWriteScheduled.compareAndSet(false, true)) {
+            sendEmptyMessageDelayed(LOG_MESSAGE, WRITE_DELAY_MS);
+        }
+    }
+
+    /**
+     * 在调用线程中查询文件缓存, 查询结果包括已入队的日志
+     *
+     * @return 文件缓存不可用时返回null
+     */
+    @Nullable
+    List<LogItem> query(@NonNull LogQuery query) throws InterruptedException {
+        SegmentedLogStore store = writeOut();
+        return store == null ? null : store.query(query, mContext);
+    }
+
+    /**
+     * 在调用线程中按时间从旧到新读取文件缓存中的全部日志, 包括已入队的日志
+     *
+     * @return 文件缓存不可用时返回false
+     */
+    boolean forEach(@NonNull LogCacheCodec.Filter visitor) throws InterruptedException {
+        SegmentedLogStore store = writeOut();
+        if (store == null)
+            return false;
+        store.forEach(visitor);
+        return true;
+    }
+
+    /**
+     * 在Handler线程中写出已入队的日志, 等待写完
+     */
+    @Nullable
+    private SegmentedLogStore writeOut() throws InterruptedException {
+        CountDownLatch written = new CountDownLatch(1);
+        Runnable writeAll = () -> {
+            try {
+                writePending();
+                if (mLogStore != null)
+                    flushCacheToDisk();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } finally {
+                written.countDown();
+            }
+        };
+
+        if (Looper.myLooper() == getLooper())
+            writeAll.run();
+        else if (post(writeAll))
+            written.await(QUERY_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        return mLogStore;
+    }
+
     @Override
     public void handleMessage(@NonNull Message msg) {
         try {
             if (msg.what == LOG_INIT) {
-                if (mLogOutBin != null)
+                if (mLogStore != null)
                     VpnStatus.logError("mLogFile not null, already initialized");
                 else
                     initLogFile((Context) msg.obj);
 
-            } else if (msg.what == LOG_MESSAGE && msg.obj instanceof LogItem) {
-                writeLogItemObject((LogItem) msg.obj);
-                writeLogItemText((LogItem) msg.obj);
+            } else if (msg.what == LOG_MESSAGE) {
+                writePending();
 
             } else if (msg.what == TRIM_LOG_FILE) {
+                // 清空日志后重新记录的平台信息还在mPending中, 清空文件缓存后写入
                 trimCacheLogFile();
+                writePending();
 
-                LinkedList<LogItem> logBuffer;
-                synchronized (VpnStatus.LOG_LOCK) {
-                    logBuffer = new LinkedList<>(VpnStatus.getLogBufferAll());
-                }
-                for (LogItem li : logBuffer) {
-                    writeLogItemObject(li);
-                }
+            } else if (msg.what == FLUSH_INTERVAL) {
+                mFlushScheduled = false;
+                writePending();
+                flushCacheToDisk();
 
             } else if (msg.what == FLUSH_TO_DISK) {
+                writePending();
                 flushCacheToDisk();
+                syncToDisk();
 
             } else {
                 VpnStatus.logError("Unknown log message: " + msg);
@@ -96,114 +212,84 @@ class LogFileHandler extends Handler {
         }
     }
 
-    protected void initLogFile(@NonNull Context context) throws IOException {
-        File cacheDir = context.getCacheDir();
-        mContext = context;
-
-        mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-        mLogOpenvpnUI = new FileOutputStream(new File(cacheDir, "OpenVPN_front.log"));
-        mLogOpenvpnConsole = new FileOutputStream(new File(cacheDir, "OpenVPN_console.log"));
-        mLogOpenvpnManagement = new FileOutputStream(new File(cacheDir, "OpenVPN_management.log"));
+    /**
+     * 写入mPending中的全部日志: 每个文本日志文件一次write(), 文件缓存按持久化策略写出
+     * <p>
+     * 文本日志每批都写入系统, 进程崩溃不会丢失; 文件缓存在遇到ERROR日志, 每FLUSH_INTERVAL_MS和FLUSH_TO_DISK时写出,
+     * FLUSH_TO_DISK时所有文件还会同步到存储
+     */
+    protected void writePending() throws IOException {
+        mWriteScheduled.set(false);
+        if (mLogStore == null) {
+            // 初始化失败
+            mPending.clear();
+            return;
+        }
 
-        readLogItemCache(cacheDir);
-        openCacheLogFile(cacheDir);
-    }
+        boolean error = false;
+        LogItem li;
+        while ((li = mPending.poll()) != null) {
+            writeLogItemCache(li);
+            writeLogItemText(li);
+            error |= li.getLogLevel() == LogLevel.ERROR;
+        }
 
-    protected FileOutputStream openAndArchiveLogFile(@NonNull File logFile) throws IOException {
-        try {
-            FileOutputStream fileOutputStream = new FileOutputStream(logFile, true);
-            FileChannel fileChannel = fileOutputStream.getChannel();
-            if (fileChannel.size() > 2 * 1024 * 1024) {
-                fileOutputStream.close();
-                zipLogFile(logFile, new File(mContext.getCacheDir(), logFile.getName() + ".zip"));
-                fileOutputStream = new FileOutputStream(logFile);
-            }
+        mLogOpenvpnUI.write();
+        mLogOpenvpnConsole.write();
+        mLogOpenvpnManagement.write();
 
-            return fileOutputStream;
+        if (error)
+            flushCacheToDisk();
+        else
+            scheduleFlush();
+    }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return new FileOutputStream(logFile);
+    private void scheduleFlush() {
+        if (mCacheDirty && !mFlushScheduled) {
+            mFlushScheduled = true;
+            sendEmptyMessageDelayed(FLUSH_INTERVAL, FLUSH_INTERVAL_MS);
         }
     }
 
-    protected void zipLogFile(@NonNull File logFile, @NonNull File zipFile) {
-        try (
-            FileInputStream fileInputStream = new FileInputStream(logFile);
-            FileOutputStream fileOutputStream = new FileOutputStream(zipFile);
-            ZipOutputStream zipOutputStream = new ZipOutputStream(fileOutputStream)
-        ) {
-
-            ZipEntry zipEntry = new ZipEntry(logFile.getName());
-            zipOutputStream.putNextEntry(zipEntry);
-
-            byte[] buf = new byte[2048];
-            int bytesRead;
-
-            while ((bytesRead = fileInputStream.read(buf)) > 0) {
-                zipOutputStream.write(buf, 0, bytesRead);
-            }
-
-            zipOutputStream.closeEntry();
-            zipOutputStream.flush();
-            fileOutputStream.flush();
+    protected void initLogFile(@NonNull Context context) throws IOException {
+        File cacheDir = context.getCacheDir();
+        mContext = context;
 
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
+        mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        mLogOpenvpnUI = new TextLogFile(new FileOutputStream(new File(cacheDir, "OpenVPN_front.log")));
+        mLogOpenvpnConsole = new TextLogFile(new FileOutputStream(new File(cacheDir, "OpenVPN_console.log")));
+        mLogOpenvpnManagement = new TextLogFile(new FileOutputStream(new File(cacheDir, "OpenVPN_management.log")));
+
+        //noinspection ResultOfMethodCallIgnored
+        new File(cacheDir, LEGACY_CACHE_LOGFILE_NAME).delete();
+        mLogStore = new SegmentedLogStore(new File(cacheDir, CACHE_LOG_DIR), BuildConfig.VERSION_CODE,
+            SegmentedLogStore.SEGMENT_SIZE, SegmentedLogStore.MAX_SIZE, mCompressor);
+        readLogItemCache();
     }
 
     protected void flushCacheToDisk() throws IOException {
-        mLogOutObj.flush();
-        mLogOutBin.flush();
-    }
-
-    protected void trimCacheLogFile() throws IOException {
-        try {
-            mLogOutObj.flush();
-            mLogOutBin.flush();
-
-            ((FileOutputStream) mLogOutBin).getChannel().truncate(0);
-            mLogOutBin.close();
-
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            // Ignore
-        }
-
-        openCacheLogFile(mContext.getCacheDir());
+        mLogStore.flush();
+        mCacheDirty = false;
     }
 
-    protected void openCacheLogFile(@NonNull File cacheDir) throws IOException {
-        File logfile = new File(cacheDir, CACHE_LOGFILE_NAME);
-        mLogOutBin = new FileOutputStream(logfile);
-        mLogOutObj = new ObjectOutputStream(mLogOutBin);
+    protected void syncToDisk() throws IOException {
+        mLogStore.sync();
+        mLogOpenvpnUI.sync();
+        mLogOpenvpnConsole.sync();
+        mLogOpenvpnManagement.sync();
     }
 
-    protected void closeCacheLogFile() throws IOException {
-        mLogOutObj.flush();
-        mLogOutBin.flush();
-        mLogOutObj.close();
-        mLogOutBin.close();
+    /**
+     * 删除全部缓存段, 不再重写内存中的日志
+     */
+    protected void trimCacheLogFile() throws IOException {
+        mLogStore.clear();
+        mCacheDirty = false;
     }
 
-    protected void readLogItemCache(@NonNull File cacheDir) {
+    protected void readLogItemCache() {
         try {
-            File logfile = new File(cacheDir, CACHE_LOGFILE_NAME);
-            if (!logfile.exists() || !logfile.canRead())
-                return;
-
-            try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(logfile))) {
-                LogItem li = (LogItem) objIn.readObject();
-                // 舍弃从cache文件读入的tag
-                li.setTag(null);
-                VpnStatus.newLogItem(li, true);
-
-            } catch (ObjectStreamException | ClassNotFoundException ex) {
-                VpnStatus.logThrowable("read log item", ex);
-            } catch (EOFException ex) {
-                // Ignore
-            }
+            VpnStatus.restoreLogItems(mLogStore.readLast(VpnStatus.MAX_LOGE_NTRIES));
 
         } catch (Exception ex) {
             VpnStatus.logError("Reading cached logfile failed");
@@ -211,37 +297,71 @@ class LogFileHandler extends Handler {
         }
     }
 
-    protected void writeLogItemObject(@NonNull LogItem li) throws IOException {
-        // tag不要写入cache文件
-        String tag = li.getTag();
-        li.setTag(null);
-
-        mLogOutObj.writeObject(li);
-        li.setTag(tag);
+    protected void writeLogItemCache(@NonNull LogItem li) throws IOException {
+        // LogCacheCodec不写入tag
+        mLogStore.append(li);
+        mCacheDirty = true;
     }
 
-    protected void writeLogItemText(@NonNull LogItem li) throws IOException {
-        // tag不要写入cache文件
-        String tag = li.getTag();
-        li.setTag(null);
-
-        String logtime = mDateFormat.format(new Date(li.getLogtime()));
-        String text = logtime + " " + li.getString(mContext) + "\n";
+    protected void writeLogItemText(@NonNull LogItem li) {
+        // 不带tag
+        mLine.setLength(0);
+        mLine.append(mDateFormat.format(new Date(li.getLogtime()))).append(' ')
+            .append(li.getBasicString(mContext)).append('\n');
 
         if (LogSource.OPENVPN_FRONT.equals(li.getLogSource())) {
-            mLogOpenvpnUI.write(text.getBytes(StandardCharsets.UTF_8));
-            mLogOpenvpnUI.flush();
+            mLogOpenvpnUI.append(mLine);
         } else if (LogSource.OPENVPN_CONSOLE.equals(li.getLogSource())) {
-            mLogOpenvpnConsole.write(text.getBytes(StandardCharsets.UTF_8));
-            mLogOpenvpnConsole.flush();
+            mLogOpenvpnConsole.append(mLine);
         } else if (LogSource.OPENVPN_MANAGEMENT.equals(li.getLogSource())) {
-            mLogOpenvpnManagement.write(text.getBytes(StandardCharsets.UTF_8));
-            mLogOpenvpnManagement.flush();
+            mLogOpenvpnManagement.append(mLine);
         } else {
             throw new IllegalStateException("Invalid LogSource " + li.getLogSource().toString());
         }
+    }
+
+    /**
+     * 一个文本日志文件: 一批日志编码到可重用的缓冲区, 用一次FileChannel.write()写入; 只能在一个线程中使用
+     */
+    static final class TextLogFile {
+
+        private final FileOutputStream mOut;
+        private final FileChannel mChannel;
+        private final CharsetEncoder mEncoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer mBuffer = ByteBuffer.allocate(16 * 1024);
+
+        TextLogFile(@NonNull FileOutputStream out) {
+            mOut = out;
+            mChannel = out.getChannel();
+        }
 
-        li.setTag(tag);
+        void append(@NonNull CharSequence text) {
+            CharBuffer chars = CharBuffer.wrap(text);
+            mEncoder.reset();
+            while (mEncoder.encode(chars, mBuffer, true).isOverflow()) {
+                ByteBuffer buffer = ByteBuffer.allocate(mBuffer.capacity() * 2);
+                mBuffer.flip();
+                buffer.put(mBuffer);
+                mBuffer = buffer;
+            }
+        }
+
+        void write() throws IOException {
+            mBuffer.flip();
+            try {
+                while (mBuffer.hasRemaining()) {
+                    mChannel.write(mBuffer);
+                }
+            } finally {
+                mBuffer.clear();
+            }
+        }
+
+        void sync() throws IOException {
+            mOut.getFD().sync();
+        }
     }
 
 }
@@ -12,10 +12,14 @@ import android.os.Parcelable;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.core.os.ConfigurationCompat;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import de.blinkt.xp.openvpn.BuildConfig;
 import de.blinkt.xp.openvpn.R;
@@ -42,6 +46,30 @@ public class LogItem implements Serializable, Parcelable {
     // tag 调试用
     private String mTag;
 
+    // 按资源格式化后的文本, 只在Locale改变时重新格式化; 不写入Parcel和缓存文件
+    private transient volatile Formatted mFormatted;
+
+    private static final class Formatted {
+        final Locale locale;
+        final String text;
+
+        Formatted(Locale locale, String text) {
+            this.locale = locale;
+            this.text = text;
+        }
+    }
+
+    // 资源字符串模板, 同一模板只从Resources读取一次, Locale改变时清空; 使用需持有gTemplates锁
+    private static final Map<Integer, String> gTemplates = new HashMap<>();
+    private static Locale gTemplatesLocale;
+
+    // Parcel中mArgs每个参数的类型
+    private static final int ARG_NULL = 0;
+    private static final int ARG_STRING = 1;
+    private static final int ARG_INT = 2;
+    private static final int ARG_LONG = 3;
+    private static final int ARG_VALUE = 4;
+
     private LogItem(@NonNull LogSource source, int resourceId, Object[] args) {
         mSource = source;
         mResourceId = resourceId;
@@ -54,6 +82,14 @@ public class LogItem implements Serializable, Parcelable {
         mMessage = message;
     }
 
+    /**
+     * @param logtime 产生这条日志的时间(如OpenVPN输出中的时间戳), 而不是收到的时间
+     */
+    public LogItem(@NonNull LogSource source, @NonNull LogLevel level, String message, long logtime) {
+        this(source, level, message);
+        mLogtime = logtime;
+    }
+
     public LogItem(@NonNull LogSource source, @NonNull LogLevel loglevel, int resourceId, Object... args) {
         mSource = source;
         mLevel = loglevel;
@@ -67,13 +103,25 @@ public class LogItem implements Serializable, Parcelable {
         mResourceId = resourceId;
     }
 
+    /**
+     * 从文件缓存恢复
+     */
+    LogItem(@NonNull LogSource source, @NonNull LogLevel level, long logtime, String message, int resourceId, Object[] args) {
+        mSource = source;
+        mLevel = level;
+        mLogtime = logtime;
+        mMessage = message;
+        mResourceId = resourceId;
+        mArgs = args;
+    }
+
     public LogItem(@NonNull Parcel in) {
         mSource = LogSource.getEnumByValue(in.readInt());
         mLevel = LogLevel.getEnumByValue(in.readInt());
         mLogtime = in.readLong();
-        mArgs = in.readArray(Object.class.getClassLoader());
-        mMessage = in.readString();
+        mMessage = readUtf8(in);
         mResourceId = in.readInt();
+        mArgs = readArgs(in);
         mTag = in.readString();
     }
 
@@ -89,6 +137,18 @@ public class LogItem implements Serializable, Parcelable {
         return mLogtime;
     }
 
+    String getMessage() {
+        return mMessage;
+    }
+
+    int getResourceId() {
+        return mResourceId;
+    }
+
+    Object[] getArgs() {
+        return mArgs;
+    }
+
     public String getTag() {
         return mTag;
     }
@@ -119,35 +179,20 @@ public class LogItem implements Serializable, Parcelable {
         return extString;
     }
 
-    @SuppressLint("StringFormatMatches")
     public String getBasicString(Context c) {
         if (mMessage != null) {
             return mMessage;
         }
 
         if (c != null) {
-            if (mResourceId == R.string.mobile_info) {
-                String apksign = "error getting package signature";
-                String version = "error getting version";
-
-                try {
-                    apksign = OpenVPNUtils.buildFor(c);
-                    version = BuildConfig.VERSION_NAME;
-                } catch (Exception ex) {
-                    // Ignore
-                }
-
-                Object[] argsext = Arrays.copyOf(mArgs, mArgs.length);
-                argsext[argsext.length - 1] = apksign;
-                argsext[argsext.length - 2] = version;
-
-                return c.getString(R.string.mobile_info, argsext);
-            }
+            Locale locale = ConfigurationCompat.getLocales(c.getResources().getConfiguration()).get(0);
+            Formatted formatted = mFormatted;
+            if (formatted != null && formatted.locale.equals(locale))
+                return formatted.text;
 
-            if (mArgs == null)
-                return c.getString(mResourceId);
-            else
-                return c.getString(mResourceId, mArgs);
+            String text = format(c, locale);
+            mFormatted = new Formatted(locale, text);
+            return text;
 
         } else {
             String str = String.format(Locale.US, "Log (no context) resid %d", mResourceId);
@@ -157,6 +202,55 @@ public class LogItem implements Serializable, Parcelable {
         }
     }
 
+    /**
+     * 和Context.getString(resId, args)相同, 但模板只读取一次
+     */
+    @SuppressLint("StringFormatMatches")
+    @NonNull
+    private String format(@NonNull Context c, @NonNull Locale locale) {
+        String template = getTemplate(c, locale, mResourceId);
+
+        if (mResourceId == R.string.mobile_info) {
+            String apksign = "error getting package signature";
+            String version = "error getting version";
+
+            try {
+                apksign = OpenVPNUtils.buildFor(c);
+                version = BuildConfig.VERSION_NAME;
+            } catch (Exception ex) {
+                // Ignore
+            }
+
+            Object[] argsext = Arrays.copyOf(mArgs, mArgs.length);
+            argsext[argsext.length - 1] = apksign;
+            argsext[argsext.length - 2] = version;
+
+            return String.format(locale, template, argsext);
+        }
+
+        if (mArgs == null)
+            return template;
+        else
+            return String.format(locale, template, mArgs);
+    }
+
+    @NonNull
+    private static String getTemplate(@NonNull Context c, @NonNull Locale locale, int resourceId) {
+        synchronized (gTemplates) {
+            if (!locale.equals(gTemplatesLocale)) {
+                gTemplates.clear();
+                gTemplatesLocale = locale;
+            }
+
+            String template = gTemplates.get(resourceId);
+            if (template == null) {
+                template = c.getString(resourceId);
+                gTemplates.put(resourceId, template);
+            }
+            return template;
+        }
+    }
+
     @Override
     public String toString() {
         return getString(null);
@@ -189,12 +283,80 @@ public class LogItem implements Serializable, Parcelable {
         dest.writeInt(mSource.getInt());
         dest.writeInt(mLevel.getInt());
         dest.writeLong(mLogtime);
-        dest.writeArray(mArgs);
-        dest.writeString(mMessage);
+        writeUtf8(dest, mMessage);
         dest.writeInt(mResourceId);
+        writeArgs(dest, mArgs);
         dest.writeString(mTag);
     }
 
+    /**
+     * 日志基本都是ASCII, UTF-8只有Parcel.writeString()(UTF-16)的一半大小
+     */
+    private static void writeUtf8(@NonNull Parcel dest, String value) {
+        dest.writeByteArray(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readUtf8(@NonNull Parcel in) {
+        byte[] bytes = in.createByteArray();
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 常见的String, Integer, Long参数不经过Parcel.writeValue()的类型分派
+     */
+    private static void writeArgs(@NonNull Parcel dest, Object[] args) {
+        if (args == null) {
+            dest.writeInt(-1);
+            return;
+        }
+
+        dest.writeInt(args.length);
+        for (Object arg : args) {
+            if (arg == null) {
+                dest.writeInt(ARG_NULL);
+            } else if (arg instanceof String) {
+                dest.writeInt(ARG_STRING);
+                writeUtf8(dest, (String) arg);
+            } else if (arg instanceof Integer) {
+                dest.writeInt(ARG_INT);
+                dest.writeInt((Integer) arg);
+            } else if (arg instanceof Long) {
+                dest.writeInt(ARG_LONG);
+                dest.writeLong((Long) arg);
+            } else {
+                dest.writeInt(ARG_VALUE);
+                dest.writeValue(arg);
+            }
+        }
+    }
+
+    private static Object[] readArgs(@NonNull Parcel in) {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+
+        Object[] args = new Object[length];
+        for (int i = 0; i < length; ++i) {
+            switch (in.readInt()) {
+                case ARG_STRING:
+                    args[i] = readUtf8(in);
+                    break;
+                case ARG_INT:
+                    args[i] = in.readInt();
+                    break;
+                case ARG_LONG:
+                    args[i] = in.readLong();
+                    break;
+                case ARG_VALUE:
+                    args[i] = in.readValue(LogItem.class.getClassLoader());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return args;
+    }
+
     public static final Creator<LogItem> CREATOR = new Creator<LogItem>() {
 
         public LogItem createFromParcel(@NonNull Parcel in) {
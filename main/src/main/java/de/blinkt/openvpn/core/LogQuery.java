@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 日志查询条件: 时间范围, LogSource, 最低LogLevel和文本, 不可修改
+ * <p>
+ * 结果是满足条件的最新limit条日志, 按时间从旧到新
+ */
+public class LogQuery {
+
+    public static final int DEFAULT_LIMIT = 500;
+    // 结果一次性读入内存返回, 限制条数
+    public static final int MAX_LIMIT = 2000;
+
+    // 段索引中LogLevel和LogSource各占的位, 见indexBits()
+    static final int ALL_LEVELS = 0xFF;
+    static final int ALL_SOURCES = 0xFF << 8;
+
+    private final long fromTime;
+    private final long toTime;
+    private final int sources;
+    private final LogLevel minLevel;
+    private final String text;
+    private final int limit;
+
+    private LogQuery(@NonNull Builder builder) {
+        fromTime = builder.fromTime;
+        toTime = builder.toTime;
+        sources = builder.sources == 0 ? ALL_SOURCES : builder.sources;
+        minLevel = builder.minLevel;
+        text = builder.text;
+        limit = builder.limit;
+    }
+
+    /**
+     * 一条日志在段索引中对应的位: 低8位是LogLevel, 之后8位是LogSource
+     */
+    static int indexBits(@NonNull LogSource source, @NonNull LogLevel level) {
+        return 1 << level.getInt() | 1 << (8 + source.getInt());
+    }
+
+    /**
+     * 只按段索引判断一个段中是否可能有满足条件的日志
+     *
+     * @param index 段中全部日志的indexBits()
+     */
+    boolean mayMatch(long minTime, long maxTime, int index) {
+        return maxTime >= fromTime && minTime <= toTime
+            && (index & levelBits()) != 0 && (index & sources) != 0;
+    }
+
+    private int levelBits() {
+        // minLevel及以上的LogLevel
+        return ALL_LEVELS & ~((1 << minLevel.getInt()) - 1);
+    }
+
+    /**
+     * @param c 用于格式化资源日志的文本, 为null时资源日志不匹配文本条件
+     */
+    boolean matches(@NonNull LogItem li, @Nullable Context c) {
+        if (li.getLogtime() < fromTime || li.getLogtime() > toTime)
+            return false;
+        int bits = indexBits(li.getLogSource(), li.getLogLevel());
+        if ((bits & levelBits()) == 0 || (bits & sources) == 0)
+            return false;
+        if (text == null)
+            return true;
+
+        String message = li.getMessage();
+        if (message == null) {
+            if (c == null)
+                return false;
+            message = li.getBasicString(c);
+        }
+        return containsIgnoreCase(message, text);
+    }
+
+    private static boolean containsIgnoreCase(@NonNull String haystack, @NonNull String needle) {
+        int last = haystack.length() - needle.length();
+        for (int i = 0; i <= last; ++i) {
+            if (haystack.regionMatches(true, i, needle, 0, needle.length()))
+                return true;
+        }
+        return false;
+    }
+
+    public long getFromTime() {
+        return fromTime;
+    }
+
+    public long getToTime() {
+        return toTime;
+    }
+
+    @NonNull
+    public LogLevel getMinLevel() {
+        return minLevel;
+    }
+
+    @Nullable
+    public String getText() {
+        return text;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public static class Builder {
+
+        private long fromTime = Long.MIN_VALUE;
+        private long toTime = Long.MAX_VALUE;
+        private int sources;
+        private LogLevel minLevel = LogLevel.VERBOSE;
+        private String text;
+        private int limit = DEFAULT_LIMIT;
+
+        /**
+         * @param fromTime 包括, 毫秒
+         * @param toTime   包括, 毫秒
+         */
+        @NonNull
+        public Builder setTimeRange(long fromTime, long toTime) {
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+            return this;
+        }
+
+        /**
+         * 不调用时查询全部LogSource
+         */
+        @NonNull
+        public Builder addSource(@NonNull LogSource source) {
+            sources |= 1 << (8 + source.getInt());
+            return this;
+        }
+
+        @NonNull
+        public Builder setMinLevel(@NonNull LogLevel minLevel) {
+            this.minLevel = minLevel;
+            return this;
+        }
+
+        /**
+         * @param text 日志文本包含的子串, 不区分大小写; null或空串不限制
+         */
+        @NonNull
+        public Builder setText(@Nullable String text) {
+            this.text = text == null || text.isEmpty() ? null : text;
+            return this;
+        }
+
+        @NonNull
+        public Builder setLimit(int limit) {
+            this.limit = Math.max(1, Math.min(MAX_LIMIT, limit));
+            return this;
+        }
+
+        @NonNull
+        public LogQuery build() {
+            return new LogQuery(this);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 一个LogSource的日志, 固定容量的多生产者无锁环形缓冲区, 满了覆盖最旧的日志
+ * <p>
+ * 生产者不加锁, 不等待其他生产者和读者; 读者随时可以取快照, 快照是已写入日志的连续前缀
+ */
+class LogRing {
+
+    /**
+     * 一条日志和它在所有LogSource之间的全局序号, 按序号合并各LogSource得到全部日志的顺序
+     */
+    static final class Entry {
+        final long position;
+        final long sequence;
+        @NonNull
+        final LogItem item;
+
+        Entry(long position, long sequence, @NonNull LogItem item) {
+            this.position = position;
+            this.sequence = sequence;
+            this.item = item;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mSlots;
+    private final int mMask;
+    // 下一个要分配的位置
+    private final AtomicLong mHead = new AtomicLong();
+    // clear()时的位置, 之前的日志不再出现在快照中
+    private volatile long mFloor;
+
+    /**
+     * @param capacity 向上取整为2的幂
+     */
+    LogRing(int capacity) {
+        int size = 2;
+        while (size < capacity)
+            size <<= 1;
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * 可以由多个线程同时调用
+     *
+     * @return 这条日志在环中的位置, 从0开始递增
+     */
+    long append(@NonNull LogItem item, long sequence) {
+        long position = mHead.getAndIncrement();
+        Entry entry = new Entry(position, sequence, item);
+        int index = (int) (position & mMask);
+
+        while (true) {
+            Entry old = mSlots.get(index);
+            // 被挂起的生产者不能用旧日志覆盖下一圈的新日志
+            if (old != null && old.position > position)
+                return position;
+            if (mSlots.compareAndSet(index, old, entry))
+                return position;
+        }
+    }
+
+    /**
+     * 把当前保留的日志按位置顺序追加到out; 还没写完的位置及其后的日志不包括在内, 读取期间被覆盖的日志跳过
+     */
+    void snapshot(@NonNull Collection<Entry> out) {
+        long head = mHead.get();
+        long start = Math.max(Math.max(0, head - capacity()), mFloor);
+
+        for (long position = start; position < head; ++position) {
+            Entry entry = mSlots.get((int) (position & mMask));
+            if (entry == null || entry.position < position)
+                break;
+            // 读取期间已被下一圈覆盖
+            if (entry.position > position)
+                continue;
+            out.add(entry);
+        }
+    }
+
+    /**
+     * 丢弃已有的日志; 和append()同时调用时, 同时写入的日志可能保留
+     */
+    void clear() {
+        mFloor = mHead.get();
+    }
+
+}
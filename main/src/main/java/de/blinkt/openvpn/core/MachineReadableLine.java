@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+/**
+ * machine-readable-output格式控制台行的解析器, 逐字符扫描, 不使用正则, 不分配对象
+ * <p>
+ * 1380308330.240114 18000002 Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'
+ * <p>
+ * 格式为OpenVPN的"%lu.%06lu %x %s", 可重复用于解析不同的行, 只能在一个线程中使用
+ */
+class MachineReadableLine {
+
+    private long mSeconds;
+    private int mMicros;
+    private int mFlags;
+    private int mMessageStart;
+
+    /**
+     * @return 是否是machine-readable-output格式的行; 返回false时其他getter的值无意义
+     */
+    boolean parse(@NonNull CharSequence line) {
+        int length = line.length();
+        int pos = 0;
+
+        // 秒
+        long seconds = 0;
+        int start = pos;
+        while (pos < length && pos - start < 18) {
+            int digit = line.charAt(pos) - '0';
+            if (digit < 0 || digit > 9)
+                break;
+            seconds = seconds * 10 + digit;
+            ++pos;
+        }
+        if (pos == start || pos >= length || line.charAt(pos) != '.')
+            return false;
+        ++pos;
+
+        // 微秒
+        int micros = 0;
+        start = pos;
+        while (pos < length && pos - start < 6) {
+            int digit = line.charAt(pos) - '0';
+            if (digit < 0 || digit > 9)
+                break;
+            micros = micros * 10 + digit;
+            ++pos;
+        }
+        if (pos == start || pos >= length || line.charAt(pos) != ' ')
+            return false;
+        // 不足6位时按小数补齐
+        for (int i = pos - start; i < 6; ++i)
+            micros *= 10;
+        ++pos;
+
+        // 十六进制标志
+        int flags = 0;
+        start = pos;
+        while (pos < length && pos - start < 8) {
+            int digit = hexDigit(line.charAt(pos));
+            if (digit < 0)
+                break;
+            flags = (flags << 4) | digit;
+            ++pos;
+        }
+        if (pos == start || pos >= length || line.charAt(pos) != ' ')
+            return false;
+
+        mSeconds = seconds;
+        mMicros = micros;
+        mFlags = flags;
+        mMessageStart = pos + 1;
+        return true;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    long getSeconds() {
+        return mSeconds;
+    }
+
+    int getMicros() {
+        return mMicros;
+    }
+
+    /**
+     * @return OpenVPN记录这一行的时间, 毫秒
+     */
+    long getTimeMillis() {
+        return mSeconds * 1000 + mMicros / 1000;
+    }
+
+    /**
+     * @return M_FATAL, M_NONFATAL, M_WARN, M_DEBUG等标志
+     */
+    int getFlags() {
+        return mFlags;
+    }
+
+    int getMessageStart() {
+        return mMessageStart;
+    }
+
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.net.LocalSocket;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 管理接口命令写线程; 同一时刻排队的命令合并为一次写操作, 每个命令按顺序对应一个SUCCESS:/ERROR:应答
+ */
+public class ManagementCommandWriter {
+
+    /**
+     * 命令的写出目标, 通常是管理接口的LocalSocket
+     */
+    public interface Channel {
+        void write(@NonNull byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * 设置随下一次写操作发送的文件描述符, null表示不再发送
+         */
+        void setFileDescriptorsForSend(@Nullable FileDescriptor[] fds) throws IOException;
+    }
+
+    @NonNull
+    public static Channel socketChannel(@NonNull LocalSocket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        return new Channel() {
+            @Override
+            public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                out.flush();
+            }
+
+            @Override
+            public void setFileDescriptorsForSend(@Nullable FileDescriptor[] fds) {
+                socket.setFileDescriptorsForSend(fds);
+            }
+        };
+    }
+
+    /**
+     * 一条管理命令; 写出后等待OpenVPN的应答, 应答行(去掉"SUCCESS: "/"ERROR: "前缀)作为结果
+     */
+    public static class Command implements Future<String> {
+
+        private final String mText;
+        private final FileDescriptor[] mFds;
+        // 写出(或确定无法写出)后由写线程关闭
+        private Closeable mCloseAfterWrite;
+        private final CountDownLatch mWritten = new CountDownLatch(1);
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private final long mSubmitTime = System.nanoTime();
+        private volatile long mWriteTime;
+        private volatile long mReplyTime;
+        private volatile boolean mSent;
+        private volatile boolean mSuccess;
+        private volatile String mReply;
+
+        Command(@NonNull String text, @Nullable FileDescriptor[] fds, @Nullable Closeable closeAfterWrite) {
+            mText = text;
+            mFds = fds;
+            mCloseAfterWrite = closeAfterWrite;
+        }
+
+        @NonNull
+        public String getText() {
+            return mText;
+        }
+
+        /**
+         * @return 命令已写到socket
+         */
+        public boolean isSent() {
+            return mSent;
+        }
+
+        /**
+         * @return 收到SUCCESS应答; 未完成, 收到ERROR应答或连接已关闭时返回false
+         */
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        public long getSubmitTime() {
+            return mSubmitTime;
+        }
+
+        /**
+         * @return 写出时间(System.nanoTime()), 未写出时为0
+         */
+        public long getWriteTime() {
+            return mWriteTime;
+        }
+
+        /**
+         * @return 收到应答的时间(System.nanoTime()), 未收到时为0
+         */
+        public long getReplyTime() {
+            return mReplyTime;
+        }
+
+        /**
+         * 等待命令写出(或写失败)
+         * @return true 命令已写到socket
+         */
+        public boolean awaitWritten(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+            return mWritten.await(timeout, unit) && mSent;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        @Override
+        public String get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit))
+                throw new TimeoutException(mText.trim());
+            return result();
+        }
+
+        private String result() throws ExecutionException {
+            if (!mSuccess)
+                throw new ExecutionException(new IOException(mReply == null ? "management connection closed" : mReply));
+            return mReply;
+        }
+
+        private void written(boolean sent) {
+            mSent = sent;
+            mWriteTime = System.nanoTime();
+            if (mCloseAfterWrite != null) {
+                try {
+                    mCloseAfterWrite.close();
+                } catch (IOException ignored) {
+                }
+                mCloseAfterWrite = null;
+            }
+            mWritten.countDown();
+        }
+
+        private void complete(boolean success, @Nullable String reply) {
+            mSuccess = success;
+            mReply = reply;
+            mReplyTime = System.nanoTime();
+            mDone.countDown();
+        }
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final Channel mChannel;
+    private final Thread mThread;
+
+    // mQueue, mClosed 使用需持有mQueue锁
+    private final ArrayDeque<Command> mQueue = new ArrayDeque<>();
+    private boolean mClosed = false;
+
+    // 已写出, 等待应答的命令; 使用需持有mAwaitingReply锁
+    private final ArrayDeque<Command> mAwaitingReply = new ArrayDeque<>();
+
+    // 以下仅在写线程中使用
+    private final ArrayDeque<Command> mBatch = new ArrayDeque<>();
+    private final CharsetEncoder mEncoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer mBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    public ManagementCommandWriter(@NonNull String name, @NonNull Channel channel) {
+        mChannel = channel;
+        mThread = new Thread(this::writeLoop, name);
+        mThread.setDaemon(true);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * @return 排队的命令; 已关闭时返回null
+     */
+    @Nullable
+    public Command submit(@NonNull String cmd) {
+        return submit(cmd, null);
+    }
+
+    /**
+     * @param fds 随命令一起发送的文件描述符, 这样的命令单独写出
+     */
+    @Nullable
+    public Command submit(@NonNull String cmd, @Nullable FileDescriptor[] fds) {
+        return submit(cmd, fds, null);
+    }
+
+    /**
+     * @param closeAfterWrite 描述符的所有者; 命令写出, 写失败或写线程停止后由写线程关闭,
+     *                        调用方等待超时也不能自己关闭. 返回null时未被接管
+     */
+    @Nullable
+    public Command submit(@NonNull String cmd, @Nullable FileDescriptor[] fds, @Nullable Closeable closeAfterWrite) {
+        Command command = new Command(cmd, fds, closeAfterWrite);
+        synchronized (mQueue) {
+            if (mClosed)
+                return null;
+            mQueue.addLast(command);
+            mQueue.notify();
+        }
+        return command;
+    }
+
+    /**
+     * 一组命令原子地排队, 保证合并为一次写操作
+     */
+    @Nullable
+    public Command[] submitAll(@NonNull String... cmds) {
+        Command[] commands = new Command[cmds.length];
+        for (int i = 0; i < cmds.length; ++i)
+            commands[i] = new Command(cmds[i], null, null);
+
+        synchronized (mQueue) {
+            if (mClosed)
+                return null;
+            for (Command command : commands)
+                mQueue.addLast(command);
+            mQueue.notify();
+        }
+        return commands;
+    }
+
+    /**
+     * 收到应答行(SUCCESS:/ERROR:/END), 完成最早写出的命令; 命令在写之前就进入等待队列,
+     * 所以等待队列为空时收到的应答不属于任何已发出的命令, 丢弃而不匹配给之后写出的命令
+     * @return 对应的命令; 没有等待应答的命令时返回null
+     */
+    @Nullable
+    public Command onReply(boolean success, @NonNull String reply) {
+        Command command;
+        synchronized (mAwaitingReply) {
+            command = mAwaitingReply.pollFirst();
+        }
+        if (command != null)
+            command.complete(success, reply);
+        return command;
+    }
+
+    /**
+     * 停止写线程, 尚未写出和等待应答的命令都以失败结束
+     */
+    public void close() {
+        synchronized (mQueue) {
+            mClosed = true;
+            mQueue.notify();
+        }
+        mThread.interrupt();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                synchronized (mQueue) {
+                    while (mQueue.isEmpty() && !mClosed)
+                        mQueue.wait();
+                    if (mClosed)
+                        break;
+                    mBatch.addAll(mQueue);
+                    mQueue.clear();
+                }
+                writeBatch();
+            }
+
+        } catch (InterruptedException ignored) {
+            // closed
+        }
+
+        synchronized (mQueue) {
+            mClosed = true;
+            mBatch.addAll(mQueue);
+            mQueue.clear();
+        }
+        synchronized (mAwaitingReply) {
+            mBatch.addAll(mAwaitingReply);
+            mAwaitingReply.clear();
+        }
+        for (Command command : mBatch) {
+            command.written(command.isSent());
+            command.complete(false, null);
+        }
+        mBatch.clear();
+    }
+
+    private void writeBatch() {
+        while (!mBatch.isEmpty()) {
+            // 带文件描述符的命令必须单独写出, 不能把描述符附加到其他命令上
+            int count = 0;
+            mBuffer.clear();
+            for (Command command : mBatch) {
+                if (command.mFds != null && count > 0)
+                    break;
+                encode(command.mText);
+                ++count;
+                if (command.mFds != null)
+                    break;
+            }
+
+            Command first = mBatch.peekFirst();
+            synchronized (mAwaitingReply) {
+                int i = 0;
+                for (Command command : mBatch) {
+                    if (i++ == count)
+                        break;
+                    mAwaitingReply.addLast(command);
+                }
+            }
+
+            boolean sent = write(first.mFds);
+            if (!sent)
+                resetAwaitingReply();
+            for (int i = 0; i < count; ++i)
+                mBatch.pollFirst().written(sent);
+        }
+    }
+
+    /**
+     * 写失败说明连接已断开, 之前写出的命令也不会再有应答; 包括这次写失败的命令在内全部以失败结束,
+     * 避免之后的应答按顺序错配给这些命令
+     */
+    private void resetAwaitingReply() {
+        Command[] pending;
+        synchronized (mAwaitingReply) {
+            pending = mAwaitingReply.toArray(new Command[0]);
+            mAwaitingReply.clear();
+        }
+        for (Command command : pending)
+            command.complete(false, null);
+    }
+
+    private boolean write(@Nullable FileDescriptor[] fds) {
+        try {
+            if (fds != null)
+                mChannel.setFileDescriptorsForSend(fds);
+            try {
+                mChannel.write(mBuffer.array(), 0, mBuffer.position());
+            } finally {
+                // LocalSocket会在之后的每次写操作中都发送这些描述符, 必须清除
+                if (fds != null)
+                    mChannel.setFileDescriptorsForSend(null);
+            }
+            return true;
+
+        } catch (IOException ex) {
+            // Ignore socket stack traces
+            return false;
+        }
+    }
+
+    private void encode(@NonNull String text) {
+        CharBuffer chars = CharBuffer.wrap(text);
+        mEncoder.reset();
+        while (true) {
+            CoderResult result = mEncoder.encode(chars, mBuffer, true);
+            if (result.isUnderflow())
+                result = mEncoder.flush(mBuffer);
+            if (result.isOverflow()) {
+                ByteBuffer buffer = ByteBuffer.allocate(mBuffer.capacity() * 2);
+                mBuffer.flip();
+                buffer.put(mBuffer);
+                mBuffer = buffer;
+            } else {
+                break;
+            }
+        }
+    }
+
+}
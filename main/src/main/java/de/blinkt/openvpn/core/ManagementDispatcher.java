@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 按行前缀(">LOG:", ">BYTECOUNT:", "SUCCESS:" ...)把管理接口的行分发给对应的处理器
+ * <p>
+ * 前缀表按首字节预先分组并按长度降序排列, 分发一行只比较少量前缀字节, 不分配对象
+ */
+public class ManagementDispatcher {
+
+    public interface Handler {
+        /**
+         * @param line 当前行, 仅在回调期间有效
+         * @param argStart 参数起始位置(前缀之后)
+         */
+        void handle(@NonNull LineView line, int argStart);
+    }
+
+    private static class Entry {
+        final byte[] prefix;
+        final Handler handler;
+
+        Entry(@NonNull byte[] prefix, @NonNull Handler handler) {
+            this.prefix = prefix;
+            this.handler = handler;
+        }
+    }
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private final Entry[][] mTable = new Entry[256][];
+    private Handler mDefaultHandler;
+
+    public ManagementDispatcher() {
+        Arrays.fill(mTable, NO_ENTRIES);
+    }
+
+    public ManagementDispatcher register(@NonNull String prefix, @NonNull Handler handler) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length == 0)
+            throw new IllegalArgumentException("empty prefix");
+
+        int slot = bytes[0] & 0xff;
+        Entry[] entries = Arrays.copyOf(mTable[slot], mTable[slot].length + 1);
+        entries[entries.length - 1] = new Entry(bytes, handler);
+        // 最长前缀优先
+        Arrays.sort(entries, (a, b) -> b.prefix.length - a.prefix.length);
+        mTable[slot] = entries;
+        return this;
+    }
+
+    /**
+     * 没有匹配前缀的行交给默认处理器, argStart为0
+     */
+    public ManagementDispatcher setDefaultHandler(@NonNull Handler handler) {
+        mDefaultHandler = handler;
+        return this;
+    }
+
+    /**
+     * @return true 找到了匹配的前缀
+     */
+    public boolean dispatch(@NonNull LineView line) {
+        if (line.length() > 0) {
+            for (Entry entry : mTable[line.byteAt(0) & 0xff]) {
+                if (line.startsWith(entry.prefix)) {
+                    entry.handler.handle(line, entry.prefix.length);
+                    return true;
+                }
+            }
+        }
+
+        if (mDefaultHandler != null)
+            mDefaultHandler.handle(line, 0);
+        return false;
+    }
+
+}
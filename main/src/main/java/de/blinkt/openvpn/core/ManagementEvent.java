@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 管理接口通知(>STATE:, >BYTECOUNT:, >NEED-OK: ...)解析后的结构化事件, 不可变, 可在线程间共享
+ */
+public abstract class ManagementEvent {
+
+    // System.currentTimeMillis(), 收到这一行的时间
+    public final long receivedTime = System.currentTimeMillis();
+
+    private ManagementEvent() {
+    }
+
+    /**
+     * >STATE:{TIME},{STATE},{MESSAGE}...
+     */
+    public static final class StateEvent extends ManagementEvent {
+        // OpenVPN给出的时间(秒), 无法解析时为0
+        public final long time;
+        @NonNull
+        public final String state;
+        @NonNull
+        public final String message;
+
+        public StateEvent(long time, @NonNull String state, @NonNull String message) {
+            this.time = time;
+            this.state = state;
+            this.message = message;
+        }
+
+        public int getLevel() {
+            return ConnectionStatus.getLevel(state);
+        }
+    }
+
+    /**
+     * >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
+     */
+    public static final class ByteCountEvent extends ManagementEvent {
+        public final long in;
+        public final long out;
+
+        public ByteCountEvent(long in, long out) {
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    /**
+     * >NEED-OK:Need '{NEEDED}' confirmation MSG:{EXTRA}
+     */
+    public static final class NeedOkEvent extends ManagementEvent {
+        @NonNull
+        public final String needed;
+        @NonNull
+        public final String extra;
+
+        public NeedOkEvent(@NonNull String needed, @NonNull String extra) {
+            this.needed = needed;
+            this.extra = extra;
+        }
+    }
+
+    /**
+     * >PASSWORD:Need '{NEEDED}' ... 或 >PASSWORD:Verification Failed: '{NEEDED}' ...
+     */
+    public static final class PasswordEvent extends ManagementEvent {
+        @Nullable
+        public final String needed;
+        public final boolean verificationFailed;
+        @NonNull
+        public final String argument;
+
+        public PasswordEvent(@Nullable String needed, boolean verificationFailed, @NonNull String argument) {
+            this.needed = needed;
+            this.verificationFailed = verificationFailed;
+            this.argument = argument;
+        }
+    }
+
+    /**
+     * >INFOMSG:{MESSAGE}
+     */
+    public static final class InfoMsgEvent extends ManagementEvent {
+        @NonNull
+        public final String message;
+
+        public InfoMsgEvent(@NonNull String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * >LOG:{TIME},{LEVEL},{MESSAGE}
+     */
+    public static final class LogEvent extends ManagementEvent {
+        // OpenVPN给出的时间(秒), 无法解析时为0
+        public final long time;
+        @NonNull
+        public final LogLevel level;
+        @NonNull
+        public final String message;
+
+        public LogEvent(long time, @NonNull LogLevel level, @NonNull String message) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 单生产者(管理接口读线程), 多消费者的无锁环形缓冲区
+ * <p>
+ * 生产者从不等待消费者; 每个订阅者有自己的读位置, 落后超过一圈时跳过被覆盖的事件并计入丢失数
+ */
+public class ManagementEventRing {
+
+    private final AtomicReferenceArray<ManagementEvent> mSlots;
+    private final int mMask;
+    // 下一个要发布的序号, 小于它的事件都已发布
+    private final AtomicLong mCursor = new AtomicLong();
+    private final AtomicInteger mSubscribers = new AtomicInteger();
+    private final AtomicInteger mWaiters = new AtomicInteger();
+    private final Object mWaitLock = new Object();
+
+    /**
+     * @param capacity 向上取整为2的幂
+     */
+    public ManagementEventRing(int capacity) {
+        int size = 2;
+        while (size < capacity)
+            size <<= 1;
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * 生产者据此跳过构造事件对象
+     */
+    public boolean hasSubscribers() {
+        return mSubscribers.get() > 0;
+    }
+
+    /**
+     * 只能由单个生产者线程调用; 新的管理线程只在旧的停止后才启动
+     */
+    public void publish(@NonNull ManagementEvent event) {
+        long sequence = mCursor.get();
+        mSlots.set((int) (sequence & mMask), event);
+        mCursor.set(sequence + 1);
+
+        if (mWaiters.get() > 0) {
+            synchronized (mWaitLock) {
+                mWaitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 从下一个发布的事件开始订阅, 不再使用时必须close()
+     */
+    @NonNull
+    public Subscription subscribe() {
+        mSubscribers.incrementAndGet();
+        return new Subscription(mCursor.get());
+    }
+
+    public final class Subscription implements AutoCloseable {
+
+        private long mNext;
+        private long mLost;
+        private boolean mClosed;
+
+        private Subscription(long next) {
+            mNext = next;
+        }
+
+        /**
+         * @return 下一个事件, 没有新事件时返回null
+         */
+        @Nullable
+        public ManagementEvent poll() {
+            while (true) {
+                long cursor = mCursor.get();
+                if (mNext >= cursor)
+                    return null;
+
+                // 生产者正在写序号为cursor的槽位, 最多能读到前capacity - 1个事件
+                if (cursor - mNext >= capacity()) {
+                    // 被生产者追上了一圈
+                    mLost += cursor - capacity() + 1 - mNext;
+                    mNext = cursor - capacity() + 1;
+                }
+
+                ManagementEvent event = mSlots.get((int) (mNext & mMask));
+                // 读取期间这个槽位可能已被覆盖, 重新检查
+                if (mCursor.get() - mNext >= capacity())
+                    continue;
+
+                ++mNext;
+                return event;
+            }
+        }
+
+        /**
+         * 等待下一个事件
+         * @return 下一个事件, 超时返回null
+         */
+        @Nullable
+        public ManagementEvent take(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+            ManagementEvent event = poll();
+            if (event != null)
+                return event;
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            mWaiters.incrementAndGet();
+            try {
+                while (true) {
+                    synchronized (mWaitLock) {
+                        event = poll();
+                        if (event != null)
+                            return event;
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            return null;
+                        TimeUnit.NANOSECONDS.timedWait(mWaitLock, remaining);
+                    }
+                }
+            } finally {
+                mWaiters.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return 因为读得太慢而跳过的事件数
+         */
+        public long getLost() {
+            return mLost;
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mSubscribers.decrementAndGet();
+            }
+        }
+    }
+
+}
@@ -97,9 +97,17 @@ public class OpenVPNLaunchHelper {
     }
 
     public static void startOpenVpn(@NonNull Context context, @NonNull VpnProfile profile) {
+        startOpenVpn(context, profile, System.nanoTime());
+    }
+
+    /**
+     * @param launchTime 用户发起连接的时间(System.nanoTime()), 用于统计连接耗时
+     */
+    public static void startOpenVpn(@NonNull Context context, @NonNull VpnProfile profile, long launchTime) {
         Intent intent = new Intent(context, OpenVPNService.class);
         intent.putExtra(VpnProfile.EXTRA_PROFILE_UUID, profile.getUUIDString());
         intent.putExtra(VpnProfile.EXTRA_PROFILE_VERSION, profile.getVersion());
+        intent.putExtra(ConnectPhaseTracker.EXTRA_LAUNCH_TIME, launchTime);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             // noinspection NewApi
@@ -10,7 +10,6 @@ import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.ParcelFileDescriptor;
 import android.security.KeyChain;
 import android.system.Os;
@@ -24,6 +23,8 @@ import androidx.annotation.Nullable;
 import de.blinkt.xp.openvpn.BuildConfig;
 import de.blinkt.xp.openvpn.R;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,11 +35,14 @@ import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Cipher;
 
@@ -51,33 +55,53 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
 
     private static final String TAG = "OpenVPNManagement";
     private static final List<OpenVPNManagementThread> active = new ArrayList<>();
-    private final Handler mResumeHandler;
     private final VpnProfile mProfile;
     private final OpenVPNService mOpenVPNService;
     private final LinkedList<FileDescriptor> mFDList = new LinkedList<>();
     private LocalSocket mSocket;
+    private volatile ManagementCommandWriter mWriter;
     private LocalServerSocket mServerSocket;
     private LocalSocket mServerSocketLocal;
-    private boolean mWaitingForRelease = false;
-    private long mLastHoldRelease = 0;
+    // hold release 在单独的线程中延迟执行, 读线程和主线程都不等待
+    private final ScheduledExecutorService mHoldExecutor;
+    private final HoldReleaseBackoff mHoldBackoff;
+    // mPendingRelease 使用需持有mHoldExecutor锁
+    private volatile boolean mWaitingForRelease = false;
+    private ScheduledFuture<?> mPendingRelease;
 
     private PauseReason lastPauseReason = PauseReason.noNetwork;
     private PausedStateCallback mPauseCallback;
     private volatile boolean mShuttingDown = false;
 
-    private Runnable mResumeHoldRunnable = () -> {
-        if (shouldBeRunning()) {
-            releaseHoldCmd();
-        }
-    };
-
     private transient Connection mCurrentProxyConnection;
 
+    // System.nanoTime()
+    private long mBindStartTime;
+    private long mBoundTime;
+
+    // 以下仅在管理接口读线程中使用
+    private final LineView mLine = new LineView();
+    private final ManagementDispatcher mDispatcher = createDispatcher();
+    private final int[] mFields = new int[16];
+
     public OpenVPNManagementThread(@NonNull String name, @NonNull VpnProfile profile, @NonNull OpenVPNService service) {
+        this(name, profile, service, new HoldReleaseBackoff(), Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "OpenVPNHoldRelease");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * @param holdExecutor 执行延迟的hold release, 测试时可以和backoff的时钟一起手动推进
+     */
+    OpenVPNManagementThread(@NonNull String name, @NonNull VpnProfile profile, @NonNull OpenVPNService service,
+            @NonNull HoldReleaseBackoff backoff, @NonNull ScheduledExecutorService holdExecutor) {
         super(name);
         mProfile = profile;
         mOpenVPNService = service;
-        mResumeHandler = new Handler(service.getMainLooper());
+        mHoldBackoff = backoff;
+        mHoldExecutor = holdExecutor;
     }
 
     @Override
@@ -122,26 +146,36 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
         managmentCommand("cr-response " + response + "\n");
     }
 
+    /**
+     * 绑定管理接口socket; OpenVPN通过配置中的"management <cacheDir>/mgmtsocket unix"连接,
+     * 只能使用文件系统路径, 不能使用abstract namespace
+     */
     public boolean openManagementInterface(@NonNull Context c) {
-        String socketName = c.getCacheDir().getAbsolutePath() + "/" + "mgmtsocket";
+        mBindStartTime = System.nanoTime();
+        File socketFile = new File(c.getCacheDir(), "mgmtsocket");
         // The mServerSocketLocal is transferred to the LocalServerSocket, ignore warning
         mServerSocketLocal = new LocalSocket();
 
-        // Could take a while to open connection
-        int tries = 8;
-
+        int tries = 3;
         while (tries > 0 && !mServerSocketLocal.isBound()) {
+            // 上次异常退出留下的socket文件会导致bind失败(EADDRINUSE), 旧的管理线程已停止, 直接删除
+            if (socketFile.exists() && !socketFile.delete())
+                VpnStatus.logWarning("Could not delete stale management socket " + socketFile);
+
             try {
-                mServerSocketLocal.bind(new LocalSocketAddress(socketName, LocalSocketAddress.Namespace.FILESYSTEM));
+                mServerSocketLocal.bind(new LocalSocketAddress(socketFile.getAbsolutePath(), LocalSocketAddress.Namespace.FILESYSTEM));
             } catch (IOException ex) {
-                // wait 300 ms before retrying
-                OpenVPNUtils.sleep(300);
+                // wait 50 ms before retrying
+                OpenVPNUtils.sleep(50);
             }
             tries--;
         }
 
         try {
             mServerSocket = new LocalServerSocket(mServerSocketLocal.getFileDescriptor());
+            mBoundTime = System.nanoTime();
+            VpnStatus.logDebug(String.format(Locale.US, "Management socket bound in %.1f ms",
+                (mBoundTime - mBindStartTime) / 1e6));
             return true;
         } catch (IOException ex) {
             VpnStatus.logThrowable(ex);
@@ -150,11 +184,22 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
         return false;
     }
 
+    /**
+     * 关闭尚未开始accept的管理接口(启动OpenVPN失败时)
+     */
+    public void closeManagementInterface() {
+        try {
+            if (mServerSocket != null)
+                mServerSocket.close();
+            else if (mServerSocketLocal != null)
+                mServerSocketLocal.close();
+        } catch (IOException ex) {
+            // Ignore close error on already closed socket
+        }
+    }
+
     @Override
     public void run() {
-        byte[] buffer = new byte[2048];
-        String pendingInput = "";
-
         synchronized (active) {
             active.add(this);
         }
@@ -163,6 +208,9 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
             // Wait for a client to connect
             mSocket = mServerSocket.accept();
             InputStream instream = mSocket.getInputStream();
+            logAcceptLatency();
+            ManagementCommandWriter.Channel channel = ManagementCommandWriter.socketChannel(mSocket);
+            ConnectPhaseTracker.mark(ConnectPhaseTracker.MANAGEMENT_ACCEPTED);
 
             // Close the management socket after client connected
             try {
@@ -173,27 +221,7 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
                 VpnStatus.logThrowable(e);
             }
 
-            managmentCommand("version 3\n");
-
-            while (true) {
-                int numbytesread = instream.read(buffer);
-                if (numbytesread == -1)
-                    break;
-
-                try {
-                    FileDescriptor[] fds = mSocket.getAncillaryFileDescriptors();
-                    if (fds != null) {
-                        Collections.addAll(mFDList, fds);
-                    }
-
-                } catch (IOException e) {
-                    VpnStatus.logThrowable("Error reading fds from socket", e);
-                }
-
-                String input = new String(buffer, 0, numbytesread, StandardCharsets.UTF_8);
-                pendingInput += input;
-                pendingInput = processInput(pendingInput);
-            }
+            processSession(instream, channel);
 
         } catch (Exception ex) {
             if (!ex.getMessage().equals("socket closed") && !ex.getMessage().equals("Connection reset by peer")) {
@@ -205,126 +233,186 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
                 active.remove(this);
             }
 
+            mHoldExecutor.shutdownNow();
+
             VpnStatus.updateStatus("NOPROCESS", R.string.state_noprocess);
         }
     }
 
+    /**
+     * 处理一个已连接的管理接口会话, 直到对端关闭连接; 测试时可以直接连到模拟的OpenVPN上
+     */
+    void processSession(@NonNull InputStream instream, @NonNull ManagementCommandWriter.Channel channel) throws IOException {
+        LineFramer framer = new LineFramer(this::processLine);
+        mWriter = new ManagementCommandWriter(getName() + "-writer", channel);
+        mWriter.start();
+
+        try {
+            managmentCommand("version 3\n");
+
+            while (true) {
+                int numbytesread = framer.fill(instream);
+                if (numbytesread == -1)
+                    break;
+
+                // 先收取文件描述符, 再处理PROTECTFD等命令行
+                if (mSocket != null) {
+                    try {
+                        FileDescriptor[] fds = mSocket.getAncillaryFileDescriptors();
+                        if (fds != null) {
+                            Collections.addAll(mFDList, fds);
+                        }
+
+                    } catch (IOException e) {
+                        VpnStatus.logThrowable("Error reading fds from socket", e);
+                    }
+                }
+
+                framer.processLines();
+            }
+
+        } finally {
+            mWriter.close();
+        }
+    }
+
+    private void logAcceptLatency() {
+        long acceptedTime = System.nanoTime();
+        VpnStatus.logDebug(String.format(Locale.US, "Management client connected %.1f ms after bind (%.1f ms after bind start)",
+            (acceptedTime - mBoundTime) / 1e6, (acceptedTime - mBindStartTime) / 1e6));
+        CommandLatencyStats.getBindToAccept().record((acceptedTime - mBoundTime) / 1000);
+    }
+
     /**
      * @param cmd command to write to management socket
-     * @return true if command have been sent
+     * @return true if command have been queued
      */
     public boolean managmentCommand(@NonNull String cmd) {
+        return sendCommand(cmd, null) != null;
+    }
+
+    /**
+     * 命令由写线程异步写出, 可以通过返回的Command等待写出或OpenVPN的应答
+     * @param fds 随命令一起发送的文件描述符
+     * @return 排队的命令; 管理接口未连接或已关闭时返回null
+     */
+    @Nullable
+    public ManagementCommandWriter.Command sendCommand(@NonNull String cmd, @Nullable FileDescriptor[] fds) {
+        return sendCommand(cmd, fds, null);
+    }
+
+    /**
+     * @param closeAfterWrite 写出后由写线程关闭, 返回null时仍由调用方负责
+     */
+    @Nullable
+    private ManagementCommandWriter.Command sendCommand(@NonNull String cmd, @Nullable FileDescriptor[] fds,
+                                                       @Nullable Closeable closeAfterWrite) {
+        logCommand(cmd);
+        ManagementCommandWriter writer = mWriter;
+        return writer == null ? null : writer.submit(cmd, fds, closeAfterWrite);
+    }
+
+    /**
+     * 一组命令合并为一次写操作
+     */
+    private boolean managmentCommands(@NonNull String... cmds) {
+        for (String cmd : cmds)
+            logCommand(cmd);
+        ManagementCommandWriter writer = mWriter;
+        return writer != null && writer.submitAll(cmds) != null;
+    }
+
+    private void logCommand(@NonNull String cmd) {
         String message = cmd.trim();
         if (!BuildConfig.DEBUG) {
             if (TextUtils.indexOf(cmd, "password") == 0) {
                 int idx = cmd.lastIndexOf(' ');
                 message = message.substring(0, idx) + "  ********";
+            } else if (TextUtils.indexOf(cmd, "pk-sig") == 0) {
+                message = "pk-sig";
             }
         }
         VpnStatus.logOpenVPNManagement(LogLevel.INFO, message);
+    }
 
+    void processLine(@NonNull byte[] buffer, int offset, int length) {
         try {
-            if (mSocket != null && mSocket.getOutputStream() != null) {
-                mSocket.getOutputStream().write(cmd.getBytes());
-                mSocket.getOutputStream().flush();
-                return true;
-            }
+            mDispatcher.dispatch(mLine.set(buffer, offset, length));
 
-        } catch (IOException ex) {
-            // Ignore socket stack traces
+        } catch (Exception ex) {
+            if (BuildConfig.DEBUG) {
+                // 调试时，捕获异常, 防止进程终止 (日志能发送到前端, 也方便attach调试)
+                VpnStatus.logThrowable(ex);
+                OpenVPNUtils.sleepForDebug(30000);
+            }
+            throw ex;
         }
-
-        return false;
     }
 
-    private String processInput(@NonNull String pendingInput) {
-        while (pendingInput.contains("\n")) {
-            String[] tokens = pendingInput.split("\\r?\\n", 2);
-
-            try {
-                processCommand(tokens[0]);
-
-            } catch (Exception ex) {
-                if (BuildConfig.DEBUG) {
-                    // 调试时，捕获异常, 防止进程终止 (日志能发送到前端, 也方便attach调试)
-                    VpnStatus.logThrowable(ex);
-                    OpenVPNUtils.sleepForDebug(30000);
+    @NonNull
+    private ManagementDispatcher createDispatcher() {
+        // >NEED-OK:Need 'PROTECTFD' confirmation MSG:protect_fd_nonlocal
+        return new ManagementDispatcher()
+            .register(">LOG:", this::processLogMessage)
+            .register(">BYTECOUNT:", this::processByteCount)
+            .register(">STATE:", this::processStatus)
+            .register(">NEED-OK:", this::processNeedCommand)
+            .register(">HOLD:", this::handleHold)
+            .register(">PASSWORD:", (line, arg) -> processPWCommand(line.substring(arg)))
+            .register(">PROXY:", this::processProxyCMD)
+            .register(">PK_SIGN:", this::processPK_SignCommand)
+            .register(">INFOMSG:", (line, arg) -> processInfoMessage(line.substring(arg)))
+            .register(">INFO:", (line, arg) -> {
+                /* Ignore greeting from management */
+                VpnStatus.logOpenVPNManagement(LogLevel.INFO, line.toString());
+            })
+            .register("PROTECTFD:", (line, arg) -> {
+                VpnStatus.logOpenVPNManagement(LogLevel.INFO, line.toString());
+                FileDescriptor fdtoprotect = mFDList.pollFirst();
+                if (fdtoprotect != null) {
+                    protectFileDescriptor(fdtoprotect);
                 }
-                throw ex;
-
-            } finally {
-                if (tokens.length == 1) {
-                    // No second part, newline was at the end
-                    pendingInput = "";
-                } else {
-                    pendingInput = tokens[1];
+            })
+            .register("SUCCESS:", (line, arg) -> processReply(line, arg, true))
+            .register("ERROR:", (line, arg) -> processReply(line, arg, false))
+            .register("OpenVPN Version:", (line, arg) -> {
+                /* Ignore this kind of message too */
+                VpnStatus.logOpenVPNManagement(LogLevel.INFO, line.toString());
+            })
+            .register("Management Version:", (line, arg) -> {
+                VpnStatus.logOpenVPNManagement(LogLevel.INFO, line.toString());
+            })
+            .register("END", (line, arg) -> {
+                if (line.length() != arg) {
+                    // 以"END"开头, 但不是"END"
+                    processUnrecognized(line, 0);
+                    return;
                 }
-            }
-        }
-
-        return pendingInput;
+                // 多行应答(如version)的结束
+                processReply(line, arg, true);
+            })
+            .setDefaultHandler(this::processUnrecognized);
     }
 
-    private void processCommand(@NonNull String command) {
-        // >NEED-OK:Need 'PROTECTFD' confirmation MSG:protect_fd_nonlocal
-        if (command.startsWith(">") && command.contains(":")) {
-            String[] parts = command.split(":", 2);
-            String cmd = parts[0].substring(1);
-            String argument = parts[1];
-
-            switch (cmd) {
-                case "INFO":
-                    VpnStatus.logOpenVPNManagement(LogLevel.INFO, command);
-                    /* Ignore greeting from management */
-                    break;
-                case "PASSWORD":
-                    processPWCommand(argument);
-                    break;
-                case "HOLD":
-                    handleHold(argument);
-                    break;
-                case "NEED-OK":
-                    processNeedCommand(argument);
-                    break;
-                case "BYTECOUNT":
-                    processByteCount(argument);
-                    break;
-                case "STATE":
-                    processStatus(argument);
-                    break;
-                case "PROXY":
-                    processProxyCMD(argument);
-                    break;
-                case "LOG":
-                    processLogMessage(argument);
-                    break;
-                case "PK_SIGN":
-                    processPK_SignCommand(argument);
-                    break;
-                case "INFOMSG":
-                    processInfoMessage(argument);
-                    break;
-                default:
-                    VpnStatus.logOpenVPNManagement(LogLevel.WARNING, command);
-                    VpnStatus.logWarning("MGMT: Got unrecognized command" + command);
-                    Log.w(TAG, "Got unrecognized command" + command);
-                    break;
-            }
+    private void processReply(@NonNull LineView line, int argStart, boolean success) {
+        VpnStatus.logOpenVPNManagement(success ? LogLevel.INFO : LogLevel.WARNING, line.toString());
 
-        } else if (command.startsWith("PROTECTFD:")) {
-            VpnStatus.logOpenVPNManagement(LogLevel.INFO, command);
-            FileDescriptor fdtoprotect = mFDList.pollFirst();
-            if (fdtoprotect != null) {
-                protectFileDescriptor(fdtoprotect);
-            }
-
-        } else if (command.startsWith("SUCCESS:") || command.startsWith("OpenVPN Version:") ||
-                command.startsWith("Management Version:") || command.equals("END")) {
-            VpnStatus.logOpenVPNManagement(LogLevel.INFO, command);
-            /* Ignore this kind of message too */
+        // 每个命令恰好对应一个应答, 按写出顺序匹配
+        ManagementCommandWriter writer = mWriter;
+        if (writer != null) {
+            ManagementCommandWriter.Command command = writer.onReply(success, line.substring(argStart).trim());
+            if (command != null)
+                CommandLatencyStats.record(command);
+        }
+    }
 
+    private void processUnrecognized(@NonNull LineView line, int argStart) {
+        String command = line.toString();
+        VpnStatus.logOpenVPNManagement(LogLevel.WARNING, command);
+        if (command.startsWith(">") && command.contains(":")) {
+            VpnStatus.logWarning("MGMT: Got unrecognized command" + command);
+            Log.w(TAG, "Got unrecognized command" + command);
         } else {
-            VpnStatus.logOpenVPNManagement(LogLevel.WARNING, command);
             Log.w(TAG, "Got unrecognized line from managment" + command);
         }
     }
@@ -352,8 +440,24 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
         }
     }
 
+    /**
+     * 每种通知都先检查, 没有订阅者时不构造事件对象; 不用lambda延迟构造, 捕获参数同样要分配内存
+     */
+    private static boolean wantsEvents() {
+        return VpnStatus.MANAGEMENT_EVENTS.hasSubscribers();
+    }
+
+    /**
+     * 只在管理接口读线程中调用
+     */
+    private static void publishEvent(@NonNull ManagementEvent event) {
+        VpnStatus.MANAGEMENT_EVENTS.publish(event);
+    }
+
     private void processInfoMessage(@NonNull String info) {
         VpnStatus.logOpenVPNManagement(LogLevel.INFO, info);
+        if (wantsEvents())
+            publishEvent(new ManagementEvent.InfoMsgEvent(info));
 
         if (info.startsWith("OPEN_URL:") || info.startsWith("CR_TEXT:")) {
             mOpenVPNService.trigger_sso(info);
@@ -362,75 +466,94 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
         }
     }
 
-    private void processLogMessage(@NonNull String argument) {
+    private void processLogMessage(@NonNull LineView line, int argStart) {
         // 1585365664,D,MANAGEMENT: CMD 'signal SIGINT'
 
         // OpenVPN log_realtime为true时, log_entry_print(...)函数的flags参数为
         // LOG_PRINT_INT_DATE|LOG_PRINT_MSG_FLAGS|LOG_PRINT_LOG_PREFIX|LOG_PRINT_CRLF
 
-        String[] args = argument.split(",", 3);
-        if (args.length != 3)
+        if (line.split(argStart, ',', 3, mFields) != 3)
             return;
 
-        LogLevel level;
-        switch (args[1]) {
-            case "I":
-                level = LogLevel.INFO;
-                break;
-            case "W":
-                level = LogLevel.WARNING;
-                break;
-            case "D":
-                level = LogLevel.DEBUG;
-                break;
-            case "F":
-                level = LogLevel.ERROR;
-                break;
-            default:
-                assert false : "Not a valid log level";
-                level = LogLevel.DEBUG;
-                break;
+        LogLevel level = getLogLevel(line, mFields[2], mFields[3]);
+        String message = line.substring(mFields[4], mFields[5]);
+        VpnStatus.logOpenVPNManagement(level, message);
+        if (wantsEvents())
+            publishEvent(new ManagementEvent.LogEvent(line.parseLong(mFields[0], mFields[1], 0), level, message));
+    }
+
+    static LogLevel getLogLevel(@NonNull LineView line, int start, int end) {
+        if (end - start == 1) {
+            switch (line.charAt(start)) {
+                case 'I':
+                    return LogLevel.INFO;
+                case 'W':
+                    return LogLevel.WARNING;
+                case 'D':
+                    return LogLevel.DEBUG;
+                case 'F':
+                    return LogLevel.ERROR;
+            }
         }
 
-        String message = args[2];
-        VpnStatus.logOpenVPNManagement(level, message);
+        assert false : "Not a valid log level";
+        return LogLevel.DEBUG;
     }
 
     private boolean stopOpenVPN() {
+        // 等待命令写出时不持有active锁; 先向全部连接发出命令再一起等待
+        List<OpenVPNManagementThread> threads;
         synchronized (active) {
-            boolean sendCMD = false;
-            for (OpenVPNManagementThread mt : active) {
-                sendCMD = mt.managmentCommand("signal SIGINT\n");
-                try {
-                    if (mt.mSocket != null)
-                        mt.mSocket.close();
-                } catch (IOException ex) {
-                    // Ignore close error on already closed socket
-                }
+            threads = new ArrayList<>(active);
+        }
+
+        boolean sendCMD = false;
+        ManagementCommandWriter.Command[] commands = new ManagementCommandWriter.Command[threads.size()];
+        for (int i = 0; i < commands.length; ++i) {
+            commands[i] = threads.get(i).sendCommand("signal SIGINT\n", null);
+            sendCMD = commands[i] != null;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < commands.length; ++i) {
+            OpenVPNManagementThread mt = threads.get(i);
+            try {
+                // 命令写出后再关闭socket
+                if (commands[i] != null)
+                    commands[i].awaitWritten(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                if (mt.mSocket != null)
+                    mt.mSocket.close();
+            } catch (IOException ex) {
+                // Ignore close error on already closed socket
             }
-            return sendCMD;
         }
+        return sendCMD;
     }
 
     private boolean shouldBeRunning() {
         return mPauseCallback != null && mPauseCallback.shouldBeRunning();
     }
 
-    private void handleHold(@NonNull String argument) {
-        VpnStatus.logOpenVPNManagement(LogLevel.INFO, argument);
+    private void handleHold(@NonNull LineView line, int argStart) {
+        VpnStatus.logOpenVPNManagement(LogLevel.INFO, line.substring(argStart));
 
         // Waiting for hold release:10
         mWaitingForRelease = true;
+        ConnectPhaseTracker.mark(ConnectPhaseTracker.HOLD);
 
         if (shouldBeRunning()) {
             int waittime = 1;
-            String[] items = argument.split(":");
-            if (items.length > 1)
-                waittime = Integer.parseInt(argument.split(":")[1]);
+            int colon = line.indexOf(':', argStart);
+            if (colon != -1)
+                waittime = line.parseInt(colon + 1, line.length());
             if (waittime > 1) {
                 VpnStatus.updateStatus("CONNECTRETRY", String.valueOf(waittime), R.string.state_waitconnectretry);
             }
-            mResumeHandler.postDelayed(mResumeHoldRunnable, waittime * 1000);
+            scheduleHoldRelease(waittime * 1000L, true);
             VpnStatus.logInfo(R.string.state_waitconnectretry, String.valueOf(waittime));
 
         } else {
@@ -442,24 +565,62 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
         if (!mWaitingForRelease)
             return;
 
-        mWaitingForRelease = false;
-        mResumeHandler.removeCallbacks(mResumeHoldRunnable);
-        if ((System.currentTimeMillis() - mLastHoldRelease) < 5000) {
-            OpenVPNUtils.sleep(2000);
+        long delay = mHoldBackoff.getDelay();
+        if (delay > 0)
+            VpnStatus.logDebug(String.format(Locale.US, "Delaying hold release by %d ms", delay));
+        scheduleHoldRelease(delay, false);
+    }
+
+    /**
+     * 取消尚未执行的hold release, 安排新的; 不阻塞调用线程
+     * @param checkRunning 执行时再检查是否应该运行(OpenVPN要求的等待时间到期时)
+     */
+    private void scheduleHoldRelease(long delay, boolean checkRunning) {
+        synchronized (mHoldExecutor) {
+            cancelHoldRelease();
+            if (mHoldExecutor.isShutdown())
+                return;
+            mPendingRelease = mHoldExecutor.schedule(() -> {
+                if (checkRunning && !shouldBeRunning())
+                    return;
+                if (checkRunning && mHoldBackoff.getDelay() > 0) {
+                    // 重新按退避策略安排
+                    releaseHoldCmd();
+                    return;
+                }
+                sendHoldRelease();
+            }, delay, TimeUnit.MILLISECONDS);
         }
-        mLastHoldRelease = System.currentTimeMillis();
+    }
 
-        managmentCommand("hold release\n");
-        managmentCommand("bytecount " + BYTECOUNT_INTERVAL + "\n");
-        managmentCommand("state on\n");
+    private void cancelHoldRelease() {
+        synchronized (mHoldExecutor) {
+            if (mPendingRelease != null) {
+                mPendingRelease.cancel(false);
+                mPendingRelease = null;
+            }
+        }
     }
 
-    private void processProxyCMD(@NonNull String argument) {
-        VpnStatus.logOpenVPNManagement(LogLevel.INFO, argument);
+    private void sendHoldRelease() {
+        synchronized (mHoldExecutor) {
+            if (!mWaitingForRelease)
+                return;
+            mWaitingForRelease = false;
+            mPendingRelease = null;
+        }
+
+        mHoldBackoff.onRelease();
+        ConnectPhaseTracker.mark(ConnectPhaseTracker.HOLD_RELEASE);
+        managmentCommands("hold release\n", "bytecount " + BYTECOUNT_INTERVAL + "\n", "state on\n");
+    }
+
+    private void processProxyCMD(@NonNull LineView line, int argStart) {
+        VpnStatus.logOpenVPNManagement(LogLevel.INFO, line.substring(argStart));
 
         Connection.ProxyType proxyType = Connection.ProxyType.NONE;
-        String[] args = argument.split(",", 3);
-        int connectionEntryNumber = Integer.parseInt(args[0]) - 1;
+        int nargs = line.split(argStart, ',', 3, mFields);
+        int connectionEntryNumber = line.parseInt(mFields[0], mFields[1]) - 1;
         String proxyport = null;
         String proxyname = null;
         boolean proxyUseAuth = false;
@@ -491,9 +652,8 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
             }
         }
 
-        if (args.length >= 2 && proxyType == Connection.ProxyType.HTTP) {
-            String proto = args[1];
-            if (proto.equals("UDP")) {
+        if (nargs >= 2 && proxyType == Connection.ProxyType.HTTP) {
+            if (line.equals(mFields[2], mFields[3], "UDP")) {
                 proxyname = null;
                 VpnStatus.logInfo("Not using an HTTP proxy since the connection uses UDP");
             }
@@ -515,17 +675,28 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
         }
     }
 
-    private void processStatus(@NonNull String argument) {
-        VpnStatus.logOpenVPNManagement(LogLevel.INFO, argument);
+    private void processStatus(@NonNull LineView line, int argStart) {
+        VpnStatus.logOpenVPNManagement(LogLevel.INFO, line.substring(argStart));
 
         // >STATE:1584344148,EXITING,tls-error,,,,,
         if (!mShuttingDown) {
-            String[] parts = argument.split(",", 3);
-            int resid = ConnectionStatus.getLocalizedStatus(parts[1]);
-            String message = parts[2].replaceFirst("^[,|\\x20|\\t]+", "").trim();
+            if (line.split(argStart, ',', 3, mFields) != 3)
+                return;
+
+            String state = line.substring(mFields[2], mFields[3]);
+            int resid = ConnectionStatus.getLocalizedStatus(state);
+
+            // 跳过开头的',', '|', ' ', '\t'
+            int msgStart = mFields[4];
+            while (msgStart < mFields[5] && ",| \t".indexOf(line.charAt(msgStart)) != -1)
+                ++msgStart;
+            String message = line.substring(msgStart, mFields[5]).trim();
+            if (wantsEvents())
+                publishEvent(new ManagementEvent.StateEvent(line.parseLong(mFields[0], mFields[1], 0), state, message));
 
-            if (ConnectionStatus.getLevel(parts[1]) == ConnectionStatus.LEVEL_CONNECTED) {
-                ConnectionStatus status = new ConnectionStatus(parts[1], message, resid);
+            if (ConnectionStatus.getLevel(state) == ConnectionStatus.LEVEL_CONNECTED) {
+                ConnectPhaseTracker.markStatus(state, ConnectionStatus.LEVEL_CONNECTED);
+                ConnectionStatus status = new ConnectionStatus(state, message, resid);
                 Bundle extra = new Bundle();
 
                 synchronized (VpnStatus.STATUS_LOCK) {
@@ -540,29 +711,35 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
                 VpnStatus.updateStatus(status, extra);
 
             } else {
-                VpnStatus.updateStatus(parts[1], message, resid);
+                VpnStatus.updateStatus(state, message, resid);
             }
         }
     }
 
-    private void processByteCount(@NonNull String argument) {
+    private void processByteCount(@NonNull LineView line, int argStart) {
         // >BYTECOUNT 不要记录到日志(太多了)
         // >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
-        int comma = argument.indexOf(',');
-        long in = Long.parseLong(argument.substring(0, comma));
-        long out = Long.parseLong(argument.substring(comma + 1));
+        int comma = line.indexOf(',', argStart);
+        long in = line.parseLong(argStart, comma);
+        long out = line.parseLong(comma + 1, line.length());
         VpnStatus.updateByteCount(in, out);
+        if (wantsEvents())
+            publishEvent(new ManagementEvent.ByteCountEvent(in, out));
     }
 
-    private void processNeedCommand(@NonNull String argument) {
+    private void processNeedCommand(@NonNull LineView line, int argStart) {
+        String argument = line.substring(argStart);
         VpnStatus.logOpenVPNManagement(LogLevel.INFO, argument);
 
-        int p1 = argument.indexOf('\'');
-        int p2 = argument.indexOf('\'', p1 + 1);
+        int p1 = line.indexOf('\'', argStart);
+        int p2 = line.indexOf('\'', p1 + 1);
+        int colon = line.indexOf(':', p2);
 
-        String needed = argument.substring(p1 + 1, p2);
-        String extra = argument.split(":", 2)[1];
+        String needed = line.substring(p1 + 1, p2);
+        String extra = line.substring(colon + 1);
         String status = "ok";
+        if (wantsEvents())
+            publishEvent(new ManagementEvent.NeedOkEvent(needed, extra));
 
         switch (needed) {
             case "PROTECTFD":
@@ -580,7 +757,8 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
                 break;
 
             case "ROUTE": {
-                String[] routeparts = extra.split(" ");
+                ConnectPhaseTracker.mark(ConnectPhaseTracker.NEED_OK_ROUTE);
+                int nparts = line.split(colon + 1, ' ', 8, mFields);
 
             /*
             buf_printf (&out, "%s %s %s dev %s", network, netmask, gateway, rgi->iface);
@@ -588,34 +766,35 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
             buf_printf (&out, "%s %s %s", network, netmask, gateway);
             */
 
-                if (routeparts.length == 5) {
+                if (nparts == 5) {
                     //if (BuildConfig.DEBUG)
                     //                assertEquals("dev", routeparts[3]);
-                    mOpenVPNService.addRoute(routeparts[0], routeparts[1], routeparts[2], routeparts[4]);
-                } else if (routeparts.length >= 3) {
-                    mOpenVPNService.addRoute(routeparts[0], routeparts[1], routeparts[2], null);
+                    mOpenVPNService.addRoute(field(line, 0), field(line, 1), field(line, 2), field(line, 4));
+                } else if (nparts >= 3) {
+                    mOpenVPNService.addRoute(field(line, 0), field(line, 1), field(line, 2), null);
                 } else {
-                    VpnStatus.logError("Unrecognized ROUTE cmd:" + Arrays.toString(routeparts) + " | " + argument);
+                    VpnStatus.logError("Unrecognized ROUTE cmd:" + extra + " | " + argument);
                 }
                 break;
             }
             case "ROUTE6": {
-                String[] routeparts = extra.split(" ");
-                mOpenVPNService.addRoutev6(routeparts[0], routeparts[1]);
+                line.split(colon + 1, ' ', 8, mFields);
+                mOpenVPNService.addRoutev6(field(line, 0), field(line, 1));
                 break;
             }
 
             case "IFCONFIG": {
-                String[] ifconfigparts = extra.split(" ");
-                int mtu = Integer.parseInt(ifconfigparts[2]);
-                mOpenVPNService.setLocalIP(ifconfigparts[0], ifconfigparts[1], mtu, ifconfigparts[3]);
+                ConnectPhaseTracker.mark(ConnectPhaseTracker.NEED_OK_IFCONFIG);
+                line.split(colon + 1, ' ', 8, mFields);
+                int mtu = line.parseInt(mFields[4], mFields[5]);
+                mOpenVPNService.setLocalIP(field(line, 0), field(line, 1), mtu, field(line, 3));
                 break;
             }
             case "IFCONFIG6": {
-                String[] ifconfig6parts = extra.split(" ");
-                int mtu = Integer.parseInt(ifconfig6parts[1]);
+                line.split(colon + 1, ' ', 8, mFields);
+                int mtu = line.parseInt(mFields[2], mFields[3]);
                 mOpenVPNService.setMtu(mtu);
-                mOpenVPNService.setLocalIPv6(ifconfig6parts[0]);
+                mOpenVPNService.setLocalIPv6(field(line, 0));
                 break;
             }
 
@@ -624,6 +803,7 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
                 status = mOpenVPNService.getTunReopenStatus();
                 break;
             case "OPENTUN":
+                ConnectPhaseTracker.mark(ConnectPhaseTracker.NEED_OK_OPENTUN);
                 if (sendTunFD(needed, extra))
                     return;
                 else
@@ -639,6 +819,14 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
         managmentCommand(cmd);
     }
 
+    /**
+     * @return 上一次LineView.split(...)切出的第index个字段
+     */
+    @NonNull
+    private String field(@NonNull LineView line, int index) {
+        return line.substring(mFields[2 * index], mFields[2 * index + 1]);
+    }
+
     private boolean sendTunFD(@NonNull String needed, @NonNull String extra) {
         if (!extra.equals("tun")) {
             // We only support tun
@@ -651,28 +839,35 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
             return false;
         }
 
+        ManagementCommandWriter.Command command = null;
         try {
             FileDescriptor fdtosend = new FileDescriptor();
             Method setInt = FileDescriptor.class.getDeclaredMethod("setInt$", int.class);
             setInt.invoke(fdtosend, pfd.getFd());
 
             FileDescriptor[] fds = { fdtosend };
-            mSocket.setFileDescriptorsForSend(fds);
 
-            // Trigger a send so we can close the fd on our side of the channel
-            // The API documentation fails to mention that it will not reset the file descriptor to
-            // be send and will happily send the file descriptor on every write ...
+            // Trigger a send so we can close the fd on our side of the channel,
+            // the writer sends this command on its own, resets the descriptors and closes pfd afterwards.
+            // pfd must stay open while the command is still queued, even if we stop waiting for it
             String cmd = String.format("needok '%s' %s\n", needed, "ok");
-            managmentCommand(cmd);
-
-            // Set the FileDescriptor to null to stop this mad behavior
-            mSocket.setFileDescriptorsForSend(null);
-            pfd.close();
-            return true;
+            command = sendCommand(cmd, fds, pfd);
+            return command != null && command.awaitWritten(5, TimeUnit.SECONDS);
 
         } catch (NoSuchMethodException | IllegalArgumentException | InvocationTargetException |
-                IOException | IllegalAccessException exp) {
+                IllegalAccessException exp) {
             VpnStatus.logThrowable("Could not send fd over socket", exp);
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+
+        } finally {
+            if (command == null) {
+                try {
+                    pfd.close();
+                } catch (IOException ignored) {
+                }
+            }
         }
 
         return false;
@@ -694,6 +889,8 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
             int p1 = argument.indexOf('\'');
             int p2 = argument.indexOf('\'', p1 + 1);
             needed = argument.substring(p1 + 1, p2);
+            if (wantsEvents())
+                publishEvent(new ManagementEvent.PasswordEvent(needed, argument.startsWith("Verification Failed"), argument));
             if (argument.startsWith("Verification Failed")) {
                 proccessPWFailed(needed, argument.substring(p2 + 1));
                 return;
@@ -704,6 +901,7 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
             return;
         }
 
+        ConnectPhaseTracker.mark(ConnectPhaseTracker.PASSWORD);
         String username = null;
         String password = null;
 
@@ -763,7 +961,7 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
     }
 
     public void signalUSR1() {
-        mResumeHandler.removeCallbacks(mResumeHoldRunnable);
+        cancelHoldRelease();
         if (!mWaitingForRelease) {
             managmentCommand("signal SIGUSR1\n");
         } else {
@@ -773,24 +971,22 @@ public class OpenVPNManagementThread extends Thread implements OpenVPNManagement
         }
     }
 
-    private void processPK_SignCommand(@NonNull String argument) {
-        VpnStatus.logOpenVPNManagement(LogLevel.INFO, argument);
+    private void processPK_SignCommand(@NonNull LineView line, int argStart) {
+        VpnStatus.logOpenVPNManagement(LogLevel.INFO, line.substring(argStart));
 
-        String[] parts = argument.split(",");
+        int nparts = line.split(argStart, ',', 8, mFields);
         boolean pkcs1Padding = true;
-        if (parts.length > 1)
-            pkcs1Padding = parts[1].equals("RSA_PKCS1_PADDING");
+        if (nparts > 1)
+            pkcs1Padding = line.equals(mFields[2], mFields[3], "RSA_PKCS1_PADDING");
 
-        String signedData = getSignedData(parts[0], pkcs1Padding);
+        String signedData = getSignedData(field(line, 0), pkcs1Padding);
 
+        // pk-sig及其多行数据作为一个命令写出, 对应一个应答
         if (TextUtils.isEmpty(signedData)) {
-            managmentCommand("pk-sig\n");
-            managmentCommand("\nEND\n");
+            managmentCommand("pk-sig\n\nEND\n");
             stopOpenVPN();
         } else {
-            managmentCommand("pk-sig\n");
-            managmentCommand(signedData);
-            managmentCommand("\nEND\n");
+            managmentCommand("pk-sig\n" + signedData + "\nEND\n");
         }
     }
 
@@ -42,6 +42,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.api.ExternalAppDatabase;
@@ -229,6 +231,7 @@ public class OpenVPNService extends VpnService implements Callback, StatusListen
 
     @Override
     public int onStartCommand(@NonNull Intent intent, int flags, int startId) {
+        long serviceStartTime = System.nanoTime();
         /* The intent is null when we are set as always-on or the service has been restarted. */
 
         /* 通常Context.bindService不会导致Service.onStartCommand(...)被回调。下面这些代码是容错处理。 */
@@ -302,7 +305,7 @@ public class OpenVPNService extends VpnService implements Callback, StatusListen
         VpnStatus.addByteCountListener(this);
 
         /* start the OpenVPN process itself in a background thread */
-        new Thread(() -> startOpenVPN(intent)).start();
+        new Thread(() -> startOpenVPN(intent, serviceStartTime)).start();
 
         return START_STICKY;
     }
@@ -313,7 +316,7 @@ public class OpenVPNService extends VpnService implements Callback, StatusListen
         shortcutManager.reportShortcutUsed(profile.getUUIDString());
     }
 
-    private void startOpenVPN(@NonNull Intent intent) {
+    private void startOpenVPN(@NonNull Intent intent, long serviceStartTime) {
         // Set a flag that we are starting a new VPN
         mStarting = true;
         // Stop the previous session by interrupting the thread.
@@ -321,21 +324,46 @@ public class OpenVPNService extends VpnService implements Callback, StatusListen
         // An old running VPN should now be exited
         mStarting = false;
 
+        long launchTime = intent != null ? intent.getLongExtra(ConnectPhaseTracker.EXTRA_LAUNCH_TIME, 0) : 0;
+        ConnectPhaseTracker.begin(mProfile.getName(), launchTime, serviceStartTime);
+
+        // Start a new session by creating a new thread.
+        // Open the Management Interface, 与写OpenVPN二进制文件同时进行
+        OpenVPNManagementThread managementThread = new OpenVPNManagementThread("OpenVPNManagementThread", mProfile, this);
+        FutureTask<Boolean> bindTask = new FutureTask<>(() -> {
+            boolean bound = managementThread.openManagementInterface(this);
+            if (bound)
+                ConnectPhaseTracker.mark(ConnectPhaseTracker.MANAGEMENT_BOUND);
+            return bound;
+        });
+        new Thread(bindTask, "OpenVPNManagementBind").start();
+
         // 写OpenVPN二进制文件, 生产命令行
         String[] argv = OpenVPNLaunchHelper.buildOpenVPNArgv(this, mProfile, intent);
+        ConnectPhaseTracker.mark(ConnectPhaseTracker.ARGV_READY);
 
         // 写OpenVPN配置文件, 已移到LaunchOpenVPN.java
 
+        // 每次连接前重新加载控制台失败特征规则, 托管配置可能已更新
+        ConsoleErrorRules.reload(this);
+
         String nativeLibraryDir = getApplicationInfo().nativeLibraryDir;
 
-        // Start a new session by creating a new thread.
-        // Open the Management Interface
+        boolean bound;
+        try {
+            bound = bindTask.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            VpnStatus.logThrowable(ex);
+            bound = false;
+        }
+
         // start a Thread that handles incoming messages of the managment socket
-        mManagementThread = new OpenVPNManagementThread("OpenVPNManagementThread", mProfile, this);
-        if (mManagementThread.openManagementInterface(this)) {
+        mManagementThread = managementThread;
+        if (bound && argv != null) {
             mManagementThread.start();
             VpnStatus.logInfo("started Socket Thread");
         } else {
+            mManagementThread.closeManagementInterface();
             endVpnService();
             return;
         }
@@ -374,6 +402,7 @@ public class OpenVPNService extends VpnService implements Callback, StatusListen
         super.onCreate();
         VpnStatus.addStatusListener(this);
         mNotificationHelper = new OpenVPNNotificationHelper(this);
+        ConnectPhaseTracker.init(getFilesDir());
     }
 
     @Override
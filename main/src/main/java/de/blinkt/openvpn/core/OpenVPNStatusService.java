@@ -13,12 +13,10 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
-import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -47,11 +45,24 @@ public class OpenVPNStatusService extends Service implements VpnStatus.StatusLis
     }
 
     @Override
-    public void updateByteCount(long in, long out, long diffIn, long diffOut) {
-        Message msg = mHandler.obtainMessage(SEND_NEW_BYTECOUNT, Pair.create(in, out));
+    public void newLogs(@NonNull List<LogItem> logItems) {
+        Message msg = mHandler.obtainMessage(SEND_NEW_LOGITEMS, logItems);
         msg.sendToTarget();
     }
 
+    @Override
+    public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+        // 只保存最新的计数, 尚未处理的消息会带上最新值, 不必为每次采样创建消息和装箱
+        synchronized (mByteCount) {
+            mByteCount[0] = in;
+            mByteCount[1] = out;
+            if (mByteCountPending)
+                return;
+            mByteCountPending = true;
+        }
+        mHandler.sendEmptyMessage(SEND_NEW_BYTECOUNT);
+    }
+
     private void sendUpdate(IStatusCallbacks broadcastItem, UpdateMessage um) throws RemoteException {
         broadcastItem.updateStatus(um.status, um.extra);
     }
@@ -60,8 +71,12 @@ public class OpenVPNStatusService extends Service implements VpnStatus.StatusLis
     private static final int SEND_NEW_STATE = 101;
     private static final int SEND_NEW_BYTECOUNT = 102;
     private static final int SEND_NEW_CONNECTED_VPN = 103;
+    private static final int SEND_NEW_LOGITEMS = 104;
 
     private UpdateMessage mLastUpdateMessage;
+    // mByteCount[0] 接收字节数, mByteCount[1] 发送字节数; 使用需持有mByteCount锁
+    private final long[] mByteCount = new long[2];
+    private boolean mByteCountPending;
     private final RemoteCallbackList<IStatusCallbacks> mCallbacks = new RemoteCallbackList<>();
 
     private Handler mHandler = new Handler() {
@@ -69,6 +84,15 @@ public class OpenVPNStatusService extends Service implements VpnStatus.StatusLis
         public void handleMessage(Message msg) {
             RemoteCallbackList<IStatusCallbacks> callbacks = OpenVPNStatusService.this.mCallbacks;
 
+            long in = 0, out = 0;
+            if (msg.what == SEND_NEW_BYTECOUNT) {
+                synchronized (mByteCount) {
+                    in = mByteCount[0];
+                    out = mByteCount[1];
+                    mByteCountPending = false;
+                }
+            }
+
             // Broadcast to all clients the new value.
             int N = callbacks.beginBroadcast();
             for (int i = 0; i < N; i++) {
@@ -78,9 +102,11 @@ public class OpenVPNStatusService extends Service implements VpnStatus.StatusLis
                         case SEND_NEW_LOGITEM:
                             broadcastItem.newLogItem((LogItem) msg.obj);
                             break;
+                        case SEND_NEW_LOGITEMS:
+                            broadcastItem.newLogItems((List<LogItem>) msg.obj);
+                            break;
                         case SEND_NEW_BYTECOUNT:
-                            Pair<Long, Long> inout = (Pair<Long, Long>) msg.obj;
-                            broadcastItem.updateByteCount(inout.first, inout.second);
+                            broadcastItem.updateByteCount(in, out);
                             break;
                         case SEND_NEW_STATE:
                             sendUpdate(broadcastItem, (UpdateMessage) msg.obj);
@@ -144,12 +170,7 @@ public class OpenVPNStatusService extends Service implements VpnStatus.StatusLis
                             sendUpdate(cb, mLastUpdateMessage);
                         }
 
-                        LinkedList<LogItem> logBuffer;
-                        synchronized (VpnStatus.LOG_LOCK) {
-                            logBuffer = new LinkedList<>(VpnStatus.getLogBuffer(LogSource.OPENVPN_FRONT));
-                        }
-
-                        for (LogItem logItem : logBuffer) {
+                        for (LogItem logItem : VpnStatus.getLogBuffer(LogSource.OPENVPN_FRONT)) {
                             cb.newLogItem(logItem);
                         }
 
@@ -184,6 +205,28 @@ public class OpenVPNStatusService extends Service implements VpnStatus.StatusLis
             return trafficHistory;
         }
 
+        @Override
+        public String dumpCommandLatencies() throws RemoteException {
+            return CommandLatencyStats.dump();
+        }
+
+        @Override
+        public String dumpConnectPhases() throws RemoteException {
+            return ConnectPhaseTracker.toJson();
+        }
+
+        @Override
+        public PushedOptions getPushedOptions() throws RemoteException {
+            synchronized (VpnStatus.STATUS_LOCK) {
+                return VpnStatus.LAST_VPN_TUNNEL.getPushedOptions();
+            }
+        }
+
+        @Override
+        public String dumpLogListeners() throws RemoteException {
+            return VpnStatus.dumpLogListeners();
+        }
+
     };
 
 }
@@ -10,15 +10,14 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import de.blinkt.xp.openvpn.BuildConfig;
 import de.blinkt.xp.openvpn.R;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Map;
@@ -36,12 +35,31 @@ public class OpenVPNThread extends Thread {
 
     private static final String TAG = "OpenVPN";
 
+    private static final Pattern RESOURCE_PATTERN = Pattern.compile("POLICY:[\\x20|\\t|\\\"|']+resource[\\\"|'|\\x20|\\t]+(.+)");
+    // 版本和加密套件一次匹配: group(1)为版本, 有加密套件时group(2)为加密套件
+    private static final Pattern TLS_PATTERN = Pattern.compile("Control[\\x20|\\t]+Channel:([^,]+)(?:,([^,]+),)?");
+    private static final Pattern CIPHER_PATTERN = Pattern.compile("Cipher[\\x20|\\t|']+([^']+)");
+    private static final Pattern AUTH_PATTERN = Pattern.compile("message[\\x20|\\t]+hash[\\x20|\\t|']+([^']+)");
+
     private String[] mArgv;
     private String mNativeLibraryDir;
     private File mCacheDir;
     private Process mProcess;
     private OpenVPNService mService;
     private volatile boolean mNoProcessExitStatus = false;
+    // 只在读取进程输出的线程中使用
+    private final ConsoleLineClassifier mClassifier = new ConsoleLineClassifier();
+    private final MachineReadableLine mMachineReadable = new MachineReadableLine();
+    private ConsoleErrorRules.RuleMatcher mErrorRules;
+
+    // 控制台日志攒批发布, 最多MAX_BATCH_LINES行或MAX_BATCH_DELAY_MS毫秒; 输出暂停时立即发布
+    private static final int MAX_BATCH_LINES = 64;
+    private static final long MAX_BATCH_DELAY_MS = 50;
+    private ArrayList<LogItem> mPendingLogs = new ArrayList<>(MAX_BATCH_LINES);
+    private long mPendingSince;
+
+    // 正在累积的PUSH_REPLY(push-continuation), 进程重启连接时丢弃
+    private PushedOptions.Builder mPushedOptions;
 
     public OpenVPNThread(@NonNull String name, @NonNull OpenVPNService service, @NonNull String[] argv,
             @NonNull String nativeLibraryDir, @NonNull File cacheDir) {
@@ -116,42 +134,72 @@ public class OpenVPNThread extends Thread {
         ProcessBuilder pb = new ProcessBuilder(argvlist);
         pb.redirectErrorStream(true);
 
+        ConsoleReader console = null;
         try {
             setProcessEnvironment(pb, argv);
             logProcessDetails(pb);
 
             mProcess = pb.start();
+            ConnectPhaseTracker.mark(ConnectPhaseTracker.PROCESS_STARTED);
             // Close the output, since we don't need it
             mProcess.getOutputStream().close();
 
-            InputStream in = mProcess.getInputStream();
-            BufferedReader br = new BufferedReader(new InputStreamReader(in));
+            console = new ConsoleReader(mProcess.getInputStream());
+            console.start();
 
             while (true) {
-                String line = br.readLine();
+                String line = console.take();
                 if (line == null)
                     return;
 
-                processTunnelInfo(line);
-                processPolicy(line);
+                int rules = mClassifier.classify(line);
+                processTunnelInfo(line, rules);
+                processPolicy(line, rules);
                 processLogline(line);
 
+                if (mPendingLogs.size() >= MAX_BATCH_LINES || !console.hasPending()
+                        || System.nanoTime() - mPendingSince >= MAX_BATCH_DELAY_MS * 1000000L) {
+                    int dropped = console.takeDropped();
+                    if (dropped > 0)
+                        addLog(new LogItem(LogSource.OPENVPN_CONSOLE, LogLevel.DEBUG,
+                            dropped + " debug lines dropped, log processing could not keep up"));
+                    publishLogs();
+                }
+
                 if (Thread.interrupted()) {
                     throw new InterruptedException("OpenVPN process was killed from java code");
                 }
             }
 
         } catch (InterruptedException | IOException ex) {
+            publishLogs();
             VpnStatus.logThrowable("Error reading from output of OpenVPN process", ex);
             stopProcess();
+
+        } finally {
+            publishLogs();
+            if (console != null)
+                console.interrupt();
+        }
+    }
+
+    private void addLog(@NonNull LogItem logItem) {
+        if (mPendingLogs.isEmpty())
+            mPendingSince = System.nanoTime();
+        mPendingLogs.add(logItem);
+    }
+
+    private void publishLogs() {
+        if (!mPendingLogs.isEmpty()) {
+            VpnStatus.newLogItems(mPendingLogs);
+            mPendingLogs = new ArrayList<>(MAX_BATCH_LINES);
         }
     }
 
     private void processAccessibleResource(@NonNull String line) {
         // I/StatusListener: POLICY: "resource" "https://192.168.1.1/erp/" "https://192.168.1.1/erp/" "all"
         // I/StatusListener: POLICY: "resource" "公司文件共享" "ftp://192.168.1.17/share"
-        Pattern pattern = Pattern.compile("POLICY:[\\x20|\\t|\\\"|']+resource[\\\"|'|\\x20|\\t]+(.+)");
-        Matcher matcher = pattern.matcher(line);
+        Matcher matcher = RESOURCE_PATTERN.matcher(line);
         if (matcher.find()) {
             String[] parts = matcher.group(1).split(" ");
             if (parts.length > 1) {
@@ -165,7 +213,7 @@ public class OpenVPNThread extends Thread {
                 if (parts.length > 4)
                     description = StringUtils.removeHeadTrail(parts[4], "\"'");
 
-                if (StringUtils.isEmpty(platform) || StringUtils.contains("android|any|all", platform)) {
+                if (StringUtils.isEmpty(platform) || platform.contains("android") || platform.contains("any") || platform.contains("all")) {
                     AccessibleResource ar = new AccessibleResource(name, uri, platform, program, description);
                     if (ar != null) {
                         synchronized (VpnStatus.STATUS_LOCK) {
@@ -177,50 +225,52 @@ public class OpenVPNThread extends Thread {
         }
     }
 
-    private void processTunnelInfo(@NonNull String line) {
-        if (StringUtils.contains("PUSH:[\\x20|\\t]+Received[\\x20|\\t]+control[\\x20|\\t]+message", line)) {
-            // PUSH: Received control message: 'PUSH_REPLY,...,route-gateway 172.14.0.1,
-            int startIdx = line.indexOf("route-gateway ");
-            int endIdx = -1;
-
-            if (startIdx != -1) {
-                startIdx += "route-gateway ".length();
-                endIdx = line.indexOf(",", startIdx);
-                if (endIdx != -1) {
-                    String gatewayAddr = line.substring(startIdx, endIdx);
-                    synchronized (VpnStatus.STATUS_LOCK) {
-                        if (gatewayAddr.contains(":"))
-                            VpnStatus.LAST_VPN_TUNNEL.setVirtualIPv6Gateway(gatewayAddr);
-                        else
-                            VpnStatus.LAST_VPN_TUNNEL.setVirtualIPv4Gateway(gatewayAddr);
-                    }
-                }
-            }
+    void processTunnelInfo(@NonNull String line, int rules) {
+        if ((rules & ConsoleLineClassifier.bit(ConsoleLineClassifier.RESTART)) != 0) {
+            // 重启前没有收完的PUSH_REPLY不能和新连接的合并
+            mPushedOptions = null;
+            return;
+        }
 
-        } else if (StringUtils.contains("Control[\\x20|\\t]+Channel:", line)) {
-            // Control Channel: TLSv1, cipher TLSv1/SSLv3 RC4-MD5, 1024 bit RSA
-            Pattern pattern = Pattern.compile("Control[\\x20|\\t]+Channel:([^,]+)");
-            Matcher matcher = pattern.matcher(line);
-            if (matcher.find()) {
+        if ((rules & ConsoleLineClassifier.bit(ConsoleLineClassifier.PUSH_CONTROL_MESSAGE)) != 0) {
+            // PUSH: Received control message: 'PUSH_REPLY,...,route-gateway 172.14.0.1,...'
+            int startIdx = line.indexOf("PUSH_REPLY");
+            int endIdx = line.lastIndexOf('\'');
+            if (startIdx != -1 && endIdx > startIdx) {
+                if (mPushedOptions == null)
+                    mPushedOptions = new PushedOptions.Builder();
+                if (!mPushedOptions.add(line.substring(startIdx, endIdx)))
+                    return;
+
+                PushedOptions options = mPushedOptions.build();
+                mPushedOptions = null;
+                String gatewayAddr = options.getRouteGateway();
                 synchronized (VpnStatus.STATUS_LOCK) {
-                    VpnStatus.LAST_VPN_TUNNEL.setTlsVersion(matcher.group(1));
+                    VpnStatus.LAST_VPN_TUNNEL.setPushedOptions(options);
+                    if (gatewayAddr != null && gatewayAddr.contains(":"))
+                        VpnStatus.LAST_VPN_TUNNEL.setVirtualIPv6Gateway(gatewayAddr);
+                    else if (gatewayAddr != null)
+                        VpnStatus.LAST_VPN_TUNNEL.setVirtualIPv4Gateway(gatewayAddr);
                 }
+                addLog(new LogItem(LogSource.OPENVPN_FRONT, LogLevel.DEBUG, "Pushed " + options));
             }
 
+        } else if ((rules & ConsoleLineClassifier.bit(ConsoleLineClassifier.CONTROL_CHANNEL)) != 0) {
             // Control Channel: TLSv1, cipher TLSv1/SSLv3 RC4-MD5, 1024 bit RSA
-            pattern = Pattern.compile("Control[\\x20|\\t]+Channel:[\\x20|\\t]+[^,]+,([^,]+),");
-            matcher = pattern.matcher(line);
+            Matcher matcher = TLS_PATTERN.matcher(line);
             if (matcher.find()) {
                 synchronized (VpnStatus.STATUS_LOCK) {
-                    String[] parts = matcher.group(1).split(" ");
-                    VpnStatus.LAST_VPN_TUNNEL.setTlsCipher(parts[parts.length - 1]);
+                    VpnStatus.LAST_VPN_TUNNEL.setTlsVersion(matcher.group(1));
+                    if (matcher.group(2) != null) {
+                        String[] parts = matcher.group(2).split(" ");
+                        VpnStatus.LAST_VPN_TUNNEL.setTlsCipher(parts[parts.length - 1]);
+                    }
                 }
             }
 
-        } else if (StringUtils.contains("Data[\\x20|\\t]+Channel:", line)) {
+        } else if ((rules & ConsoleLineClassifier.bit(ConsoleLineClassifier.DATA_CHANNEL)) != 0) {
             // Data Channel Encrypt: Cipher 'AES-128-CBC' initialized with 128 bit key
-            Pattern pattern = Pattern.compile("Cipher[\\x20|\\t|']+([^']+)");
-            Matcher matcher = pattern.matcher(line);
+            Matcher matcher = CIPHER_PATTERN.matcher(line);
             if (matcher.find()) {
                 synchronized (VpnStatus.STATUS_LOCK) {
                     VpnStatus.LAST_VPN_TUNNEL.setCipher(matcher.group(1));
@@ -228,8 +278,7 @@ public class OpenVPNThread extends Thread {
             }
 
             // Data Channel Encrypt: Using 160 bit message hash 'SHA1' for HMAC authentication
-            pattern = Pattern.compile("message[\\x20|\\t]+hash[\\x20|\\t|']+([^']+)");
-            matcher = pattern.matcher(line);
+            matcher = AUTH_PATTERN.matcher(line);
             if (matcher.find()) {
                 synchronized (VpnStatus.STATUS_LOCK) {
                     VpnStatus.LAST_VPN_TUNNEL.setAuth(matcher.group(1));
@@ -238,9 +287,9 @@ public class OpenVPNThread extends Thread {
         }
     }
 
-    private void processPolicy(@NonNull String line) {
+    private void processPolicy(@NonNull String line, int rules) {
         if (line.contains("POLICY:")) {
-            if (StringUtils.contains("POLICY:[\\x20|\\t|\\\"]+resource[\\x20|\\t|\\\"]", line)) {
+            if ((rules & ConsoleLineClassifier.bit(ConsoleLineClassifier.POLICY_RESOURCE)) != 0) {
                 // I/StatusListener: POLICY: "resource" "https://192.168.1.1/erp/" "https://192.168.1.1/erp/" "all"
                 // I/StatusListener: POLICY: "resource" "公司文件共享" "ftp://192.168.1.17/share"
                 processAccessibleResource(line);
@@ -251,53 +300,21 @@ public class OpenVPNThread extends Thread {
     }
 
     private void processLogline(@NonNull String logline) {
-        String status = ConnectionStatus.getLevelString(ConnectionStatus.LEVEL_GENERAL_ERROR);
-
-        if (StringUtils.contains("TLS[\\x20|\\t]+Error:[\\x20|\\t]+TLS[\\x20|\\t]+start[\\x20|\\t]+hello[\\x20|\\t]+failed", logline)) {
-            // TLS Error: TLS start hello failed to occur within 60 seconds
-            VpnStatus.updateStatus(status, R.string.tls_start_hello_failed);
-        } else if (StringUtils.contains("can't[\\x20|\\t]+ask[\\x20|\\t]+for[\\x20|\\t|']+Enter[\\x20|\\t]+Client[\\x20|\\t]+certificate", logline)) {
-            // can't ask for 'Enter Client certificate:TLSv1.2
-            VpnStatus.updateStatus(status, R.string.ask_for_client_certificate);
-        } else if (StringUtils.contains("TLS[\\x20|\\t]+Error:[\\x20|\\t]+TLS[\\x20|\\t]+key[\\x20|\\t]+negotiation[\\x20|\\t]+failed", logline)) {
-            // TLS Error: TLS key negotiation failed to occur within 600 seconds
-            VpnStatus.updateStatus(status, R.string.tls_negotiation_failed);
-        } else if (StringUtils.contains("Failed[\\x20|\\t]+to[\\x20|\\t]+negotiation[\\x20|\\t]+tunnel", logline)) {
-            // HALT,Failed to negotiation tunnel options' (status=1)
-            VpnStatus.updateStatus(status, R.string.tunnel_negotiation_failed);
-
-        } else if (StringUtils.contains("certificate[\\x20|\\t]+is[\\x20|\\t]+not[\\x20|\\t]+yet[\\x20|\\t]+valid", logline)) {
-            // (服务端|客户端)证书未生效
-            VpnStatus.updateStatus(status, R.string.cert_no_yet_valid);
-
-        } else if (StringUtils.contains("certificate[\\x20|\\t]+has[\\x20|\\t]+expired:", logline)) {
-            // VERIFY ERROR: depth=1, error=certificate has expired: C=CN, ST=ShangHai ...
-            VpnStatus.updateStatus(status, R.string.server_cert_expired);
-        } else if (StringUtils.contains("self[\\x20|\\t]+signed[\\x20|\\t]+certificate[\\x20|\\t]+in[\\x20|\\t]+certificate[\\x20|\\t]+chain", logline)) {
-            // VERIFY ERROR: depth=1, error=self signed certificate in certificate chain: CN=sm2_test, ...
-            VpnStatus.updateStatus(status, R.string.server_cert_unknown_ca);
-
-        } else if (StringUtils.contains("alert[\\x20|\\t]+certificate[\\x20|\\t]+revoked", logline)) {
-            VpnStatus.updateStatus(status, R.string.client_cert_revoked);
-        } else if (StringUtils.contains("alert[\\x20|\\t]+certificate[\\x20|\\t]+expired", logline)) {
-            VpnStatus.updateStatus(status, R.string.client_cert_expired);
-        } else if (StringUtils.contains("alert[\\x20|\\t]+unknown[\\x20|\\t]+ca", logline)) {
-            // OpenSSL: error:14094418:SSL routines:SSL3_READ_BYTES:tlsv1 alert unknown ca
-            VpnStatus.updateStatus(status, R.string.client_cert_unknown_ca);
+        // 规则表可能已重新加载
+        ConsoleErrorRules current = ConsoleErrorRules.getCurrent();
+        if (mErrorRules == null || mErrorRules.getRules() != current)
+            mErrorRules = current.newMatcher();
 
-        } else {
-            // TODO ...
-        }
+        ConsoleErrorRules.Rule rule = mErrorRules.match(logline);
+        if (rule != null)
+            VpnStatus.updateStatus(rule.getStatus(), rule.getMessage(), rule.getResid());
 
         // OpenVPN 有machine-readable-output选项时
         // 1380308330.240114 18000002 Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'
-        Pattern pattern = Pattern.compile("(\\d+).(\\d+) ([0-9a-f])+ (.*)");
-        Matcher matcher = pattern.matcher(logline);
-
-        if (matcher.matches()) {
-            int flags = Integer.parseInt(matcher.group(3), 16);
+        if (mMachineReadable.parse(logline)) {
+            int flags = mMachineReadable.getFlags();
             LogLevel level = LogLevel.INFO;
-            String msg = matcher.group(4);
+            String msg = logline.substring(mMachineReadable.getMessageStart());
 
             if ((flags & M_FATAL) != 0)
                 level = LogLevel.ERROR;
@@ -306,19 +323,29 @@ public class OpenVPNThread extends Thread {
             else if ((flags & M_DEBUG) != 0)
                 level = LogLevel.DEBUG;
 
-            if (msg != null) {
-                if ((msg.endsWith("md too weak") && msg.startsWith("OpenSSL: error")) || msg.contains("error:140AB18E"))
-                    VpnStatus.logError("OpenSSL reported a certificate with a weak hash, please the in app FAQ about weak hashes");
+            if ((msg.endsWith("md too weak") && msg.startsWith("OpenSSL: error")) || msg.contains("error:140AB18E"))
+                addLog(new LogItem(LogSource.OPENVPN_FRONT, LogLevel.ERROR,
+                    "OpenSSL reported a certificate with a weak hash, please the in app FAQ about weak hashes"));
 
-                VpnStatus.logOpenVPNConsole(level, msg);
-            }
+            // 使用OpenVPN输出的时间, Java端处理积压时日志顺序和时间仍然准确
+            addLog(new LogItem(LogSource.OPENVPN_CONSOLE, getLevel(level, rule), msg, mMachineReadable.getTimeMillis()));
 
         } else {
             // Mon Mar 16 15:18:24 2020 us=543552 MANAGEMENT: CMD 'hold release
-            VpnStatus.logOpenVPNConsole(LogLevel.INFO, logline);
+            addLog(new LogItem(LogSource.OPENVPN_CONSOLE, getLevel(LogLevel.INFO, rule), logline));
         }
     }
 
+    /**
+     * 匹配的规则可以提高这一行的日志级别
+     */
+    @NonNull
+    private static LogLevel getLevel(@NonNull LogLevel level, @Nullable ConsoleErrorRules.Rule rule) {
+        if (rule != null && rule.getSeverity() != null && rule.getSeverity().getInt() > level.getInt())
+            return rule.getSeverity();
+        return level;
+    }
+
     private void setProcessEnvironment(@NonNull ProcessBuilder pb, @NonNull String[] argv) throws IOException {
         String lbpath = pb.environment().get("LD_LIBRARY_PATH");
 
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 服务端PUSH_REPLY推送的选项, 不可修改
+ * <p>
+ * PUSH_REPLY,route 10.0.0.0 255.0.0.0,route-gateway 10.8.0.1,topology subnet,ping 10,ping-restart 60,
+ * ifconfig 10.8.0.2 255.255.255.0,peer-id 0,cipher AES-256-GCM
+ */
+public class PushedOptions implements Parcelable {
+
+    private static final String PUSH_REPLY = "PUSH_REPLY";
+
+    private final List<String> routes;
+    private final List<String> routesIPv6;
+    private final List<String> dhcpOptions;
+    private final List<String> otherOptions;
+    private final String ifconfig;
+    private final String ifconfigIPv6;
+    private final String routeGateway;
+    private final String topology;
+    private final String cipher;
+    private final int peerId;
+    private final int ping;
+    private final int pingRestart;
+    // 所有PUSH_REPLY消息的选项数和字节数
+    private final int optionCount;
+    private final int length;
+    private final int messageCount;
+
+    private PushedOptions(@NonNull Builder builder) {
+        routes = Collections.unmodifiableList(new ArrayList<>(builder.routes));
+        routesIPv6 = Collections.unmodifiableList(new ArrayList<>(builder.routesIPv6));
+        dhcpOptions = Collections.unmodifiableList(new ArrayList<>(builder.dhcpOptions));
+        otherOptions = Collections.unmodifiableList(new ArrayList<>(builder.otherOptions));
+        ifconfig = builder.ifconfig;
+        ifconfigIPv6 = builder.ifconfigIPv6;
+        routeGateway = builder.routeGateway;
+        topology = builder.topology;
+        cipher = builder.cipher;
+        peerId = builder.peerId;
+        ping = builder.ping;
+        pingRestart = builder.pingRestart;
+        optionCount = builder.optionCount;
+        length = builder.length;
+        messageCount = builder.messageCount;
+    }
+
+    public PushedOptions(@NonNull Parcel in) {
+        routes = Collections.unmodifiableList(in.createStringArrayList());
+        routesIPv6 = Collections.unmodifiableList(in.createStringArrayList());
+        dhcpOptions = Collections.unmodifiableList(in.createStringArrayList());
+        otherOptions = Collections.unmodifiableList(in.createStringArrayList());
+        ifconfig = in.readString();
+        ifconfigIPv6 = in.readString();
+        routeGateway = in.readString();
+        topology = in.readString();
+        cipher = in.readString();
+        peerId = in.readInt();
+        ping = in.readInt();
+        pingRestart = in.readInt();
+        optionCount = in.readInt();
+        length = in.readInt();
+        messageCount = in.readInt();
+    }
+
+    /**
+     * 解析一个完整的PUSH_REPLY消息
+     */
+    @NonNull
+    public static PushedOptions parse(@NonNull String message) {
+        Builder builder = new Builder();
+        builder.add(message);
+        return builder.build();
+    }
+
+    /**
+     * route选项, 每项是"network netmask [gateway] [metric]"
+     */
+    @NonNull
+    public List<String> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * route-ipv6选项, 每项是"network/bits [gateway] [metric]"
+     */
+    @NonNull
+    public List<String> getRoutesIPv6() {
+        return routesIPv6;
+    }
+
+    /**
+     * dhcp-option选项, 每项是"type value", 如"DNS 8.8.8.8"
+     */
+    @NonNull
+    public List<String> getDhcpOptions() {
+        return dhcpOptions;
+    }
+
+    /**
+     * 没有单独建模的选项, 保持原文
+     */
+    @NonNull
+    public List<String> getOtherOptions() {
+        return otherOptions;
+    }
+
+    @Nullable
+    public String getIfconfig() {
+        return ifconfig;
+    }
+
+    @Nullable
+    public String getIfconfigIPv6() {
+        return ifconfigIPv6;
+    }
+
+    @Nullable
+    public String getRouteGateway() {
+        return routeGateway;
+    }
+
+    @Nullable
+    public String getTopology() {
+        return topology;
+    }
+
+    @Nullable
+    public String getCipher() {
+        return cipher;
+    }
+
+    /**
+     * @return 没有推送时返回-1
+     */
+    public int getPeerId() {
+        return peerId;
+    }
+
+    /**
+     * @return 秒, 没有推送时返回-1
+     */
+    public int getPing() {
+        return ping;
+    }
+
+    /**
+     * @return 秒, 没有推送时返回-1
+     */
+    public int getPingRestart() {
+        return pingRestart;
+    }
+
+    public int getOptionCount() {
+        return optionCount;
+    }
+
+    /**
+     * @return 所有PUSH_REPLY消息的总字节数(按字符计)
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return PUSH_REPLY消息数, 服务端用push-continuation分多个消息推送大量选项时大于1
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return optionCount + " options in " + messageCount + " messages (" + length + " bytes), "
+            + routes.size() + " routes, " + routesIPv6.size() + " IPv6 routes, " + dhcpOptions.size() + " dhcp options";
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        dest.writeStringList(routes);
+        dest.writeStringList(routesIPv6);
+        dest.writeStringList(dhcpOptions);
+        dest.writeStringList(otherOptions);
+        dest.writeString(ifconfig);
+        dest.writeString(ifconfigIPv6);
+        dest.writeString(routeGateway);
+        dest.writeString(topology);
+        dest.writeString(cipher);
+        dest.writeInt(peerId);
+        dest.writeInt(ping);
+        dest.writeInt(pingRestart);
+        dest.writeInt(optionCount);
+        dest.writeInt(length);
+        dest.writeInt(messageCount);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<PushedOptions> CREATOR = new Creator<PushedOptions>() {
+        @Override
+        public PushedOptions createFromParcel(Parcel in) {
+            return new PushedOptions(in);
+        }
+
+        @Override
+        public PushedOptions[] newArray(int size) {
+            return new PushedOptions[size];
+        }
+    };
+
+    /**
+     * 累积一个或多个PUSH_REPLY消息(push-continuation), 只能在一个线程中使用
+     */
+    public static class Builder {
+
+        private final List<String> routes = new ArrayList<>();
+        private final List<String> routesIPv6 = new ArrayList<>();
+        private final List<String> dhcpOptions = new ArrayList<>();
+        private final List<String> otherOptions = new ArrayList<>();
+        private String ifconfig;
+        private String ifconfigIPv6;
+        private String routeGateway;
+        private String topology;
+        private String cipher;
+        private int peerId = -1;
+        private int ping = -1;
+        private int pingRestart = -1;
+        private int optionCount;
+        private int length;
+        private int messageCount;
+        private boolean continued;
+
+        /**
+         * 一遍扫描PUSH_REPLY消息, 按','切分选项, 选项内按空白切分参数
+         *
+         * @return 是否已收到全部选项; 服务端推送push-continuation 2时还有后续消息
+         */
+        public boolean add(@NonNull String message) {
+            int end = message.length();
+            int pos = message.startsWith(PUSH_REPLY) ? PUSH_REPLY.length() : 0;
+            continued = false;
+            length += end;
+            ++messageCount;
+
+            while (pos < end) {
+                int next = message.indexOf(',', pos);
+                if (next == -1)
+                    next = end;
+                option(message, pos, next);
+                pos = next + 1;
+            }
+            return !continued;
+        }
+
+        private void option(@NonNull String message, int start, int end) {
+            // 选项名
+            while (start < end && isBlank(message.charAt(start)))
+                ++start;
+            while (end > start && isBlank(message.charAt(end - 1)))
+                --end;
+            if (start == end)
+                return;
+
+            int nameEnd = start;
+            while (nameEnd < end && !isBlank(message.charAt(nameEnd)))
+                ++nameEnd;
+            int argsStart = nameEnd;
+            while (argsStart < end && isBlank(message.charAt(argsStart)))
+                ++argsStart;
+
+            String name = message.substring(start, nameEnd);
+            String args = message.substring(argsStart, end);
+            ++optionCount;
+
+            switch (name) {
+                case "route":
+                    routes.add(args);
+                    break;
+                case "route-ipv6":
+                    routesIPv6.add(args);
+                    break;
+                case "dhcp-option":
+                    dhcpOptions.add(args);
+                    break;
+                case "ifconfig":
+                    ifconfig = args;
+                    break;
+                case "ifconfig-ipv6":
+                    ifconfigIPv6 = args;
+                    break;
+                case "route-gateway":
+                    routeGateway = args;
+                    break;
+                case "topology":
+                    topology = args;
+                    break;
+                case "cipher":
+                    cipher = args;
+                    break;
+                case "peer-id":
+                    peerId = parseInt(args, peerId);
+                    break;
+                case "ping":
+                    ping = parseInt(args, ping);
+                    break;
+                case "ping-restart":
+                    pingRestart = parseInt(args, pingRestart);
+                    break;
+                case "push-continuation":
+                    // 2: 还有后续消息, 1: 最后一个消息
+                    continued = "2".equals(args);
+                    --optionCount;
+                    break;
+                default:
+                    otherOptions.add(message.substring(start, end));
+                    break;
+            }
+        }
+
+        private static boolean isBlank(char c) {
+            return c == ' ' || c == '\t';
+        }
+
+        private static int parseInt(@NonNull String value, int defaultValue) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        @NonNull
+        public PushedOptions build() {
+            return new PushedOptions(this);
+        }
+    }
+
+}
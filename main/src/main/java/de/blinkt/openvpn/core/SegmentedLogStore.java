@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 日志文件缓存: 只追加的分段存储, 每段是一个独立的LogCacheCodec文件
+ * <p>
+ * 写满的段改名为"序号-最早时间-最晚时间-LogQuery.indexBits().seg", 目录本身就是按时间, LogLevel和LogSource的索引,
+ * 查询只读取可能匹配的段; 当前段是"序号-第一条日志的时间.seg", 查询时总是读取.
+ * 写满的段在低优先级线程中压缩为.seg.gz, 总大小超过上限时删除最旧的段, 截断只删除整段文件, 不重写日志
+ */
+class SegmentedLogStore {
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String COMPRESSED_SUFFIX = ".seg.gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    static final long SEGMENT_SIZE = 256 * 1024;
+    static final long MAX_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * 一个段文件
+     */
+    static final class Segment {
+        final long id;
+
+        // 以下字段使用需持有SegmentedLogStore锁, 结束和压缩时会替换文件
+        private File file;
+        private boolean compressed;
+        private long size;
+        // 还没有索引时是第一条日志的时间
+        private long minTime;
+        private long maxTime = Long.MAX_VALUE;
+        private int index = LogQuery.ALL_LEVELS | LogQuery.ALL_SOURCES;
+        private boolean indexed;
+
+        Segment(long id, long firstTime, @NonNull File file, boolean compressed) {
+            this.id = id;
+            this.minTime = firstTime;
+            this.file = file;
+            this.compressed = compressed;
+            this.size = file.length();
+        }
+
+        // 调用需持有SegmentedLogStore锁
+        private void setIndex(long minTime, long maxTime, int index) {
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.index = index;
+            this.indexed = true;
+        }
+
+        // 调用需持有SegmentedLogStore锁
+        private boolean mayMatch(@NonNull LogQuery query) {
+            return !indexed || query.mayMatch(minTime, maxTime, index);
+        }
+    }
+
+    private final File mDir;
+    private final int mAppVersion;
+    private final long mSegmentSize;
+    private final long mMaxSize;
+    private final Executor mCompressor;
+
+    // 按序号从旧到新, 最后一个可能是当前段; 使用需持有this锁
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    // 以下字段只在写线程中使用
+    private Segment mActive;
+    private FileOutputStream mActiveOut;
+    private LogCacheCodec.Writer mActiveWriter;
+    private long mActiveMinTime;
+    private long mActiveMaxTime;
+    private int mActiveIndex;
+    private long mNextId;
+
+    /**
+     * 读取目录中已有的段, 把上次没有压缩的段交给compressor建立索引并压缩; 新日志总是写入新的段
+     *
+     * @param compressor 执行压缩任务, 应该是一个低优先级的线程
+     */
+    SegmentedLogStore(@NonNull File dir, int appVersion, long segmentSize, long maxSize, @NonNull Executor compressor) {
+        mDir = dir;
+        mAppVersion = appVersion;
+        mSegmentSize = segmentSize;
+        mMaxSize = maxSize;
+        mCompressor = compressor;
+
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Segment segment = parseSegment(file);
+                if (segment != null) {
+                    mSegments.add(segment);
+                    mNextId = Math.max(mNextId, segment.id + 1);
+                } else {
+                    // 压缩了一半的临时文件等
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        Collections.sort(mSegments, (a, b) -> Long.compare(a.id, b.id));
+
+        enforceMaxSize();
+        for (Segment segment : new ArrayList<>(mSegments)) {
+            if (!segment.compressed)
+                scheduleCompression(segment);
+        }
+    }
+
+    @Nullable
+    private static Segment parseSegment(@NonNull File file) {
+        String name = file.getName();
+        boolean compressed = name.endsWith(COMPRESSED_SUFFIX);
+        if (!compressed && !name.endsWith(SEGMENT_SUFFIX))
+            return null;
+
+        String base = name.substring(0, name.length() - (compressed ? COMPRESSED_SUFFIX : SEGMENT_SUFFIX).length());
+        String[] fields = base.split("-");
+        if (fields.length != 2 && fields.length != 4)
+            return null;
+
+        try {
+            Segment segment = new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), file, compressed);
+            if (fields.length == 4)
+                segment.setIndex(segment.minTime, Long.parseLong(fields[2]), Integer.parseInt(fields[3], 16));
+            return segment;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * 只能在写线程中调用
+     */
+    void append(@NonNull LogItem li) throws IOException {
+        if (mActive == null)
+            startSegment(li.getLogtime());
+
+        mActiveWriter.write(li);
+        mActiveMinTime = Math.min(mActiveMinTime, li.getLogtime());
+        mActiveMaxTime = Math.max(mActiveMaxTime, li.getLogtime());
+        mActiveIndex |= LogQuery.indexBits(li.getLogSource(), li.getLogLevel());
+        if (mActiveWriter.size() >= mSegmentSize)
+            roll();
+    }
+
+    private void startSegment(long firstTime) throws IOException {
+        long id = mNextId++;
+        File file = new File(mDir, String.format(Locale.US, "%08d-%d", id, firstTime) + SEGMENT_SUFFIX);
+        mActiveOut = new FileOutputStream(file);
+        mActiveWriter = new LogCacheCodec.Writer(mActiveOut, mAppVersion);
+        mActive = new Segment(id, firstTime, file, false);
+        mActiveMinTime = Long.MAX_VALUE;
+        mActiveMaxTime = Long.MIN_VALUE;
+        mActiveIndex = 0;
+
+        synchronized (this) {
+            mSegments.add(mActive);
+        }
+    }
+
+    /**
+     * 结束当前段, 按索引改名后交给压缩线程, 下一条日志写入新的段
+     */
+    private void roll() throws IOException {
+        Segment segment = mActive;
+        closeActive();
+
+        synchronized (this) {
+            File file = new File(mDir, indexedName(segment.id, mActiveMinTime, mActiveMaxTime, mActiveIndex)
+                + SEGMENT_SUFFIX);
+            if (segment.file.renameTo(file)) {
+                segment.file = file;
+                segment.setIndex(mActiveMinTime, mActiveMaxTime, mActiveIndex);
+            }
+            segment.size = segment.file.length();
+        }
+        enforceMaxSize();
+        scheduleCompression(segment);
+    }
+
+    @NonNull
+    private static String indexedName(long id, long minTime, long maxTime, int index) {
+        return String.format(Locale.US, "%08d-%d-%d-%x", id, minTime, maxTime, index);
+    }
+
+    private void closeActive() throws IOException {
+        if (mActive == null)
+            return;
+
+        try {
+            mActiveWriter.close();
+        } finally {
+            mActive = null;
+            mActiveOut = null;
+            mActiveWriter = null;
+        }
+    }
+
+    /**
+     * 总大小超过上限时从最旧的段开始整段删除, 当前段不删除
+     */
+    private synchronized void enforceMaxSize() {
+        long total = mActiveWriter != null ? mActiveWriter.size() : 0;
+        for (Segment segment : mSegments) {
+            if (segment != mActive)
+                total += segment.size;
+        }
+
+        while (total > mMaxSize && !mSegments.isEmpty() && mSegments.get(0) != mActive) {
+            Segment oldest = mSegments.remove(0);
+            total -= oldest.size;
+            //noinspection ResultOfMethodCallIgnored
+            oldest.file.delete();
+        }
+    }
+
+    private void scheduleCompression(@NonNull Segment segment) {
+        mCompressor.execute(() -> compress(segment));
+    }
+
+    /**
+     * 在压缩线程中执行: 先写临时文件, 压缩完成后再替换段文件; 期间段被删除时放弃
+     * <p>
+     * 上次运行时的当前段没有索引, 先读一遍建立索引; 没有日志的段直接删除
+     */
+    private void compress(@NonNull Segment segment) {
+        File source;
+        long minTime;
+        long maxTime;
+        int index;
+        boolean indexed;
+        synchronized (this) {
+            if (segment.compressed || !mSegments.contains(segment))
+                return;
+            source = segment.file;
+            minTime = segment.minTime;
+            maxTime = segment.maxTime;
+            index = segment.index;
+            indexed = segment.indexed;
+        }
+
+        if (!indexed) {
+            long[] times = { Long.MAX_VALUE, Long.MIN_VALUE };
+            int[] bits = { 0 };
+            try (InputStream in = new FileInputStream(source)) {
+                LogCacheCodec.read(in, mAppVersion, 0, li -> {
+                    times[0] = Math.min(times[0], li.getLogtime());
+                    times[1] = Math.max(times[1], li.getLogtime());
+                    bits[0] |= LogQuery.indexBits(li.getLogSource(), li.getLogLevel());
+                    return false;
+                });
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+
+            if (bits[0] == 0) {
+                synchronized (this) {
+                    mSegments.remove(segment);
+                    //noinspection ResultOfMethodCallIgnored
+                    source.delete();
+                }
+                return;
+            }
+            minTime = times[0];
+            maxTime = times[1];
+            index = bits[0];
+        }
+
+        File target = new File(mDir, indexedName(segment.id, minTime, maxTime, index) + COMPRESSED_SUFFIX);
+        File temp = new File(mDir, target.getName() + TEMP_SUFFIX);
+
+        try (
+            InputStream in = new FileInputStream(source);
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 16 * 1024)
+        ) {
+            byte[] buf = new byte[16 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buf)) > 0) {
+                out.write(buf, 0, bytesRead);
+            }
+
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!mSegments.contains(segment) || !temp.renameTo(target)) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                return;
+            }
+
+            segment.file = target;
+            segment.compressed = true;
+            segment.size = target.length();
+            segment.setIndex(minTime, maxTime, index);
+            //noinspection ResultOfMethodCallIgnored
+            source.delete();
+        }
+    }
+
+    /**
+     * 读取最新的maxItems条日志, 按时间从旧到新; 从最新的段开始往前读, 读够为止
+     * <p>
+     * 当前段中还没写出的日志不包括在内; 读取失败的段跳过
+     */
+    @NonNull
+    List<LogItem> readLast(int maxItems) {
+        List<Segment> segments;
+        synchronized (this) {
+            segments = new ArrayList<>(mSegments);
+        }
+        return readLast(segments, maxItems, null);
+    }
+
+    /**
+     * 查询满足条件的最新query.getLimit()条日志, 按时间从旧到新; 只读取按索引可能匹配的段
+     * <p>
+     * 当前段中还没写出的日志不包括在内; 可以由任意线程调用
+     *
+     * @param c 用于匹配资源日志的文本
+     */
+    @NonNull
+    List<LogItem> query(@NonNull LogQuery query, @Nullable Context c) {
+        List<Segment> segments = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : mSegments) {
+                if (segment.mayMatch(query))
+                    segments.add(segment);
+            }
+        }
+        return readLast(segments, query.getLimit(), li -> query.matches(li, c));
+    }
+
+    /**
+     * 按时间从旧到新把全部日志交给visitor, 不在内存中保留; visitor的返回值被忽略
+     * <p>
+     * 当前段中还没写出的日志不包括在内; 可以由任意线程调用
+     */
+    void forEach(@NonNull LogCacheCodec.Filter visitor) {
+        List<Segment> segments;
+        synchronized (this) {
+            segments = new ArrayList<>(mSegments);
+        }
+
+        for (Segment segment : segments) {
+            try (InputStream in = open(segment)) {
+                if (in != null)
+                    LogCacheCodec.read(in, mAppVersion, 0, li -> {
+                        visitor.accept(li);
+                        return false;
+                    });
+
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    @NonNull
+    private List<LogItem> readLast(@NonNull List<Segment> segments, int maxItems, @Nullable LogCacheCodec.Filter filter) {
+        ArrayDeque<List<LogItem>> parts = new ArrayDeque<>();
+        int remaining = maxItems;
+        for (int i = segments.size() - 1; i >= 0 && remaining > 0; --i) {
+            try (InputStream in = open(segments.get(i))) {
+                if (in == null)
+                    continue;
+                List<LogItem> items = LogCacheCodec.read(in, mAppVersion, remaining, filter);
+                parts.addFirst(items);
+                remaining -= items.size();
+
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        List<LogItem> result = new ArrayList<>(maxItems - remaining);
+        for (List<LogItem> items : parts) {
+            result.addAll(items);
+        }
+        return result;
+    }
+
+    /**
+     * 打开段文件时持有锁, 之后压缩线程替换或删除文件不影响已打开的流
+     *
+     * @return 段已被删除时返回null
+     */
+    @Nullable
+    private InputStream open(@NonNull Segment segment) throws IOException {
+        boolean compressed;
+        InputStream in;
+        synchronized (this) {
+            if (!mSegments.contains(segment))
+                return null;
+            compressed = segment.compressed;
+            in = new FileInputStream(segment.file);
+        }
+
+        if (!compressed)
+            return in;
+
+        try {
+            return new GZIPInputStream(new BufferedInputStream(in, 16 * 1024), 16 * 1024);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * 当前段缓冲区中的日志写入系统; 只能在写线程中调用
+     */
+    void flush() throws IOException {
+        if (mActiveWriter != null)
+            mActiveWriter.flush();
+    }
+
+    /**
+     * flush()并把当前段同步到存储; 只能在写线程中调用
+     */
+    void sync() throws IOException {
+        if (mActiveWriter != null) {
+            mActiveWriter.flush();
+            mActiveOut.getFD().sync();
+        }
+    }
+
+    /**
+     * 删除全部段; 只能在写线程中调用
+     */
+    void clear() throws IOException {
+        try {
+            closeActive();
+        } finally {
+            synchronized (this) {
+                for (Segment segment : mSegments) {
+                    //noinspection ResultOfMethodCallIgnored
+                    segment.file.delete();
+                }
+                mSegments.clear();
+            }
+        }
+    }
+
+    /**
+     * 结束当前段; 只能在写线程中调用
+     */
+    void close() throws IOException {
+        Segment segment = mActive;
+        closeActive();
+        if (segment != null) {
+            synchronized (this) {
+                segment.size = segment.file.length();
+            }
+        }
+    }
+
+    /**
+     * @return 全部段文件的总字节数, 包括当前段已写出的部分
+     */
+    synchronized long getTotalSize() {
+        long total = 0;
+        for (Segment segment : mSegments) {
+            total += segment.file.length();
+        }
+        return total;
+    }
+
+    synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+}
@@ -109,6 +109,11 @@ public class StatusListener implements VpnStatus.LogListener {
             VpnStatus.newLogItem(item);
         }
 
+        @Override
+        public void newLogItems(List<LogItem> items) {
+            VpnStatus.newLogItems(items);
+        }
+
         @Override
         public void updateByteCount(long inBytes, long outBytes) {
             VpnStatus.updateByteCount(inBytes, outBytes);
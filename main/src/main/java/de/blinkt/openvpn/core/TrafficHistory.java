@@ -10,9 +10,7 @@ import android.os.Parcelable;
 
 import androidx.annotation.NonNull;
 
-import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.Vector;
 
 /**
  * Created by arne on 23.05.17.
@@ -24,23 +22,32 @@ public class TrafficHistory implements Parcelable {
     public static final long TIME_PERIOD_HOURS = 3600 * 1000;
     public static final long PERIODS_TO_KEEP = 5;
 
-    private LinkedList<TrafficDatapoint> trafficHistorySeconds = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryMinutes = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryHours = new LinkedList<>();
+    // 每种粒度的采样都用环形缓冲区保存, 追加和过期都不分配对象, 跨进程传递时直接写long数组
+    private final TrafficRing trafficHistorySeconds = new TrafficRing();
+    private final TrafficRing trafficHistoryMinutes = new TrafficRing();
+    private final TrafficRing trafficHistoryHours = new TrafficRing();
 
-    private TrafficDatapoint lastSecondUsedForMinute;
-    private TrafficDatapoint lastMinuteUsedForHours;
+    // 最近一次汇总到分钟/小时的时间戳
+    private long lastSecondUsedForMinute;
+    private long lastMinuteUsedForHours;
+
+    // 最近一次采样及与前一次采样的差值
+    private long lastIn;
+    private long lastOut;
+    private long lastDiffIn;
+    private long lastDiffOut;
 
     public TrafficHistory() {
 
     }
 
     protected TrafficHistory(@NonNull Parcel in) {
-        in.readList(trafficHistorySeconds, getClass().getClassLoader());
-        in.readList(trafficHistoryMinutes, getClass().getClassLoader());
-        in.readList(trafficHistoryHours, getClass().getClassLoader());
-        lastSecondUsedForMinute = in.readParcelable(getClass().getClassLoader());
-        lastMinuteUsedForHours = in.readParcelable(getClass().getClassLoader());
+        trafficHistorySeconds.readFromParcel(in);
+        trafficHistoryMinutes.readFromParcel(in);
+        trafficHistoryHours.readFromParcel(in);
+        lastSecondUsedForMinute = in.readLong();
+        lastMinuteUsedForHours = in.readLong();
+        updateLastDiff();
     }
 
     public static final Creator<TrafficHistory> CREATOR = new Creator<TrafficHistory>() {
@@ -55,25 +62,36 @@ public class TrafficHistory implements Parcelable {
         }
     };
 
-    public LastDiff getLastDiff(TrafficDatapoint tdp) {
-        TrafficDatapoint lasttdp;
-
-        if (trafficHistorySeconds.size() == 0)
-            lasttdp = new TrafficDatapoint(0, 0, System.currentTimeMillis());
-        else
-            lasttdp = trafficHistorySeconds.getLast();
-
-        if (tdp == null) {
-            tdp = lasttdp;
-            if (trafficHistorySeconds.size() < 2)
-                lasttdp = tdp;
-            else {
-                trafficHistorySeconds.descendingIterator().next();
-                tdp = trafficHistorySeconds.descendingIterator().next();
+    public long getLastIn() {
+        return lastIn;
+    }
+
+    public long getLastOut() {
+        return lastOut;
+    }
+
+    public long getLastDiffIn() {
+        return lastDiffIn;
+    }
+
+    public long getLastDiffOut() {
+        return lastDiffOut;
+    }
+
+    private void updateLastDiff() {
+        int size = trafficHistorySeconds.size();
+        if (size == 0) {
+            lastIn = lastOut = lastDiffIn = lastDiffOut = 0;
+        } else {
+            lastIn = trafficHistorySeconds.in(size - 1);
+            lastOut = trafficHistorySeconds.out(size - 1);
+            if (size < 2) {
+                lastDiffIn = lastDiffOut = 0;
+            } else {
+                lastDiffIn = Math.max(0, lastIn - trafficHistorySeconds.in(size - 2));
+                lastDiffOut = Math.max(0, lastOut - trafficHistorySeconds.out(size - 2));
             }
         }
-
-        return new LastDiff(lasttdp, tdp);
     }
 
     @Override
@@ -83,37 +101,41 @@ public class TrafficHistory implements Parcelable {
 
     @Override
     public void writeToParcel(@NonNull Parcel dest, int flags) {
-        dest.writeList(trafficHistorySeconds);
-        dest.writeList(trafficHistoryMinutes);
-        dest.writeList(trafficHistoryHours);
-        dest.writeParcelable(lastSecondUsedForMinute, 0);
-        dest.writeParcelable(lastMinuteUsedForHours, 0);
+        trafficHistorySeconds.writeToParcel(dest);
+        trafficHistoryMinutes.writeToParcel(dest);
+        trafficHistoryHours.writeToParcel(dest);
+        dest.writeLong(lastSecondUsedForMinute);
+        dest.writeLong(lastMinuteUsedForHours);
     }
 
     public void copyFrom(@NonNull TrafficHistory other) {
-        if (other.trafficHistorySeconds != null)
-            trafficHistorySeconds = new LinkedList<>(other.trafficHistorySeconds);
-        if (other.trafficHistoryMinutes != null)
-            trafficHistoryMinutes = new LinkedList<>(other.trafficHistoryMinutes);
-        if (other.trafficHistoryHours != null)
-            trafficHistoryHours = new LinkedList<>(other.trafficHistoryHours);
-
-        if (other.lastSecondUsedForMinute != null)
-            lastSecondUsedForMinute = new TrafficDatapoint(other.lastSecondUsedForMinute);
-        if (other.lastMinuteUsedForHours != null)
-            lastMinuteUsedForHours = new TrafficDatapoint(other.lastMinuteUsedForHours);
+        trafficHistorySeconds.copyFrom(other.trafficHistorySeconds);
+        trafficHistoryMinutes.copyFrom(other.trafficHistoryMinutes);
+        trafficHistoryHours.copyFrom(other.trafficHistoryHours);
+        lastSecondUsedForMinute = other.lastSecondUsedForMinute;
+        lastMinuteUsedForHours = other.lastMinuteUsedForHours;
+        updateLastDiff();
     }
 
+    /**
+     * 返回小时级采样的副本
+     */
     public LinkedList<TrafficDatapoint> getHours() {
-        return trafficHistoryHours;
+        return trafficHistoryHours.toList();
     }
 
+    /**
+     * 返回分钟级采样的副本
+     */
     public LinkedList<TrafficDatapoint> getMinutes() {
-        return trafficHistoryMinutes;
+        return trafficHistoryMinutes.toList();
     }
 
+    /**
+     * 返回秒级采样的副本
+     */
     public LinkedList<TrafficDatapoint> getSeconds() {
-        return trafficHistorySeconds;
+        return trafficHistorySeconds.toList();
     }
 
     public static LinkedList<TrafficDatapoint> getDummyList() {
@@ -122,138 +144,49 @@ public class TrafficHistory implements Parcelable {
         return list;
     }
 
-    LastDiff add(long in, long out) {
-        TrafficDatapoint tdp = new TrafficDatapoint(in, out, System.currentTimeMillis());
-        LastDiff diff = getLastDiff(tdp);
-        addDataPoint(tdp);
-        return diff;
-    }
-
-    private void addDataPoint(TrafficDatapoint tdp) {
-        trafficHistorySeconds.add(tdp);
-
-        if (lastSecondUsedForMinute == null) {
-            lastSecondUsedForMinute = new TrafficDatapoint(0, 0, 0);
-            lastMinuteUsedForHours = new TrafficDatapoint(0, 0, 0);
-        }
-
-        removeAndAverage(tdp, true);
-    }
-
-    private void removeAndAverage(TrafficDatapoint newTdp, boolean seconds) {
-        HashSet<TrafficDatapoint> toRemove = new HashSet<>();
-        Vector<TrafficDatapoint> toAverage = new Vector<>();
-
-        long timePeriod;
-        LinkedList<TrafficDatapoint> tpList, nextList;
-        TrafficDatapoint lastTsPeriod;
-
-        if (seconds) {
-            timePeriod = TIME_PERIOD_MINTUES;
-            tpList = trafficHistorySeconds;
-            nextList = trafficHistoryMinutes;
-            lastTsPeriod = lastSecondUsedForMinute;
-        } else {
-            timePeriod = TIME_PERIOD_HOURS;
-            tpList = trafficHistoryMinutes;
-            nextList = trafficHistoryHours;
-            lastTsPeriod = lastMinuteUsedForHours;
-        }
-
-        if (newTdp.timestamp / timePeriod > (lastTsPeriod.timestamp / timePeriod)) {
-            nextList.add(newTdp);
-
-            if (seconds) {
-                lastSecondUsedForMinute = newTdp;
-                removeAndAverage(newTdp, false);
-            } else
-                lastMinuteUsedForHours = newTdp;
-
-            for (TrafficDatapoint tph : tpList) {
-                // List is iteratered from oldest to newest, remembert first one that we did not
-                if ((newTdp.timestamp - tph.timestamp) / timePeriod >= PERIODS_TO_KEEP)
-                    toRemove.add(tph);
+    /**
+     * 追加一次采样, 差值通过getLastDiffIn()/getLastDiffOut()获取; 不分配对象
+     */
+    void add(long in, long out) {
+        long now = System.currentTimeMillis();
+        int size = trafficHistorySeconds.size();
+
+        // 与前一次采样比较, 没有前一次采样时和0比较
+        lastDiffIn = Math.max(0, in - (size == 0 ? 0 : trafficHistorySeconds.in(size - 1)));
+        lastDiffOut = Math.max(0, out - (size == 0 ? 0 : trafficHistorySeconds.out(size - 1)));
+        lastIn = in;
+        lastOut = out;
+
+        trafficHistorySeconds.add(now, in, out);
+
+        if (now / TIME_PERIOD_MINTUES > lastSecondUsedForMinute / TIME_PERIOD_MINTUES) {
+            trafficHistoryMinutes.add(now, in, out);
+            lastSecondUsedForMinute = now;
+            trafficHistorySeconds.expire(now, TIME_PERIOD_MINTUES, PERIODS_TO_KEEP);
+
+            if (now / TIME_PERIOD_HOURS > lastMinuteUsedForHours / TIME_PERIOD_HOURS) {
+                trafficHistoryHours.add(now, in, out);
+                lastMinuteUsedForHours = now;
+                trafficHistoryMinutes.expire(now, TIME_PERIOD_HOURS, PERIODS_TO_KEEP);
             }
-            tpList.removeAll(toRemove);
         }
     }
 
-    public static class TrafficDatapoint implements Parcelable {
+    /**
+     * 一次采样, 只用于对外提供数据, 内部不保存
+     */
+    public static class TrafficDatapoint {
 
         public final long timestamp;
         public final long in;
         public final long out;
 
-        private TrafficDatapoint(@NonNull TrafficDatapoint other) {
-            this.timestamp = other.timestamp;
-            this.in = other.in;
-            this.out = other.out;
-        }
-
-        private TrafficDatapoint(long inBytes, long outBytes, long timestamp) {
+        TrafficDatapoint(long inBytes, long outBytes, long timestamp) {
             this.in = inBytes;
             this.out = outBytes;
             this.timestamp = timestamp;
         }
 
-        private TrafficDatapoint(@NonNull Parcel in) {
-            timestamp = in.readLong();
-            this.in = in.readLong();
-            out = in.readLong();
-        }
-
-        public static final Creator<TrafficDatapoint> CREATOR = new Creator<TrafficDatapoint>() {
-            @Override
-            public TrafficDatapoint createFromParcel(Parcel in) {
-                return new TrafficDatapoint(in);
-            }
-
-            @Override
-            public TrafficDatapoint[] newArray(int size) {
-                return new TrafficDatapoint[size];
-            }
-        };
-
-        @Override
-        public int describeContents() {
-            return 0;
-        }
-
-        @Override
-        public void writeToParcel(@NonNull Parcel dest, int flags) {
-            dest.writeLong(timestamp);
-            dest.writeLong(in);
-            dest.writeLong(out);
-        }
-
-    }
-
-    static class LastDiff {
-
-        private final TrafficDatapoint tdp;
-        private final TrafficDatapoint lasttdp;
-
-        private LastDiff(@NonNull TrafficDatapoint lasttdp, @NonNull TrafficDatapoint tdp) {
-            this.lasttdp = lasttdp;
-            this.tdp = tdp;
-        }
-
-        public long getDiffOut() {
-            return Math.max(0, tdp.out - lasttdp.out);
-        }
-
-        public long getDiffIn() {
-            return Math.max(0, tdp.in - lasttdp.in);
-        }
-
-        public long getIn() {
-            return tdp.in;
-        }
-
-        public long getOut() {
-            return tdp.out;
-        }
-
     }
 
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * 按时间顺序保存流量采样的环形缓冲区, 时间戳和收发字节数分别存放在预分配的long数组中, 追加采样不分配对象
+ */
+final class TrafficRing {
+
+    static final int DEFAULT_CAPACITY = 512;
+
+    private long[] mTimestamps;
+    private long[] mIn;
+    private long[] mOut;
+    private int mHead;
+    private int mSize;
+
+    TrafficRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TrafficRing(int capacity) {
+        mTimestamps = new long[capacity];
+        mIn = new long[capacity];
+        mOut = new long[capacity];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long timestamp(int index) {
+        return mTimestamps[slot(index)];
+    }
+
+    long in(int index) {
+        return mIn[slot(index)];
+    }
+
+    long out(int index) {
+        return mOut[slot(index)];
+    }
+
+    void add(long timestamp, long in, long out) {
+        if (mSize == mTimestamps.length)
+            grow();
+
+        int slot = slot(mSize);
+        mTimestamps[slot] = timestamp;
+        mIn[slot] = in;
+        mOut[slot] = out;
+        ++mSize;
+    }
+
+    /**
+     * 从最旧的采样开始, 删除 (now - timestamp) / period >= periods 的采样
+     */
+    void expire(long now, long period, long periods) {
+        while (mSize > 0 && (now - mTimestamps[mHead]) / period >= periods) {
+            mHead = (mHead + 1) % mTimestamps.length;
+            --mSize;
+        }
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    void copyFrom(@NonNull TrafficRing other) {
+        if (mTimestamps.length < other.mSize) {
+            mTimestamps = new long[other.mTimestamps.length];
+            mIn = new long[other.mTimestamps.length];
+            mOut = new long[other.mTimestamps.length];
+        }
+        other.copyTo(other.mTimestamps, mTimestamps);
+        other.copyTo(other.mIn, mIn);
+        other.copyTo(other.mOut, mOut);
+        mHead = 0;
+        mSize = other.mSize;
+    }
+
+    /**
+     * 按时间顺序写入三个long数组
+     */
+    void writeToParcel(@NonNull Parcel dest) {
+        long[] array = new long[mSize];
+        copyTo(mTimestamps, array);
+        dest.writeLongArray(array);
+        copyTo(mIn, array);
+        dest.writeLongArray(array);
+        copyTo(mOut, array);
+        dest.writeLongArray(array);
+    }
+
+    /**
+     * 读取writeToParcel()写入的数据, 替换当前内容
+     */
+    void readFromParcel(@NonNull Parcel in) {
+        long[] timestamps = in.createLongArray();
+        long[] bytesIn = in.createLongArray();
+        long[] bytesOut = in.createLongArray();
+        int size = Math.min(timestamps.length, Math.min(bytesIn.length, bytesOut.length));
+
+        int capacity = Math.max(size, DEFAULT_CAPACITY);
+        mTimestamps = Arrays.copyOf(timestamps, capacity);
+        mIn = Arrays.copyOf(bytesIn, capacity);
+        mOut = Arrays.copyOf(bytesOut, capacity);
+        mHead = 0;
+        mSize = size;
+    }
+
+    /**
+     * 转换为TrafficDatapoint列表, 供界面和跨进程传递使用; 每次调用都会分配新的列表
+     */
+    @NonNull
+    LinkedList<TrafficHistory.TrafficDatapoint> toList() {
+        LinkedList<TrafficHistory.TrafficDatapoint> list = new LinkedList<>();
+        for (int i = 0; i < mSize; ++i)
+            list.add(new TrafficHistory.TrafficDatapoint(in(i), out(i), timestamp(i)));
+        return list;
+    }
+
+    private int slot(int index) {
+        return (mHead + index) % mTimestamps.length;
+    }
+
+    private void grow() {
+        // 先把数据整理到数组开头, 再扩容
+        int capacity = mTimestamps.length * 2;
+        mTimestamps = unwrap(mTimestamps, capacity);
+        mIn = unwrap(mIn, capacity);
+        mOut = unwrap(mOut, capacity);
+        mHead = 0;
+    }
+
+    private long[] unwrap(long[] array, int capacity) {
+        long[] result = new long[capacity];
+        copyTo(array, result);
+        return result;
+    }
+
+    /**
+     * 把本环形缓冲区的一个数组按时间顺序复制到dest开头, 最多两次arraycopy
+     */
+    private void copyTo(long[] array, long[] dest) {
+        int tail = Math.min(mSize, array.length - mHead);
+        System.arraycopy(array, mHead, dest, 0, tail);
+        System.arraycopy(array, 0, dest, tail, mSize - tail);
+    }
+
+}
@@ -20,10 +20,11 @@ import de.blinkt.xp.openvpn.R;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.blinkt.openvpn.utils.NativeUtils;
 
@@ -40,6 +41,14 @@ public class VpnStatus {
 
     public interface LogListener {
         void newLog(@NonNull LogItem logItem);
+
+        /**
+         * 一批连续的日志, 默认逐条调用newLog(...); logItems不能修改
+         */
+        default void newLogs(@NonNull List<LogItem> logItems) {
+            for (LogItem logItem : logItems)
+                newLog(logItem);
+        }
     }
 
     public interface ByteCountListener {
@@ -58,22 +67,33 @@ public class VpnStatus {
     private static Intent gLastIntent = null;
     private static String gLastConnectedVPNUUID;
 
-    // logBufferAll, logBufferMap 为全局共享, 使用需持有LOG_LOCK锁
+    // 日志保存在每个LogSource一个的无锁环形缓冲区中, 读写都不需要加锁; mLogFileHandler的创建需持有LOG_LOCK锁
     public static final Object LOG_LOCK = new Object();
-    private static final List<LogListener> gLogListeners = new ArrayList<>();
-    private static final LinkedList<LogItem> gLogBufferAll = new LinkedList<>();
-    private static final Map<LogSource, LinkedList<LogItem>> gLogBufferMap = new HashMap<>();
+    // 每个LogListener有自己的队列和投递线程
+    private static final LogDispatcher gLogDispatcher = new LogDispatcher();
+    private static final Map<LogSource, LogRing> gLogRings = new EnumMap<>(LogSource.class);
+    // 全局序号, 合并各LogSource时按它排序; 从文件缓存读入的日志用负数排在最前面
+    private static final AtomicLong gLogSequence = new AtomicLong();
+    private static final AtomicLong gCachedLogSequence = new AtomicLong();
+
+    static {
+        for (LogSource source : LogSource.values())
+            gLogRings.put(source, new LogRing(MAX_LOGE_NTRIES + MAX_LOGE_NTRIES));
+    }
 
     // trafficHistory 为全局共享, 使用需持有TRAFFIC_LOCK锁
     public static final Object TRAFFIC_LOCK = new Object();
     public static final TrafficHistory TRAFFIC_HISTORY = new TrafficHistory();
     private static final List<ByteCountListener> gByteCountListeners = new ArrayList<>();
 
+    // 管理接口的结构化事件, 只由管理接口读线程发布, 订阅者各自按自己的速度读取
+    public static final ManagementEventRing MANAGEMENT_EVENTS = new ManagementEventRing(1024);
+
 
     public static void addByteCountListener(@NonNull ByteCountListener bcl) {
         synchronized (TRAFFIC_LOCK) {
-            TrafficHistory.LastDiff diff = TRAFFIC_HISTORY.getLastDiff(null);
-            bcl.updateByteCount(diff.getIn(), diff.getOut(), diff.getDiffIn(), diff.getDiffOut());
+            bcl.updateByteCount(TRAFFIC_HISTORY.getLastIn(), TRAFFIC_HISTORY.getLastOut(),
+                TRAFFIC_HISTORY.getLastDiffIn(), TRAFFIC_HISTORY.getLastDiffOut());
             gByteCountListeners.add(bcl);
         }
     }
@@ -84,16 +104,39 @@ public class VpnStatus {
         }
     }
 
+    /**
+     * 监听器在自己的线程中收到日志, 处理不过来时丢弃最旧的日志并用一条日志说明丢弃的数量
+     */
     public static void addLogListener(@NonNull LogListener ll) {
-        synchronized (LOG_LOCK) {
-            gLogListeners.add(ll);
-        }
+        addLogListener(ll, LogDispatcher.Overflow.COALESCE, LogDispatcher.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param overflow 监听器积压capacity条日志后的处理
+     */
+    static void addLogListener(@NonNull LogListener ll, @NonNull LogDispatcher.Overflow overflow, int capacity) {
+        gLogDispatcher.add(ll, overflow, capacity);
     }
 
     public static void removeLogListener(@NonNull LogListener ll) {
-        synchronized (LOG_LOCK) {
-            gLogListeners.remove(ll);
-        }
+        gLogDispatcher.remove(ll);
+    }
+
+    /**
+     * 等待已发布的日志都投递给监听器
+     *
+     * @return 超时返回false
+     */
+    static boolean awaitLogListeners(long timeoutMillis) throws InterruptedException {
+        return gLogDispatcher.awaitIdle(timeoutMillis);
+    }
+
+    /**
+     * @return 每个LogListener一行: 队列深度, 最大深度, 投递数和丢弃数
+     */
+    @NonNull
+    public static String dumpLogListeners() {
+        return gLogDispatcher.dump();
     }
 
     public static void addStatusListener(@NonNull StatusListener sl) {
@@ -148,19 +191,87 @@ public class VpnStatus {
         }
     }
 
-    // 调用需持有LOG_LOCK锁
-    public static LinkedList<LogItem> getLogBufferAll() {
-        return gLogBufferAll;
+    /**
+     * @return 所有LogSource的日志快照, 按写入顺序; 调用者可以修改返回的列表
+     */
+    @NonNull
+    public static List<LogItem> getLogBufferAll() {
+        List<LogRing.Entry> entries = new ArrayList<>();
+        for (LogRing ring : gLogRings.values()) {
+            ring.snapshot(entries);
+        }
+        return sortedItems(entries);
+    }
+
+    /**
+     * 查询日志历史, 包括以前运行时保存在文件缓存中的日志; 文件缓存不可用时只查询内存中的日志
+     * <p>
+     * 文件缓存只在调用了initLogCache()的界面进程中, :openvpn进程中只能查询内存中的日志; 会读取文件, 不要在主线程中调用
+     *
+     * @return 满足条件的最新query.getLimit()条日志, 按时间从旧到新
+     */
+    @NonNull
+    public static List<LogItem> queryLogs(@NonNull LogQuery query) {
+        LogFileHandler logFileHandler = mLogFileHandler;
+        if (logFileHandler != null) {
+            try {
+                List<LogItem> items = logFileHandler.query(query);
+                if (items != null)
+                    return items;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<LogItem> items = new ArrayList<>();
+        for (LogItem li : getLogBufferAll()) {
+            if (query.matches(li, null))
+                items.add(li);
+        }
+        return items.size() > query.getLimit() ? items.subList(items.size() - query.getLimit(), items.size()) : items;
+    }
+
+    /**
+     * 按时间从旧到新把日志历史交给visitor, 用于导出; 文件缓存不可用时只有内存中的日志
+     * <p>
+     * 会读取文件, 不要在主线程中调用
+     */
+    static void forEachLog(@NonNull LogCacheCodec.Filter visitor) {
+        LogFileHandler logFileHandler = mLogFileHandler;
+        if (logFileHandler != null) {
+            try {
+                if (logFileHandler.forEach(visitor))
+                    return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        for (LogItem li : getLogBufferAll()) {
+            visitor.accept(li);
+        }
+    }
+
+    /**
+     * @return 一个LogSource的日志快照, 按写入顺序; 调用者可以修改返回的列表
+     */
+    @NonNull
+    public static List<LogItem> getLogBuffer(@NonNull LogSource source) {
+        List<LogRing.Entry> entries = new ArrayList<>();
+        gLogRings.get(source).snapshot(entries);
+        return sortedItems(entries);
     }
 
-    // 调用需持有LOG_LOCK锁
-    public static LinkedList<LogItem> getLogBuffer(@NonNull LogSource source) {
-        LinkedList<LogItem> logBuffer = gLogBufferMap.get(source);
-        if (logBuffer == null) {
-            logBuffer = new LinkedList<>();
-            gLogBufferMap.put(source, logBuffer);
+    @NonNull
+    private static List<LogItem> sortedItems(@NonNull List<LogRing.Entry> entries) {
+        // 各环内基本有序, 归并排序接近线性
+        Collections.sort(entries, (a, b) -> Long.compare(a.sequence, b.sequence));
+        List<LogItem> items = new ArrayList<>(entries.size());
+        for (LogRing.Entry entry : entries) {
+            items.add(entry.item);
         }
-        return logBuffer;
+        return items;
     }
 
     public static void updateStatusPause(@NonNull OpenVPNManagement.PauseReason pauseReason) {
@@ -209,6 +320,7 @@ public class VpnStatus {
             LAST_CONNECTION_STATUS.setMessage(msg);
             LAST_CONNECTION_STATUS.setResid(resid);
             gLastIntent = intent;
+            ConnectPhaseTracker.markStatus(status, LAST_CONNECTION_STATUS.getLevel());
 
             Bundle extra = new Bundle();
             extra.putParcelable("LAST_INTENT", gLastIntent);
@@ -254,9 +366,12 @@ public class VpnStatus {
 
     public static void updateByteCount(long in, long out) {
         synchronized (TRAFFIC_LOCK) {
-            TrafficHistory.LastDiff diff = TRAFFIC_HISTORY.add(in, out);
-            for (ByteCountListener bcl : gByteCountListeners) {
-                bcl.updateByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
+            TRAFFIC_HISTORY.add(in, out);
+            long diffIn = TRAFFIC_HISTORY.getLastDiffIn();
+            long diffOut = TRAFFIC_HISTORY.getLastDiffOut();
+            // 每秒都会调用, 用下标遍历避免创建Iterator
+            for (int i = 0, N = gByteCountListeners.size(); i < N; ++i) {
+                gByteCountListeners.get(i).updateByteCount(in, out, diffIn, diffOut);
             }
         }
     }
@@ -313,59 +428,70 @@ public class VpnStatus {
         newLogItem(new LogItem(LogSource.OPENVPN_CONSOLE, level, message));
     }
 
+    public static void logOpenVPNConsole(LogLevel level, String message, long logtime) {
+        newLogItem(new LogItem(LogSource.OPENVPN_CONSOLE, level, message, logtime));
+    }
+
     public static void logOpenVPNManagement(LogLevel level, String message) {
         newLogItem(new LogItem(LogSource.OPENVPN_MANAGEMENT, level, message));
     }
 
+    private static HandlerThread mHandlerThread;
+    private static volatile LogFileHandler mLogFileHandler;
+
     public static void newLogItem(@NonNull LogItem logItem) {
-        newLogItem(logItem, false);
-    }
+        appendLogItem(logItem);
 
+        LogFileHandler logFileHandler = mLogFileHandler;
+        if (logFileHandler != null)
+            logFileHandler.enqueue(logItem);
 
-    private static HandlerThread mHandlerThread;
-    private static LogFileHandler mLogFileHandler;
+        gLogDispatcher.publish(logItem);
+    }
 
-    static void newLogItem(LogItem logItem, boolean cachedLine) {
-        synchronized (LOG_LOCK) {
-            if (cachedLine) {
-                gLogBufferAll.addFirst(logItem);
-            } else {
-                gLogBufferAll.addLast(logItem);
-            }
+    /**
+     * 一次发布一批日志: 每个LogListener的队列只入队一次
+     * <p>
+     * 调用后logItems归VpnStatus所有, 调用者不能再修改
+     */
+    public static void newLogItems(@NonNull List<LogItem> logItems) {
+        if (logItems.isEmpty())
+            return;
 
-            LinkedList<LogItem> logBuffer = gLogBufferMap.get(logItem.getLogSource());
-            if (logBuffer == null) {
-                logBuffer = new LinkedList<>();
-                gLogBufferMap.put(logItem.getLogSource(), logBuffer);
-            }
+        for (LogItem logItem : logItems) {
+            appendLogItem(logItem);
+        }
 
-            if (cachedLine) {
-                // 从文件缓存读入的日志不要再写入文件
-                logBuffer.addFirst(logItem);
-            } else {
-                logBuffer.addLast(logItem);
-                if (mLogFileHandler != null) {
-                    Message msg = mLogFileHandler.obtainMessage(LogFileHandler.LOG_MESSAGE, logItem);
-                    mLogFileHandler.sendMessage(msg);
-                }
-            }
+        LogFileHandler logFileHandler = mLogFileHandler;
+        if (logFileHandler != null)
+            logFileHandler.enqueue(logItems);
 
-            if (logBuffer.size() > MAX_LOGE_NTRIES + MAX_LOGE_NTRIES) {
-                while (logBuffer.size() > MAX_LOGE_NTRIES) {
-                    logItem = logBuffer.removeFirst();
-                    gLogBufferAll.remove(logItem);
-                }
+        gLogDispatcher.publish(logItems);
+    }
 
-                // 截断并重建文件缓存
-                if (mLogFileHandler != null) {
-                    mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
-                }
-            }
+    /**
+     * 发布从文件缓存读入的日志, 不再写入文件; logItems按时间从旧到新排列
+     * <p>
+     * 整批分配一段连续的负序号, 保持原有顺序并排在本次启动的日志之前
+     */
+    static void restoreLogItems(@NonNull List<LogItem> logItems) {
+        if (logItems.isEmpty())
+            return;
 
-            for (LogListener ll : gLogListeners) {
-                ll.newLog(logItem);
-            }
+        long base = gCachedLogSequence.addAndGet(-logItems.size());
+        for (int i = 0; i < logItems.size(); ++i) {
+            LogItem logItem = logItems.get(i);
+            gLogRings.get(logItem.getLogSource()).append(logItem, base + i);
         }
+
+        gLogDispatcher.publish(logItems);
+    }
+
+    /**
+     * 不加锁, 可以由多个线程同时调用; 文件缓存由SegmentedLogStore自己限制大小, 不需要随环截断
+     */
+    private static void appendLogItem(@NonNull LogItem logItem) {
+        gLogRings.get(logItem.getLogSource()).append(logItem, gLogSequence.getAndIncrement());
     }
 
     public static void initLogCache(@NonNull Context context) {
@@ -390,9 +516,8 @@ public class VpnStatus {
     }
 
     public static void clearLog() {
-        synchronized (LOG_LOCK) {
-            gLogBufferAll.clear();
-            gLogBufferMap.clear();
+        for (LogRing ring : gLogRings.values()) {
+            ring.clear();
         }
 
         logPlatformInfo();
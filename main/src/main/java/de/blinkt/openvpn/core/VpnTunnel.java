@@ -9,6 +9,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 public class VpnTunnel implements Parcelable {
 
@@ -26,6 +27,9 @@ public class VpnTunnel implements Parcelable {
     private String virtualIPv4Addr;
     private String virtualIPv6Addr;
 
+    // 不可修改, 可以直接共享
+    private PushedOptions pushedOptions;
+
     public VpnTunnel() {
     }
 
@@ -39,6 +43,7 @@ public class VpnTunnel implements Parcelable {
         virtualIPv6Gateway = other.virtualIPv6Gateway;
         virtualIPv4Addr = other.virtualIPv4Addr;
         virtualIPv6Addr = other.virtualIPv6Addr;
+        pushedOptions = other.pushedOptions;
     }
 
     public VpnTunnel(@NonNull Parcel in) {
@@ -51,6 +56,7 @@ public class VpnTunnel implements Parcelable {
         virtualIPv6Gateway = in.readString();
         virtualIPv4Addr = in.readString();
         virtualIPv6Addr = in.readString();
+        pushedOptions = in.readParcelable(PushedOptions.class.getClassLoader());
     }
 
     public void copyFrom(@NonNull VpnTunnel other) {
@@ -63,6 +69,7 @@ public class VpnTunnel implements Parcelable {
         virtualIPv6Gateway = other.virtualIPv6Gateway;
         virtualIPv4Addr = other.virtualIPv4Addr;
         virtualIPv6Addr = other.virtualIPv6Addr;
+        pushedOptions = other.pushedOptions;
     }
 
     public void clearDefaults() {
@@ -75,6 +82,7 @@ public class VpnTunnel implements Parcelable {
         virtualIPv6Gateway = null;
         virtualIPv4Addr = null;
         virtualIPv6Addr = null;
+        pushedOptions = null;
     }
 
     public long getEstablishedTime() {
@@ -149,6 +157,18 @@ public class VpnTunnel implements Parcelable {
         this.virtualIPv6Addr = virtualIPv6Addr;
     }
 
+    /**
+     * @return 服务端最近一次推送的选项, 还没有收到PUSH_REPLY时返回null
+     */
+    @Nullable
+    public PushedOptions getPushedOptions() {
+        return pushedOptions;
+    }
+
+    public void setPushedOptions(@Nullable PushedOptions pushedOptions) {
+        this.pushedOptions = pushedOptions;
+    }
+
     @Override
     public void writeToParcel(@NonNull Parcel dest, int flags) {
         dest.writeLong(establishedTime);
@@ -160,6 +180,7 @@ public class VpnTunnel implements Parcelable {
         dest.writeString(virtualIPv6Gateway);
         dest.writeString(virtualIPv4Addr);
         dest.writeString(virtualIPv6Addr);
+        dest.writeParcelable(pushedOptions, flags);
     }
 
     @Override
@@ -6,6 +6,7 @@
 package de.blinkt.openvpn.utils;
 
 import android.content.Context;
+import android.os.ParcelFileDescriptor;
 
 import androidx.annotation.NonNull;
 
@@ -16,6 +17,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
@@ -24,6 +26,7 @@ import java.util.Arrays;
 import java.util.Properties;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.activation.FileDataSource;
 import javax.mail.Address;
 import javax.mail.Authenticator;
@@ -39,7 +42,7 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
 
-import de.blinkt.openvpn.core.OpenVPNLaunchHelper;
+import de.blinkt.openvpn.core.DiagnosticBundle;
 import de.blinkt.openvpn.core.Preferences;
 
 public class MailUtils {
@@ -104,13 +107,12 @@ public class MailUtils {
         contentPart.setContent(writer.toString(), "text/plain;charset=UTF-8");
         multipart.addBodyPart(contentPart);
 
-        // 最后一次连接OpenVPN配置文件
-        addAttachFile(multipart, OpenVPNLaunchHelper.getConfigFile(context));
-
-        // 最后一次连接 日志文件
-        addAttachFile(multipart, new File(context.getCacheDir(), "OpenVPN_front.log"));
-        addAttachFile(multipart, new File(context.getCacheDir(), "OpenVPN_console.log"));
-        addAttachFile(multipart, new File(context.getCacheDir(), "OpenVPN_management.log"));
+        // 日志历史, 连接耗时, 流量历史和脱敏后的OpenVPN配置, 发送时边生成边编码
+        BodyPart bundlePart = new MimeBodyPart();
+        bundlePart.setDataHandler(new DataHandler(new DiagnosticDataSource(context)));
+        bundlePart.setFileName("diagnostics.zip");
+        bundlePart.setHeader("Content-Transfer-Encoding", "base64");
+        multipart.addBodyPart(bundlePart);
 
         // 最近5个Crash文件
         File crashDir = new File(context.getCacheDir(), "crash");
@@ -131,7 +133,7 @@ public class MailUtils {
         transport.close();
     }
 
-    private static String collectAppAndSystemInfo(@NonNull Context context) {
+    public static String collectAppAndSystemInfo(@NonNull Context context) {
         StringWriter writer = new StringWriter();
 
         // 系统信息
@@ -152,6 +154,38 @@ public class MailUtils {
         return writer.toString();
     }
 
+    /**
+     * 诊断信息压缩包, 每次getInputStream()都经管道重新生成
+     */
+    private static class DiagnosticDataSource implements DataSource {
+
+        private final Context mContext;
+
+        DiagnosticDataSource(@NonNull Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new ParcelFileDescriptor.AutoCloseInputStream(DiagnosticBundle.openPipe(mContext));
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return DiagnosticBundle.MIME_TYPE;
+        }
+
+        @Override
+        public String getName() {
+            return "diagnostics.zip";
+        }
+    }
+
     private static void addAttachFile(@NonNull Multipart multipart, @NonNull File attachFile)
             throws MessagingException, UnsupportedEncodingException {
         if (attachFile.exists()) {
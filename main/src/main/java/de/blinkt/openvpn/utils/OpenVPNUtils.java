@@ -41,6 +41,7 @@ import java.util.UUID;
 
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.ConfigParser;
+import de.blinkt.openvpn.core.DiagnosticBundle;
 import de.blinkt.openvpn.core.ProfileManager;
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.fragments.VPNProfileList;
@@ -237,6 +238,28 @@ public class OpenVPNUtils {
         activity.startActivity(Intent.createChooser(shareIntent, activity.getString(R.string.export_config_chooser_title)));
     }
 
+    /**
+     * 分享诊断信息压缩包, 压缩包在接收方读取时才生成
+     */
+    public static void shareDiagnostics(@NonNull Activity activity) {
+        Uri uri = newDiagnosticsUri(activity);
+
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
+        shareIntent.putExtra(Intent.EXTRA_SUBJECT, activity.getString(R.string.diagnostic_info));
+        shareIntent.setType(DiagnosticBundle.MIME_TYPE);
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        activity.startActivity(Intent.createChooser(shareIntent, activity.getString(R.string.diagnostic_info)));
+    }
+
+    /**
+     * 诊断信息压缩包的FileProvider地址, 每次调用生成新的名字
+     */
+    @NonNull
+    public static Uri newDiagnosticsUri(@NonNull Context c) {
+        return Uri.parse("content://" + c.getPackageName() + ".FileProvider/" + DiagnosticBundle.newShareName());
+    }
+
     public static File exportVpnProfile(@NonNull Context c, @NonNull VpnProfile profile, @NonNull String fileName) {
         File shareDir = new File(c.getCacheDir(), "share");
         if (!shareDir.exists()) {
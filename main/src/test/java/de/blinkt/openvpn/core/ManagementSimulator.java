@@ -0,0 +1,523 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 代替OpenVPN进程的管理接口模拟器: 按脚本回放会话, 应答客户端的每个命令, 统计命令的往返延迟
+ * <p>
+ * 脚本每行一个步骤:
+ * <pre>
+ * # 注释
+ * &gt;LOG:{t},I,message         以'&gt;'开头的行原样发送, 录制的管理接口输出可以直接回放
+ * send LINE                  发送一行
+ * repeat N RATE LINE         以每秒RATE行的速度发送N行, RATE为0时不限速
+ * expect PREFIX              等待客户端发出以PREFIX开头的命令, 记录从上一行发出到收到命令的延迟
+ * sleep MS
+ * loop N ... end             重复执行中间的步骤
+ * </pre>
+ * 行内占位符: {i} 所在repeat/loop的序号, {t} 当前unix时间(秒), {stamp} 发出时的System.nanoTime()
+ */
+public class ManagementSimulator implements Closeable {
+
+    public static final String HOLD =
+        ">INFO:OpenVPN Management Interface Version 3 -- type 'help' for more info\n" +
+        "expect version\n" +
+        ">HOLD:Waiting for hold release:0\n" +
+        "expect hold release\n";
+
+    public static final String PASSWORD =
+        "loop 200\n" +
+        ">PASSWORD:Need 'Auth' username/password\n" +
+        "expect password 'Auth'\n" +
+        "end\n";
+
+    // 需要真实的OpenVPNService处理路由
+    public static final String ROUTE_FLOOD =
+        ">NEED-OK:Need 'IFCONFIG' confirmation MSG:10.8.0.2 255.255.255.0 1500 subnet\n" +
+        "expect needok 'IFCONFIG'\n" +
+        "loop 250\n" +
+        ">NEED-OK:Need 'ROUTE' confirmation MSG:10.{i}.0.0 255.255.255.0 10.8.0.1\n" +
+        "expect needok 'ROUTE'\n" +
+        "end\n";
+
+    public static final String LOG_STORM =
+        "repeat 20000 0 >LOG:{t},I,log storm line {i} @{stamp}\n";
+
+    public static final String BYTECOUNT_100HZ =
+        "repeat 100 100 >BYTECOUNT:{i},{stamp}\n";
+
+    public static final String STATE_CHANGES =
+        "loop 100\n" +
+        ">STATE:{t},WAIT,,,,,,@{stamp}\n" +
+        ">STATE:{t},AUTH,,,,,,@{stamp}\n" +
+        ">STATE:{t},GET_CONFIG,,,,,,@{stamp}\n" +
+        ">STATE:{t},ASSIGN_IP,,10.8.0.2,,,,@{stamp}\n" +
+        "end\n";
+
+    private static final long EXPECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * 脚本中的一个步骤
+     */
+    interface Step {
+        void run(@NonNull ManagementSimulator simulator, int index) throws IOException, InterruptedException;
+    }
+
+    /**
+     * 客户端发来的一条命令
+     */
+    private static class Received {
+        final String text;
+        final long time;
+
+        Received(String text, long time) {
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    /**
+     * 一次回放的结果
+     */
+    public static class Result {
+        // System.nanoTime()
+        public long startTime;
+        public long linesSent;
+        public long elapsedNanos;
+        // expect步骤的往返延迟, 微秒
+        public final LatencyHistogram roundTrips = new LatencyHistogram();
+
+        public double getLinesPerSecond() {
+            return elapsedNanos == 0 ? 0 : linesSent * 1e9 / elapsedNanos;
+        }
+    }
+
+    private final InputStream mIn;
+    // mOut 使用需持有mOut锁, 脚本和应答在不同线程写出
+    private final OutputStream mOut;
+    private final Thread mReplyThread;
+    private final LinkedBlockingQueue<Received> mReceived = new LinkedBlockingQueue<>();
+    private final List<String> mCommands = new ArrayList<>();
+    private final StringBuilder mLine = new StringBuilder();
+
+    private Result mResult;
+    private long mLastSendTime;
+
+    /**
+     * @param fromClient 管理线程写出的命令
+     * @param toClient   发给管理线程的行
+     */
+    public ManagementSimulator(@NonNull InputStream fromClient, @NonNull OutputStream toClient) {
+        mIn = fromClient;
+        mOut = new BufferedOutputStream(toClient, 64 * 1024);
+        mReplyThread = new Thread(this::replyLoop, "ManagementSimulator");
+        mReplyThread.setDaemon(true);
+        mReplyThread.start();
+    }
+
+    /**
+     * 管理线程一侧的写出通道, 不支持发送文件描述符
+     */
+    @NonNull
+    public static ManagementCommandWriter.Channel streamChannel(@NonNull OutputStream out) {
+        return new ManagementCommandWriter.Channel() {
+            @Override
+            public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                out.flush();
+            }
+
+            @Override
+            public void setFileDescriptorsForSend(@Nullable FileDescriptor[] fds) {
+            }
+        };
+    }
+
+    @NonNull
+    public Result run(@NonNull String script) throws IOException, InterruptedException {
+        return run(parse(new StringReader(script)));
+    }
+
+    @NonNull
+    public Result run(@NonNull List<Step> steps) throws IOException, InterruptedException {
+        mResult = new Result();
+        mResult.startTime = System.nanoTime();
+        for (Step step : steps)
+            step.run(this, 0);
+        mResult.elapsedNanos = System.nanoTime() - mResult.startTime;
+        return mResult;
+    }
+
+    /**
+     * @return 到目前为止收到的所有命令
+     */
+    @NonNull
+    public List<String> getCommands() {
+        synchronized (mCommands) {
+            return new ArrayList<>(mCommands);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mOut) {
+            mOut.close();
+        }
+        mIn.close();
+    }
+
+    private void replyLoop() {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(mIn, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long now = System.nanoTime();
+                synchronized (mCommands) {
+                    mCommands.add(line);
+                }
+                mReceived.add(new Received(line, now));
+
+                // OpenVPN对每个命令都有一个应答
+                byte[] reply = ("SUCCESS: " + line.trim() + "\n").getBytes(StandardCharsets.UTF_8);
+                synchronized (mOut) {
+                    mOut.write(reply);
+                    mOut.flush();
+                }
+            }
+        } catch (IOException ignored) {
+            // 连接已关闭
+        }
+    }
+
+    private void send(@NonNull Template template, int index, boolean flush) throws IOException {
+        mLine.setLength(0);
+        template.render(mLine, index);
+        mLine.append('\n');
+        byte[] bytes = mLine.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (mOut) {
+            mOut.write(bytes);
+            if (flush)
+                mOut.flush();
+        }
+        mLastSendTime = System.nanoTime();
+        ++mResult.linesSent;
+    }
+
+    private void flush() throws IOException {
+        synchronized (mOut) {
+            mOut.flush();
+        }
+    }
+
+    private void expect(@NonNull String prefix) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EXPECT_TIMEOUT_MILLIS);
+        while (true) {
+            Received received = mReceived.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (received == null)
+                throw new IOException("Timed out waiting for command '" + prefix + "'");
+            if (received.text.startsWith(prefix)) {
+                mResult.roundTrips.record(Math.max(0, received.time - mLastSendTime) / 1000);
+                return;
+            }
+        }
+    }
+
+    @NonNull
+    public static List<Step> parse(@NonNull Reader script) throws IOException {
+        BufferedReader reader = new BufferedReader(script);
+        List<List<Step>> blocks = new ArrayList<>();
+        blocks.add(new ArrayList<>());
+        List<Integer> loopCounts = new ArrayList<>();
+
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            ++lineNumber;
+            List<Step> steps = blocks.get(blocks.size() - 1);
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                continue;
+
+            if (line.startsWith(">")) {
+                steps.add(sendStep(new Template(line)));
+                continue;
+            }
+
+            String[] parts = trimmed.split(" ", 2);
+            String arg = parts.length > 1 ? parts[1] : "";
+            try {
+                switch (parts[0]) {
+                    case "send":
+                        steps.add(sendStep(new Template(arg)));
+                        break;
+                    case "repeat": {
+                        String[] repeat = arg.split(" ", 3);
+                        steps.add(repeatStep(Integer.parseInt(repeat[0]), Integer.parseInt(repeat[1]), new Template(repeat[2])));
+                        break;
+                    }
+                    case "expect":
+                        steps.add((simulator, index) -> simulator.expect(arg));
+                        break;
+                    case "sleep": {
+                        long millis = Long.parseLong(arg);
+                        steps.add((simulator, index) -> {
+                            simulator.flush();
+                            Thread.sleep(millis);
+                        });
+                        break;
+                    }
+                    case "loop":
+                        loopCounts.add(Integer.parseInt(arg));
+                        blocks.add(new ArrayList<>());
+                        break;
+                    case "end": {
+                        if (loopCounts.isEmpty())
+                            throw new IOException("Line " + lineNumber + ": end without loop");
+                        int count = loopCounts.remove(loopCounts.size() - 1);
+                        List<Step> body = blocks.remove(blocks.size() - 1);
+                        blocks.get(blocks.size() - 1).add(loopStep(count, body));
+                        break;
+                    }
+                    default:
+                        throw new IOException("Line " + lineNumber + ": unknown step '" + parts[0] + "'");
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Line " + lineNumber + ": malformed step '" + trimmed + "'", e);
+            }
+        }
+
+        if (!loopCounts.isEmpty())
+            throw new IOException("Missing end for loop");
+        return blocks.get(0);
+    }
+
+    @NonNull
+    private static Step sendStep(@NonNull Template template) {
+        return (simulator, index) -> simulator.send(template, index, true);
+    }
+
+    @NonNull
+    private static Step repeatStep(int count, int rate, @NonNull Template template) {
+        return (simulator, index) -> {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                if (rate > 0) {
+                    long due = start + i * 1000000000L / rate;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0)
+                        LockSupport.parkNanos(wait);
+                }
+                simulator.send(template, i, rate > 0);
+            }
+            simulator.flush();
+        };
+    }
+
+    @NonNull
+    private static Step loopStep(int count, @NonNull List<Step> body) {
+        return (simulator, index) -> {
+            for (int i = 0; i < count; ++i) {
+                for (Step step : body)
+                    step.run(simulator, i);
+            }
+        };
+    }
+
+    /**
+     * 预先切分好的行模板
+     */
+    private static class Template {
+        private static final String[] PLACEHOLDERS = { "{i}", "{t}", "{stamp}" };
+
+        private final List<String> mLiterals = new ArrayList<>();
+        private final List<Integer> mPlaceholders = new ArrayList<>();
+
+        Template(@NonNull String line) {
+            int start = 0;
+            while (true) {
+                int next = -1;
+                int placeholder = -1;
+                for (int p = 0; p < PLACEHOLDERS.length; ++p) {
+                    int idx = line.indexOf(PLACEHOLDERS[p], start);
+                    if (idx != -1 && (next == -1 || idx < next)) {
+                        next = idx;
+                        placeholder = p;
+                    }
+                }
+                if (next == -1) {
+                    mLiterals.add(line.substring(start));
+                    return;
+                }
+                mLiterals.add(line.substring(start, next));
+                mPlaceholders.add(placeholder);
+                start = next + PLACEHOLDERS[placeholder].length();
+            }
+        }
+
+        void render(@NonNull StringBuilder out, int index) {
+            for (int i = 0; i < mPlaceholders.size(); ++i) {
+                out.append(mLiterals.get(i));
+                switch (mPlaceholders.get(i)) {
+                    case 0:
+                        out.append(index);
+                        break;
+                    case 1:
+                        out.append(System.currentTimeMillis() / 1000);
+                        break;
+                    default:
+                        out.append(System.nanoTime());
+                        break;
+                }
+            }
+            out.append(mLiterals.get(mLiterals.size() - 1));
+        }
+    }
+
+    /**
+     * 从VpnStatus.MANAGEMENT_EVENTS读取带{stamp}的事件, 统计管理线程的处理速度和延迟
+     * <p>
+     * BYTECOUNT的第二个数, LOG/STATE/INFOMSG消息结尾的"@数字"是发送时的System.nanoTime()
+     */
+    public static class EventProbe implements Closeable {
+        private final ManagementEventRing.Subscription mSubscription = VpnStatus.MANAGEMENT_EVENTS.subscribe();
+        private final Thread mThread;
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final Object mLock = new Object();
+        // mCount, mLost, mLastTime 使用需持有mLock锁
+        private long mCount;
+        private long mLost;
+        private long mLastTime;
+        private volatile boolean mClosed;
+
+        public EventProbe() {
+            mThread = new Thread(this::drain, "EventProbe");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        /**
+         * @return 是否在超时前收到count个带时间戳的事件(包括读得太慢而丢失的)
+         */
+        public boolean await(long count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (mLock) {
+                while (mCount + mLost < count) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        return false;
+                    mLock.wait(remaining);
+                }
+                return true;
+            }
+        }
+
+        public long getCount() {
+            synchronized (mLock) {
+                return mCount;
+            }
+        }
+
+        /**
+         * @return 最后一个事件到达的System.nanoTime()
+         */
+        public long getLastTime() {
+            synchronized (mLock) {
+                return mLastTime;
+            }
+        }
+
+        public long getLost() {
+            synchronized (mLock) {
+                return mLost;
+            }
+        }
+
+        /**
+         * @return 从发出到管理线程发布事件的延迟, 微秒
+         */
+        @NonNull
+        public LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSubscription.close();
+        }
+
+        private void drain() {
+            try {
+                while (!mClosed) {
+                    ManagementEvent event = mSubscription.take(50, TimeUnit.MILLISECONDS);
+                    long stamp = event == null ? -1 : getStamp(event);
+                    long now = System.nanoTime();
+                    if (stamp > 0)
+                        mLatency.record(Math.max(0, now - stamp) / 1000);
+
+                    synchronized (mLock) {
+                        if (stamp > 0) {
+                            ++mCount;
+                            mLastTime = now;
+                        }
+                        mLost = mSubscription.getLost();
+                        mLock.notifyAll();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        private static long getStamp(@NonNull ManagementEvent event) {
+            if (event instanceof ManagementEvent.ByteCountEvent)
+                return ((ManagementEvent.ByteCountEvent) event).out;
+            if (event instanceof ManagementEvent.LogEvent)
+                return getStamp(((ManagementEvent.LogEvent) event).message);
+            if (event instanceof ManagementEvent.StateEvent)
+                return getStamp(((ManagementEvent.StateEvent) event).message);
+            if (event instanceof ManagementEvent.InfoMsgEvent)
+                return getStamp(((ManagementEvent.InfoMsgEvent) event).message);
+            return -1;
+        }
+
+        private static long getStamp(@NonNull String message) {
+            int at = message.lastIndexOf('@');
+            if (at == -1 || at == message.length() - 1)
+                return -1;
+            try {
+                return Long.parseLong(message.substring(at + 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 手动推进时间的ScheduledExecutorService: 任务只在advance(...)中按到期时间依次在调用线程运行,
+ * now()可以作为HoldReleaseBackoff.Clock, 延迟可以精确断言; 只能在一个线程中使用
+ */
+public class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final List<Task> mTasks = new ArrayList<>();
+    private long mNow;
+    private boolean mShutdown;
+
+    public ManualScheduler(long startMillis) {
+        mNow = startMillis;
+    }
+
+    public long now() {
+        return mNow;
+    }
+
+    /**
+     * 时间前进millis毫秒, 运行期间到期的全部任务(包括任务中新安排的)
+     */
+    public void advance(long millis) {
+        long target = mNow + millis;
+        while (true) {
+            Task next = null;
+            for (Task task : mTasks) {
+                if (task.mTime <= target && (next == null || task.mTime < next.mTime))
+                    next = task;
+            }
+            if (next == null)
+                break;
+            mTasks.remove(next);
+            mNow = next.mTime;
+            next.run();
+        }
+        mNow = target;
+    }
+
+    /**
+     * @return 尚未运行的任务距现在的延迟(毫秒), 从小到大
+     */
+    @NonNull
+    public List<Long> pendingDelays() {
+        List<Long> delays = new ArrayList<>();
+        for (Task task : mTasks)
+            delays.add(task.mTime - mNow);
+        Collections.sort(delays);
+        return delays;
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit) {
+        if (mShutdown)
+            throw new IllegalStateException("shut down");
+        Task task = new Task(command, mNow + unit.toMillis(delay));
+        mTasks.add(task);
+        return task;
+    }
+
+    @NonNull
+    @Override
+    public <V> ScheduledFuture<V> schedule(@NonNull Callable<V> callable, long delay, @NonNull TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(@NonNull Runnable command, long initialDelay, long period,
+                                                  @NonNull TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(@NonNull Runnable command, long initialDelay, long delay,
+                                                     @NonNull TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        mShutdown = true;
+    }
+
+    @NonNull
+    @Override
+    public List<Runnable> shutdownNow() {
+        mShutdown = true;
+        List<Runnable> pending = new ArrayList<>();
+        for (Task task : mTasks)
+            pending.add(task.mCommand);
+        mTasks.clear();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return mShutdown && mTasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NonNull TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private final class Task implements ScheduledFuture<Object> {
+        private final Runnable mCommand;
+        private final long mTime;
+        private boolean mCancelled;
+        private boolean mDone;
+
+        Task(@NonNull Runnable command, long time) {
+            mCommand = command;
+            mTime = time;
+        }
+
+        void run() {
+            mDone = true;
+            mCommand.run();
+        }
+
+        @Override
+        public long getDelay(@NonNull TimeUnit unit) {
+            return unit.convert(mTime - mNow, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NonNull Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mDone)
+                return false;
+            mCancelled = mDone = true;
+            mTasks.remove(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone;
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, @NonNull TimeUnit unit) {
+            return null;
+        }
+    }
+
+}
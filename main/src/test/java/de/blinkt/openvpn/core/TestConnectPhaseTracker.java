@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class TestConnectPhaseTracker {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recordsWaterfallAndPersistsLastConnects() throws Exception {
+        ConnectPhaseTracker.init(mFolder.getRoot());
+
+        for (int i = 0; i < ConnectPhaseTracker.MAX_CONNECTS + 2; ++i) {
+            long launch = System.nanoTime() - 2000000;
+            ConnectPhaseTracker.begin("profile" + i, launch, launch + 1000000);
+            ConnectPhaseTracker.mark(ConnectPhaseTracker.PROCESS_STARTED);
+            ConnectPhaseTracker.mark(ConnectPhaseTracker.HOLD);
+            ConnectPhaseTracker.markStatus("WAIT", ConnectionStatus.LEVEL_CONNECTING_NO_SERVER_REPLY_YET);
+            ConnectPhaseTracker.markStatus("AUTH", ConnectionStatus.LEVEL_CONNECTING_SERVER_REPLIED);
+            ConnectPhaseTracker.markStatus("GET_CONFIG", ConnectionStatus.LEVEL_CONNECTING_SERVER_REPLIED);
+            ConnectPhaseTracker.mark(ConnectPhaseTracker.NEED_OK_ROUTE);
+            ConnectPhaseTracker.mark(ConnectPhaseTracker.NEED_OK_ROUTE);
+            ConnectPhaseTracker.markStatus("CONNECTED", ConnectionStatus.LEVEL_CONNECTED);
+        }
+        // ignored, no connect in progress
+        ConnectPhaseTracker.mark(ConnectPhaseTracker.HOLD);
+
+        JSONArray connects = new JSONArray(ConnectPhaseTracker.toJson());
+        Assert.assertEquals(ConnectPhaseTracker.MAX_CONNECTS, connects.length());
+
+        JSONObject last = connects.getJSONObject(connects.length() - 1);
+        Assert.assertEquals("profile" + (ConnectPhaseTracker.MAX_CONNECTS + 1), last.getString("profile"));
+        Assert.assertEquals("connected", last.getString("outcome"));
+
+        JSONArray phases = last.getJSONArray("phases");
+        String[] expected = { ConnectPhaseTracker.LAUNCH, ConnectPhaseTracker.SERVICE_START,
+            ConnectPhaseTracker.OLD_PROCESS_STOPPED, ConnectPhaseTracker.PROCESS_STARTED, ConnectPhaseTracker.HOLD,
+            null, null, ConnectPhaseTracker.NEED_OK_ROUTE, null, ConnectPhaseTracker.CONNECTED };
+        Assert.assertEquals(expected.length, phases.length());
+        double previous = 0;
+        for (int i = 0; i < expected.length; ++i) {
+            JSONObject phase = phases.getJSONObject(i);
+            if (expected[i] != null)
+                Assert.assertEquals(expected[i], phase.getString("phase"));
+            else
+                Assert.assertTrue(phase.getString("phase").startsWith("level:"));
+            Assert.assertTrue(phase.getDouble("at_ms") >= previous);
+            previous = phase.getDouble("at_ms");
+        }
+        Assert.assertEquals(1.0, phases.getJSONObject(1).getDouble("delta_ms"), 0.001);
+
+        // a fresh process reads the same history back
+        ConnectPhaseTracker.init(mFolder.getRoot());
+        Assert.assertEquals(connects.toString(), ConnectPhaseTracker.toJson());
+    }
+
+}
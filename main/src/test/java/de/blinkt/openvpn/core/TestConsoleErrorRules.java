@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import de.blinkt.openvpn.utils.StringUtils;
+import de.blinkt.xp.openvpn.R;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class TestConsoleErrorRules {
+
+    // OpenVPNThread.processLogline()原来的if/else-if链
+    private static final Object[][] LEGACY = {
+        { "TLS[\\x20|\\t]+Error:[\\x20|\\t]+TLS[\\x20|\\t]+start[\\x20|\\t]+hello[\\x20|\\t]+failed", R.string.tls_start_hello_failed },
+        { "can't[\\x20|\\t]+ask[\\x20|\\t]+for[\\x20|\\t|']+Enter[\\x20|\\t]+Client[\\x20|\\t]+certificate", R.string.ask_for_client_certificate },
+        { "TLS[\\x20|\\t]+Error:[\\x20|\\t]+TLS[\\x20|\\t]+key[\\x20|\\t]+negotiation[\\x20|\\t]+failed", R.string.tls_negotiation_failed },
+        { "Failed[\\x20|\\t]+to[\\x20|\\t]+negotiation[\\x20|\\t]+tunnel", R.string.tunnel_negotiation_failed },
+        { "certificate[\\x20|\\t]+is[\\x20|\\t]+not[\\x20|\\t]+yet[\\x20|\\t]+valid", R.string.cert_no_yet_valid },
+        { "certificate[\\x20|\\t]+has[\\x20|\\t]+expired:", R.string.server_cert_expired },
+        { "self[\\x20|\\t]+signed[\\x20|\\t]+certificate[\\x20|\\t]+in[\\x20|\\t]+certificate[\\x20|\\t]+chain", R.string.server_cert_unknown_ca },
+        { "alert[\\x20|\\t]+certificate[\\x20|\\t]+revoked", R.string.client_cert_revoked },
+        { "alert[\\x20|\\t]+certificate[\\x20|\\t]+expired", R.string.client_cert_expired },
+        { "alert[\\x20|\\t]+unknown[\\x20|\\t]+ca", R.string.client_cert_unknown_ca },
+    };
+
+    // Captured at verb 4 while connecting, including a failed and a successful TLS negotiation
+    private static final String[] CAPTURE = {
+        "Mon Mar 16 15:18:20 2020 us=102345 OpenVPN 2.5_git [git:xp/8b2f1c] arm-unknown-linux-android [SSL (OpenSSL)] [LZO] [LZ4] [EPOLL]",
+        "Mon Mar 16 15:18:20 2020 us=102399 library versions: OpenSSL 1.1.1g  21 Apr 2020, LZO 2.10",
+        "Mon Mar 16 15:18:20 2020 us=103001 MANAGEMENT: Connected to management server at /data/user/0/de.blinkt.xp.openvpn/cache/mgmtsocket",
+        "Mon Mar 16 15:18:20 2020 us=103050 MANAGEMENT: CMD 'version 3'",
+        "Mon Mar 16 15:18:20 2020 us=110250 MANAGEMENT: >STATE:1584343100,RESOLVE,,,,,,",
+        "Mon Mar 16 15:18:20 2020 us=120000 Outgoing Control Channel Authentication: Using 256 bit message hash 'SHA256' for HMAC authentication",
+        "Mon Mar 16 15:18:20 2020 us=120111 Incoming Control Channel Authentication: Using 256 bit message hash 'SHA256' for HMAC authentication",
+        "Mon Mar 16 15:18:20 2020 us=121000 TCP/UDP: Preserving recently used remote address: [AF_INET]192.168.1.17:1194",
+        "Mon Mar 16 15:18:20 2020 us=121100 Socket Buffers: R=[212992->212992] S=[212992->212992]",
+        "Mon Mar 16 15:18:20 2020 us=121200 UDP link local: (not bound)",
+        "Mon Mar 16 15:18:20 2020 us=121300 UDP link remote: [AF_INET]192.168.1.17:1194",
+        "Mon Mar 16 15:18:21 2020 us=121000 TLS: Initial packet from [AF_INET]192.168.1.17:1194, sid=5c0a4c3e 8b9a1f0d",
+        "Mon Mar 16 15:18:21 2020 us=200000 VERIFY OK: depth=1, C=CN, ST=ShangHai, O=公司, CN=sm2_test",
+        "Mon Mar 16 15:18:21 2020 us=200100 VERIFY KU OK",
+        "Mon Mar 16 15:18:21 2020 us=200200 Validating certificate extended key usage",
+        "Mon Mar 16 15:18:21 2020 us=200300 ++ Certificate has EKU (str) TLS Web Server Authentication, expects TLS Web Server Authentication",
+        "Mon Mar 16 15:18:21 2020 us=200400 VERIFY EKU OK",
+        "Mon Mar 16 15:18:21 2020 us=200500 VERIFY OK: depth=0, C=CN, ST=ShangHai, O=公司, CN=server",
+        "Mon Mar 16 15:18:21 2020 us=300000 Control Channel: TLSv1.2, cipher TLSv1.2 ECDHE-RSA-AES256-GCM-SHA384, 2048 bit RSA",
+        "Mon Mar 16 15:18:21 2020 us=300100 [server] Peer Connection Initiated with [AF_INET]192.168.1.17:1194",
+        "Mon Mar 16 15:18:22 2020 us=400000 SENT CONTROL [server]: 'PUSH_REQUEST' (status=1)",
+        "Mon Mar 16 15:18:22 2020 us=410000 PUSH: Received control message: 'PUSH_REPLY,route-gateway 172.14.0.1,topology subnet,ping 10'",
+        "Mon Mar 16 15:18:22 2020 us=410100 OPTIONS IMPORT: timers and/or timeouts modified",
+        "Mon Mar 16 15:18:22 2020 us=410200 Data Channel: using negotiated cipher 'AES-256-GCM'",
+        "Mon Mar 16 15:18:22 2020 us=410300 Outgoing Data Channel: Cipher 'AES-256-GCM' initialized with 256 bit key",
+        "Mon Mar 16 15:18:22 2020 us=410400 Incoming Data Channel: Cipher 'AES-256-GCM' initialized with 256 bit key",
+        "Mon Mar 16 15:18:22 2020 us=500000 Initialization Sequence Completed",
+        "Mon Mar 16 15:19:22 2020 us=500000 TLS: soft reset sec=3600/3600 bytes=0/-1 pkts=0/0",
+        "Mon Mar 16 15:19:22 2020 us=600000 TLS Error: TLS key negotiation failed to occur within 60 seconds (check your network connectivity)",
+        "Mon Mar 16 15:19:22 2020 us=600100 TLS Error: TLS handshake failed",
+        "Mon Mar 16 15:19:22 2020 us=600200 SIGUSR1[soft,tls-error] received, process restarting",
+        "Mon Mar 16 15:19:23 2020 us=100000 VERIFY ERROR: depth=1, error=certificate has expired: C=CN, ST=ShangHai, CN=sm2_test",
+        "Mon Mar 16 15:19:23 2020 us=100100 OpenSSL: error:1416F086:SSL routines:tls_process_server_certificate:certificate verify failed",
+        "Mon Mar 16 15:19:23 2020 us=100200 TLS_ERROR: BIO read tls_read_plaintext error",
+        "Mon Mar 16 15:19:24 2020 us=100000 OpenSSL: error:14094418:SSL routines:SSL3_READ_BYTES:tlsv1 alert unknown ca",
+        "Mon Mar 16 15:19:25 2020 us=100000 OpenSSL: error:14094414:SSL routines:ssl3_read_bytes:sslv3 alert certificate revoked",
+        "Mon Mar 16 15:19:26 2020 us=100000 OpenSSL: error:14094415:SSL routines:ssl3_read_bytes:sslv3 alert certificate expired",
+        "Mon Mar 16 15:19:27 2020 us=100000 VERIFY ERROR: depth=0, error=certificate is not yet valid: CN=server",
+        "Mon Mar 16 15:19:28 2020 us=100000 VERIFY ERROR: depth=1, error=self signed certificate in certificate chain: CN=sm2_test",
+        "Mon Mar 16 15:19:29 2020 us=100000 TLS Error: TLS start hello failed to occur within 60 seconds",
+        "Mon Mar 16 15:19:30 2020 us=100000 can't ask for 'Enter Client certificate:TLSv1.2",
+        "Mon Mar 16 15:19:31 2020 us=100000 HALT,Failed to negotiation tunnel options' (status=1)",
+        "1584343171.100000 18000012 VERIFY ERROR: depth=1, error=certificate has expired: C=CN",
+        "1584343172.100000 2 TLS Error: TLS key negotiation failed to occur within 60 seconds",
+    };
+
+    private static List<String> corpus() {
+        List<String> corpus = new ArrayList<>(TestConsoleLineClassifier.corpus());
+        // 重复并变换抓取的日志, 得到几千行
+        for (int round = 0; round < 40; ++round) {
+            for (String line : CAPTURE) {
+                switch (round % 4) {
+                    case 0:
+                        corpus.add(line);
+                        break;
+                    case 1:
+                        corpus.add(line.replace(' ', '\t'));
+                        break;
+                    case 2:
+                        corpus.add(String.format(Locale.US, "%d.%06d %x %s", 1584343100 + round, round * 1000, round, line));
+                        break;
+                    default:
+                        corpus.add(line.toLowerCase(Locale.US));
+                        break;
+                }
+            }
+        }
+        return corpus;
+    }
+
+    @Test
+    public void builtInRulesMatchLegacyChain() {
+        List<String> corpus = corpus();
+        Assert.assertTrue(corpus.size() > 1500);
+
+        ConsoleErrorRules.RuleMatcher matcher = new ConsoleErrorRules(ConsoleErrorRules.builtIn()).newMatcher();
+        int matched = 0;
+        for (String line : corpus) {
+            ConsoleErrorRules.Rule rule = matcher.match(line);
+            Assert.assertEquals(line, legacyResid(line), rule == null ? 0 : rule.getResid());
+            if (rule != null) {
+                Assert.assertEquals("GENERAL_ERROR", rule.getStatus());
+                ++matched;
+            }
+        }
+        Assert.assertTrue(matched > 100);
+    }
+
+    @Test
+    public void loadedRulesComeFirst() throws JSONException {
+        ConsoleErrorRules.ResourceResolver resolver = name -> name.equals("tls_start_hello_failed") ? R.string.tls_start_hello_failed : 0;
+        List<ConsoleErrorRules.Rule> rules = ConsoleErrorRules.parse("{\"rules\": ["
+            + "{\"keyword\": \"handshake\", \"pattern\": \"TLS Error: TLS handshake failed\", \"message\": \"Handshake failed\", \"severity\": \"warning\"},"
+            + "{\"keyword\": \"hello\", \"pattern\": \"start\\\\s+hello\", \"status\": \"AUTH_FAILED\", \"resource\": \"tls_start_hello_failed\"}"
+            + "]}", resolver);
+        Assert.assertEquals(2, rules.size());
+        rules.addAll(ConsoleErrorRules.builtIn());
+
+        ConsoleErrorRules.RuleMatcher matcher = new ConsoleErrorRules(rules).newMatcher();
+        ConsoleErrorRules.Rule rule = matcher.match("Mon Mar 16 15:19:22 2020 us=600100 TLS Error: TLS handshake failed");
+        Assert.assertEquals("Handshake failed", rule.getMessage());
+        Assert.assertEquals(R.string.state_general_error, rule.getResid());
+        Assert.assertEquals(LogLevel.WARNING, rule.getSeverity());
+
+        rule = matcher.match("TLS Error: TLS start hello failed to occur within 60 seconds");
+        Assert.assertEquals("AUTH_FAILED", rule.getStatus());
+        Assert.assertEquals(R.string.tls_start_hello_failed, rule.getResid());
+        Assert.assertNull(rule.getSeverity());
+
+        Assert.assertNull(matcher.match("Initialization Sequence Completed"));
+    }
+
+    @Test
+    public void rejectsInvalidRules() {
+        String[] invalid = {
+            "[{\"pattern\": \"x\", \"message\": \"m\"}]",
+            "[{\"keyword\": \"x\", \"pattern\": \"x(\", \"message\": \"m\"}]",
+            "[{\"keyword\": \"x\", \"pattern\": \"x\"}]",
+            "[{\"keyword\": \"x\", \"pattern\": \"x\", \"resource\": \"no_such_string\"}]",
+            "[{\"keyword\": \"证书\", \"pattern\": \"证书\", \"message\": \"m\"}]",
+            "[{\"keyword\": \"x\", \"pattern\": \"x\", \"message\": \"m\", \"severity\": \"loud\"}]",
+            "{\"no_rules\": []}",
+        };
+        for (String json : invalid) {
+            try {
+                ConsoleErrorRules.parse(json, name -> 0);
+                Assert.fail(json);
+            } catch (JSONException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void keepsAtMostMaxRules() {
+        List<ConsoleErrorRules.Rule> rules = new ArrayList<>();
+        for (int i = 0; i < ConsoleErrorRules.MAX_RULES + 10; ++i)
+            rules.add(new ConsoleErrorRules.Rule("rule" + i + ";", "rule" + i + ";", "GENERAL_ERROR", i + 1, null, null));
+
+        ConsoleErrorRules table = new ConsoleErrorRules(rules);
+        Assert.assertEquals(ConsoleErrorRules.MAX_RULES, table.size());
+        ConsoleErrorRules.RuleMatcher matcher = table.newMatcher();
+        // 两个规则都匹配时取顺序在前的
+        Assert.assertEquals(3, matcher.match("x rule63; rule2; y").getResid());
+        Assert.assertNull(matcher.match("rule64;"));
+    }
+
+    @Test
+    public void externalRulesNeverDisplaceBuiltIns() {
+        List<ConsoleErrorRules.Rule> external = new ArrayList<>();
+        for (int i = 0; i < ConsoleErrorRules.MAX_RULES; ++i)
+            external.add(new ConsoleErrorRules.Rule("rule" + i + ";", "rule" + i + ";", "GENERAL_ERROR", i + 1, null, null));
+
+        List<ConsoleErrorRules.Rule> builtIn = ConsoleErrorRules.builtIn();
+        List<ConsoleErrorRules.Rule> rules = ConsoleErrorRules.withBuiltIn(external);
+        Assert.assertEquals(ConsoleErrorRules.MAX_RULES, rules.size());
+        Assert.assertEquals(external.get(0), rules.get(0));
+        for (int i = 0; i < builtIn.size(); ++i)
+            Assert.assertEquals(builtIn.get(i).toString(), rules.get(rules.size() - builtIn.size() + i).toString());
+    }
+
+    private static int legacyResid(String line) {
+        for (Object[] rule : LEGACY) {
+            if (StringUtils.contains((String) rule[0], line))
+                return (Integer) rule[1];
+        }
+        return 0;
+    }
+
+}
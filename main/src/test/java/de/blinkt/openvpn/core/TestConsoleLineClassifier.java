@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import de.blinkt.openvpn.utils.StringUtils;
+
+public class TestConsoleLineClassifier {
+
+    // OpenVPNThread之前逐条调用StringUtils.contains()的正则, 按规则编号排列
+    private static final String[] LEGACY = {
+        "PUSH:[\\x20|\\t]+Received[\\x20|\\t]+control[\\x20|\\t]+message",
+        "Control[\\x20|\\t]+Channel:",
+        "Data[\\x20|\\t]+Channel:",
+        "POLICY:[\\x20|\\t|\\\"]+resource[\\x20|\\t|\\\"]",
+    };
+
+    static final String[] LINES = {
+        "Mon Mar 16 15:18:24 2020 us=543552 MANAGEMENT: CMD 'hold release'",
+        "PUSH: Received control message: 'PUSH_REPLY,route-gateway 10.8.0.1,topology subnet,ping 10'",
+        "Control Channel: TLSv1.3, cipher TLSv1.3 TLS_AES_256_GCM_SHA384, 2048 bit RSA",
+        "Data Channel: using negotiated cipher 'AES-256-GCM'",
+        "Data Channel Encrypt: Cipher 'AES-128-CBC' initialized with 128 bit key",
+        "POLICY: \"resource\" \"https://192.168.1.1/erp/\" \"https://192.168.1.1/erp/\" \"all\"",
+        "POLICY: 'resource' 'ftp://192.168.1.17/share'",
+        "POLICY: unknown",
+        "TLS Error: TLS start hello failed to occur within 60 seconds",
+        "can't ask for 'Enter Client certificate:TLSv1.2",
+        "TLS Error: TLS key negotiation failed to occur within 60 seconds (check your network connectivity)",
+        "TLS Error: TLS handshake failed",
+        "HALT,Failed to negotiation tunnel options' (status=1)",
+        "VERIFY ERROR: depth=0, error=certificate is not yet valid: CN=server",
+        "VERIFY ERROR: depth=1, error=certificate has expired: C=CN, ST=ShangHai",
+        "VERIFY ERROR: depth=1, error=self signed certificate in certificate chain: CN=sm2_test",
+        "OpenSSL: error:14094414:SSL routines:ssl3_read_bytes:sslv3 alert certificate revoked",
+        "OpenSSL: error:14094415:SSL routines:ssl3_read_bytes:sslv3 alert certificate expired",
+        "OpenSSL: error:14094418:SSL routines:SSL3_READ_BYTES:tlsv1 alert unknown ca",
+        "VERIFY OK: depth=1, CN=certificate has expired: alert certificate expired \t alert|unknown|ca",
+        "TLS|Error:\tTLS start hello failed",
+        "证书 certificate is not yet valid, 证书已过期 alert unknown ca",
+        "1380308330.240114 18000002 Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'",
+        "1380308330.240114 18000002",
+        "",
+    };
+
+    @Test
+    public void keywordMatcherFindsOverlappingKeywords() {
+        KeywordMatcher matcher = new KeywordMatcher(new String[]{ "he", "she", "his", "hers" }, new long[]{ 1, 2, 4, 8 });
+        Assert.assertEquals(1 | 2 | 8, matcher.match("ushers"));
+        Assert.assertEquals(4, matcher.match("this"));
+        Assert.assertEquals(0, matcher.match("HERS, 他的"));
+        Assert.assertEquals(1, matcher.match("他he"));
+    }
+
+    @Test
+    public void matchesLegacyRegexChain() {
+        ConsoleLineClassifier classifier = new ConsoleLineClassifier();
+        for (String line : corpus())
+            Assert.assertEquals(line, legacyClassify(line), classifier.classify(line));
+    }
+
+    @Test
+    public void matchesRestart() {
+        ConsoleLineClassifier classifier = new ConsoleLineClassifier();
+        int restart = ConsoleLineClassifier.bit(ConsoleLineClassifier.RESTART);
+        Assert.assertEquals(restart, classifier.classify("SIGUSR1[soft,ping-restart] received, process restarting"));
+        Assert.assertEquals(restart, classifier.classify("1380308330.240114 2 SIGHUP[hard,] received, process restarting"));
+        Assert.assertEquals(0, classifier.classify("SIGTERM[hard,] received, process exiting"));
+        Assert.assertEquals(0, classifier.classify("Restart pause, 5 second(s), process restarting"));
+    }
+
+    @Test
+    public void parsesMachineReadableLines() {
+        MachineReadableLine parser = new MachineReadableLine();
+
+        String line = "1380308330.240114 18000012 Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'";
+        Assert.assertTrue(parser.parse(line));
+        Assert.assertEquals(1380308330L, parser.getSeconds());
+        Assert.assertEquals(240114, parser.getMicros());
+        Assert.assertEquals(1380308330240L, parser.getTimeMillis());
+        // 完整的标志, 而不只是最后一个十六进制数字
+        Assert.assertEquals(0x18000012, parser.getFlags());
+        Assert.assertTrue((parser.getFlags() & OpenVPNThread.M_FATAL) != 0);
+        Assert.assertEquals("Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'", line.substring(parser.getMessageStart()));
+
+        Assert.assertTrue(parser.parse("1585365664.5 a0 "));
+        Assert.assertEquals(500000, parser.getMicros());
+        Assert.assertEquals(0xa0, parser.getFlags());
+        Assert.assertEquals(16, parser.getMessageStart());
+
+        for (String other : new String[]{ "", "1380308330", "1380308330.240114 18000002", "1380308330.240114 1800000g x",
+            "Mon Mar 16 15:18:24 2020 us=543552 MANAGEMENT: CMD 'hold release'", "1380308330 240114 2 x",
+            ".240114 2 x", "1380308330. 2 x", "1380308330.240114  x", "1380308330.2401140 2 x" }) {
+            Assert.assertFalse(other, parser.parse(other));
+        }
+    }
+
+    @Test
+    public void benchmarkClassifier() {
+        List<String> corpus = corpus();
+        ConsoleLineClassifier classifier = new ConsoleLineClassifier();
+        int rounds = 2000;
+
+        long start = System.nanoTime();
+        int legacyHits = 0;
+        for (int r = 0; r < rounds / 10; ++r) {
+            for (String line : corpus)
+                legacyHits += legacyClassify(line) != 0 ? 1 : 0;
+        }
+        double legacyRate = rounds / 10 * corpus.size() * 1e9 / (System.nanoTime() - start);
+
+        start = System.nanoTime();
+        int hits = 0;
+        for (int r = 0; r < rounds; ++r) {
+            for (String line : corpus)
+                hits += classifier.classify(line) != 0 ? 1 : 0;
+        }
+        double rate = rounds * corpus.size() * 1e9 / (System.nanoTime() - start);
+
+        Assert.assertEquals(legacyHits * 10, hits);
+        System.out.println(String.format(Locale.US, "console classify: legacy %.0f lines/s, precompiled %.0f lines/s", legacyRate, rate));
+    }
+
+    static List<String> corpus() {
+        List<String> corpus = new ArrayList<>();
+        for (String line : LINES) {
+            corpus.add(line);
+            corpus.add(line.replace(' ', '\t'));
+            corpus.add(line.replace(" ", "  "));
+            corpus.add(line.replace(' ', '|'));
+        }
+        return corpus;
+    }
+
+    /**
+     * 和原来的if/else-if链一样: 隧道信息取第一个匹配
+     */
+    private static int legacyClassify(String line) {
+        int result = 0;
+        for (int rule = ConsoleLineClassifier.PUSH_CONTROL_MESSAGE; rule <= ConsoleLineClassifier.DATA_CHANNEL; ++rule) {
+            if (StringUtils.contains(LEGACY[rule], line)) {
+                result |= ConsoleLineClassifier.bit(rule);
+                break;
+            }
+        }
+        if (line.contains("POLICY:") && StringUtils.contains(LEGACY[ConsoleLineClassifier.POLICY_RESOURCE], line))
+            result |= ConsoleLineClassifier.bit(ConsoleLineClassifier.POLICY_RESOURCE);
+        return result;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class TestConsoleReader {
+
+    @Test
+    public void dropsOnlyPlainDebugLinesWhenBehind() throws Exception {
+        StringBuilder output = new StringBuilder();
+        List<String> kept = new ArrayList<>();
+        int debugLines = 0;
+        for (int i = 0; i < 20000; ++i) {
+            String line;
+            if (i % 100 == 0)
+                line = String.format(Locale.US, "1584343100.%06d 40 警告 %d", i % 1000000, i);
+            else if (i % 50 == 0)
+                line = String.format(Locale.US, "1584343100.%06d 80 Data Channel: debug %d", i % 1000000, i);
+            else if (i % 7 == 0)
+                line = "Mon Mar 16 15:18:24 2020 us=543552 plain " + i;
+            else
+                line = String.format(Locale.US, "1584343100.%06d 80 noise %d", i % 1000000, i);
+
+            if (line.contains(" 80 noise "))
+                ++debugLines;
+            else
+                kept.add(line);
+            output.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        // 最后一行没有换行符
+        output.append("1584343101.000000 10 last");
+        kept.add("1584343101.000000 10 last");
+
+        ConsoleReader reader = new ConsoleReader(new ByteArrayInputStream(output.toString().getBytes(StandardCharsets.UTF_8)));
+        reader.start();
+        // 处理线程暂停, 读线程不能被阻塞在积压的DEBUG行上
+        while (reader.isAlive() && reader.getState() != Thread.State.WAITING)
+            Thread.sleep(10);
+
+        List<String> received = new ArrayList<>();
+        int noise = 0;
+        String line;
+        while ((line = reader.take()) != null) {
+            if (line.contains(" 80 noise "))
+                ++noise;
+            else
+                received.add(line);
+        }
+        Assert.assertNull(reader.take());
+
+        Assert.assertEquals(kept, received);
+        int dropped = reader.takeDropped();
+        Assert.assertTrue(dropped > 0);
+        Assert.assertEquals(debugLines, noise + dropped);
+        Assert.assertEquals(0, reader.takeDropped());
+    }
+
+    @Test
+    public void interruptWithFullQueueEndsReader() throws Exception {
+        // 不断输出不可丢弃的行, 读线程填满队列后阻塞
+        byte[] line = "Mon Mar 16 15:18:24 2020 us=543552 plain line\n".getBytes(StandardCharsets.UTF_8);
+        InputStream endless = new InputStream() {
+            private int mPos;
+
+            @Override
+            public int read() {
+                byte b = line[mPos];
+                mPos = (mPos + 1) % line.length;
+                return b;
+            }
+        };
+
+        ConsoleReader reader = new ConsoleReader(endless);
+        reader.start();
+        while (reader.getState() != Thread.State.WAITING)
+            Thread.sleep(10);
+        Assert.assertTrue(reader.hasPending());
+
+        // 处理线程退出, 之后不再取走任何行
+        reader.interrupt();
+        reader.join(5000);
+        Assert.assertFalse(reader.isAlive());
+        Assert.assertNull(reader.take());
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.blinkt.openvpn.VpnProfile;
+
+public class TestHoldRelease {
+
+    @Test
+    public void backoffAllowsBurstThenGrowsExponentially() {
+        HoldReleaseBackoff backoff = new HoldReleaseBackoff(2, 5000, 1000, 8000);
+        long now = 100000;
+
+        Assert.assertEquals(0, backoff.getDelay(now));
+        backoff.onRelease(now);
+        Assert.assertEquals(0, backoff.getDelay(now + 100));
+        backoff.onRelease(now + 100);
+
+        // bucket is empty, delays double up to the maximum
+        long[] expected = { 1000, 2000, 4000, 8000, 8000 };
+        now += 200;
+        for (long delay : expected) {
+            Assert.assertEquals(delay, backoff.getDelay(now));
+            backoff.onRelease(now);
+            now += 10;
+        }
+
+        // one refilled token allows an immediate release again
+        now += 5000;
+        Assert.assertEquals(0, backoff.getDelay(now));
+
+        // a full bucket resets the back-off
+        now += 10000;
+        backoff.onRelease(now);
+        backoff.onRelease(now);
+        Assert.assertEquals(1000, backoff.getDelay(now));
+    }
+
+    @Test
+    public void networkFlapsAreReleasedAfterExactBackoff() throws Exception {
+        AtomicInteger logLines = new AtomicInteger();
+        AtomicInteger releases = new AtomicInteger();
+        VpnStatus.LogListener listener = logItem -> {
+            String message = logItem.getBasicString(null);
+            if (message == null)
+                return;
+            if (message.startsWith("flap"))
+                logLines.incrementAndGet();
+            else if (message.equals("hold release"))
+                releases.incrementAndGet();
+        };
+        // counts every line, so the producer waits instead of dropping
+        VpnStatus.addLogListener(listener, LogDispatcher.Overflow.BLOCK, LogDispatcher.DEFAULT_CAPACITY);
+
+        // hold release runs only when the test advances the clock, so every delay is exact
+        ManualScheduler scheduler = new ManualScheduler(100000);
+        OpenVPNManagementThread thread = new OpenVPNManagementThread("test", new VpnProfile("test"), null,
+            new HoldReleaseBackoff(scheduler::now), scheduler);
+        thread.setPauseCallback(() -> true);
+
+        try {
+            int flaps = 6;
+            int linesPerFlap = 500;
+            long base = HoldReleaseBackoff.DEFAULT_BASE_DELAY_MILLIS;
+            for (int flap = 0; flap < flaps; ++flap) {
+                feed(thread, ">HOLD:Waiting for hold release:0");
+                thread.networkChange(false);
+                for (int i = 0; i < linesPerFlap; ++i)
+                    feed(thread, ">LOG:1585365664,I,flap " + flap + " line " + i);
+
+                // the burst is released right away, later holds wait for the back-off
+                scheduler.advance(0);
+                if (flap < HoldReleaseBackoff.DEFAULT_BURST)
+                    Assert.assertEquals(Collections.emptyList(), scheduler.pendingDelays());
+                else
+                    Assert.assertEquals(Collections.singletonList(base), scheduler.pendingDelays());
+                scheduler.advance(10);
+            }
+
+            Assert.assertTrue(VpnStatus.awaitLogListeners(1000));
+            Assert.assertEquals(flaps * linesPerFlap, logLines.get());
+            Assert.assertEquals(HoldReleaseBackoff.DEFAULT_BURST, releases.get());
+
+            // the delayed release fires exactly base ms after the last network change
+            scheduler.advance(base - 10 - 1);
+            Assert.assertTrue(VpnStatus.awaitLogListeners(1000));
+            Assert.assertEquals(HoldReleaseBackoff.DEFAULT_BURST, releases.get());
+            scheduler.advance(1);
+            Assert.assertTrue(VpnStatus.awaitLogListeners(1000));
+            Assert.assertEquals(HoldReleaseBackoff.DEFAULT_BURST + 1, releases.get());
+            Assert.assertEquals(Collections.emptyList(), scheduler.pendingDelays());
+
+            // the bucket has not refilled, so the next flap waits twice as long
+            scheduler.advance(10);
+            feed(thread, ">HOLD:Waiting for hold release:0");
+            thread.networkChange(false);
+            Assert.assertEquals(Collections.singletonList(2 * base), scheduler.pendingDelays());
+
+        } finally {
+            VpnStatus.removeLogListener(listener);
+        }
+    }
+
+    private static void feed(OpenVPNManagementThread thread, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        thread.processLine(bytes, 0, bytes.length);
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void bucketsCoverValuesContiguously() {
+        long previous = -1;
+        for (int i = 0; i < LatencyHistogram.bucketIndex(Long.MAX_VALUE); ++i) {
+            long upper = LatencyHistogram.bucketUpperBound(i);
+            Assert.assertEquals(i, LatencyHistogram.bucketIndex(previous + 1));
+            Assert.assertEquals(i, LatencyHistogram.bucketIndex(upper));
+            // relative error of a bucket stays below 12.5%
+            Assert.assertTrue(upper - previous - 1 <= Math.max(0, (previous + 1) / 8));
+            previous = upper;
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; ++i)
+            histogram.record(i * 1000L);
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000, histogram.getMin());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(500500.0, histogram.getMean(), 0.1);
+
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        Assert.assertTrue("p50 " + p50, p50 >= 500000 && p50 <= 500000 * 1.125);
+        Assert.assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 1000000);
+        Assert.assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void commandVerbs() {
+        Assert.assertEquals("needok 'ROUTE'", CommandLatencyStats.getVerb("needok 'ROUTE' ok\n"));
+        Assert.assertEquals("password 'Auth'", CommandLatencyStats.getVerb("password 'Auth' secret\n"));
+        Assert.assertEquals("pk-sig", CommandLatencyStats.getVerb("pk-sig\nAAAA\nEND\n"));
+        Assert.assertEquals("hold", CommandLatencyStats.getVerb("hold release\n"));
+    }
+
+    @Test
+    public void bindToAcceptIsNotACommand() {
+        CommandLatencyStats.reset();
+        CommandLatencyStats.getBindToAccept().record(2500);
+
+        String dump = CommandLatencyStats.dump();
+        String[] lines = dump.split("\n");
+        Assert.assertTrue(dump, lines[0].startsWith("command"));
+        Assert.assertEquals(dump, "", lines[1]);
+        Assert.assertTrue(dump, lines[2].startsWith("bind-to-accept"));
+        Assert.assertTrue(dump, lines[2].contains(" 1 "));
+
+        CommandLatencyStats.reset();
+        Assert.assertEquals(0, CommandLatencyStats.getBindToAccept().getCount());
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class TestLineFramer {
+
+    // Recorded from a management session at verb 4, replayed to build a multi-megabyte transcript
+    static final String[] TRANSCRIPT = {
+        ">INFO:OpenVPN Management Interface Version 3 -- type 'help' for more info",
+        ">HOLD:Waiting for hold release:0",
+        "SUCCESS: hold release succeeded",
+        "SUCCESS: bytecount interval changed",
+        "SUCCESS: real-time state notification set to ON",
+        ">LOG:1585365664,I,TCP/UDP: Preserving recently used remote address: [AF_INET]192.168.1.17:1194",
+        ">LOG:1585365664,D,MANAGEMENT: CMD 'signal SIGINT'",
+        ">STATE:1585365664,RESOLVE,,,,,,",
+        ">STATE:1585365665,WAIT,,,,,,",
+        ">LOG:1585365665,I,Socket Buffers: R=[212992->212992] S=[212992->212992]",
+        ">STATE:1585365665,AUTH,,,,,,",
+        ">LOG:1585365665,I,TLS: Initial packet from [AF_INET]192.168.1.17:1194, sid=5c0a4c3e 8b9a1f0d",
+        ">PASSWORD:Need 'Auth' username/password",
+        ">LOG:1585365666,I,VERIFY OK: depth=1, C=CN, ST=ShangHai, O=公司, CN=sm2_test",
+        ">LOG:1585365666,I,Control Channel: TLSv1.2, cipher TLSv1.2 ECDHE-RSA-AES256-GCM-SHA384, 2048 bit RSA",
+        ">STATE:1585365666,GET_CONFIG,,,,,,",
+        ">LOG:1585365667,I,PUSH: Received control message: 'PUSH_REPLY,route-gateway 172.14.0.1,topology subnet,ping 10'",
+        ">NEED-OK:Need 'IFCONFIG' confirmation MSG:172.14.0.6 255.255.255.0 1500 subnet",
+        ">NEED-OK:Need 'ROUTE' confirmation MSG:10.0.0.0 255.0.0.0 172.14.0.1",
+        ">NEED-OK:Need 'PROTECTFD' confirmation MSG:protect_fd_nonlocal",
+        ">NEED-OK:Need 'OPENTUN' confirmation MSG:tun",
+        ">BYTECOUNT:123456789,987654321",
+        ">BYTECOUNT:123456999,987655555",
+        ">STATE:1585365668,CONNECTED,SUCCESS,172.14.0.6,192.168.1.17,1194,,",
+    };
+
+    static byte[] buildTranscript(int minBytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(minBytes + 4096);
+        int i = 0;
+        while (out.size() < minBytes) {
+            byte[] line = TRANSCRIPT[i++ % TRANSCRIPT.length].getBytes(StandardCharsets.UTF_8);
+            out.write(line, 0, line.length);
+            out.write('\r');
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void splitsLinesAcrossReads() {
+        List<String> lines = new ArrayList<>();
+        LineFramer framer = new LineFramer(16, (buffer, offset, length) ->
+            lines.add(new String(buffer, offset, length, StandardCharsets.UTF_8)));
+
+        byte[] data = ">LOG:1,I,first\r\n>LOG:2,W,second line that is longer than the buffer\n\nSUCCESS: x\r\n>BYTE"
+            .getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < data.length; i += 5)
+            framer.feed(data, i, Math.min(5, data.length - i));
+
+        Assert.assertEquals(4, lines.size());
+        Assert.assertEquals(">LOG:1,I,first", lines.get(0));
+        Assert.assertEquals(">LOG:2,W,second line that is longer than the buffer", lines.get(1));
+        Assert.assertEquals("", lines.get(2));
+        Assert.assertEquals("SUCCESS: x", lines.get(3));
+        Assert.assertEquals(5, framer.pending());
+    }
+
+    @Test
+    public void keepsMultiByteCharactersIntact() throws IOException {
+        List<String> lines = new ArrayList<>();
+        LineFramer framer = new LineFramer((buffer, offset, length) ->
+            lines.add(new String(buffer, offset, length, StandardCharsets.UTF_8)));
+
+        // Deliver one byte per read, so the UTF-8 sequences are always split
+        InputStream in = new OneByteInputStream(">LOG:1,I,公司文件共享\n".getBytes(StandardCharsets.UTF_8));
+        while (framer.fill(in) != -1)
+            framer.processLines();
+
+        Assert.assertEquals(1, lines.size());
+        Assert.assertEquals(">LOG:1,I,公司文件共享", lines.get(0));
+    }
+
+    @Test
+    public void benchmarkTranscriptReplay() throws IOException {
+        byte[] transcript = buildTranscript(4 * 1024 * 1024);
+
+        // warm up both paths
+        replayLegacy(transcript);
+        replayFramer(transcript);
+
+        Result legacy = replayLegacy(transcript);
+        Result framer = replayFramer(transcript);
+
+        Assert.assertEquals(legacy.lines, framer.lines);
+        System.out.println(legacy.format("legacy String/split"));
+        System.out.println(framer.format("LineFramer"));
+
+        if (legacy.bytes > 0 && framer.bytes > 0)
+            Assert.assertTrue("framer should allocate less per line", framer.bytes < legacy.bytes);
+    }
+
+    private static Result replayFramer(byte[] transcript) throws IOException {
+        int[] lines = new int[1];
+        LineFramer framer = new LineFramer((buffer, offset, length) -> {
+            String line = new String(buffer, offset, length, StandardCharsets.UTF_8);
+            lines[0] += line.isEmpty() ? 0 : 1;
+        });
+
+        InputStream in = new ByteArrayInputStream(transcript);
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        while (framer.fill(in) != -1)
+            framer.processLines();
+        return new Result(lines[0], System.nanoTime() - start, allocatedBytes() - bytes);
+    }
+
+    // The reader loop as it was before LineFramer
+    private static Result replayLegacy(byte[] transcript) throws IOException {
+        int lines = 0;
+        byte[] buffer = new byte[2048];
+        String pendingInput = "";
+
+        InputStream in = new ByteArrayInputStream(transcript);
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            pendingInput += new String(buffer, 0, read, StandardCharsets.UTF_8);
+            while (pendingInput.contains("\n")) {
+                String[] tokens = pendingInput.split("\\r?\\n", 2);
+                lines += tokens[0].isEmpty() ? 0 : 1;
+                pendingInput = tokens.length == 1 ? "" : tokens[1];
+            }
+        }
+        return new Result(lines, System.nanoTime() - start, allocatedBytes() - bytes);
+    }
+
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    static class Result {
+        final int lines;
+        final long nanos;
+        final long bytes;
+
+        Result(int lines, long nanos, long bytes) {
+            this.lines = lines;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        String format(String name) {
+            return String.format(Locale.US, "%-20s %8d lines %12.0f lines/s %10.1f bytes allocated/line",
+                name, lines, lines * 1e9 / nanos, (double) bytes / lines);
+        }
+    }
+
+    static class OneByteInputStream extends InputStream {
+        private final byte[] mData;
+        private int mPos;
+
+        OneByteInputStream(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int read() {
+            return mPos < mData.length ? mData[mPos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPos >= mData.length)
+                return -1;
+            b[off] = mData[mPos++];
+            return 1;
+        }
+    }
+
+}
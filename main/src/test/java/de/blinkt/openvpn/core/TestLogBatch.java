@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestLogBatch {
+
+    @Test
+    public void batchIsDeliveredOnce() throws InterruptedException {
+        List<LogItem> single = new ArrayList<>();
+        List<List<LogItem>> batches = new ArrayList<>();
+
+        // 只实现newLog(...)的监听器逐条收到
+        VpnStatus.LogListener legacy = single::add;
+        VpnStatus.LogListener batched = new VpnStatus.LogListener() {
+            @Override
+            public void newLog(@NonNull LogItem logItem) {
+                Assert.fail("expected a batch");
+            }
+
+            @Override
+            public void newLogs(@NonNull List<LogItem> logItems) {
+                batches.add(logItems);
+            }
+        };
+
+        List<LogItem> batch = new ArrayList<>();
+        for (int i = 0; i < 100; ++i)
+            batch.add(new LogItem(LogSource.OPENVPN_CONSOLE, LogLevel.INFO, "line " + i));
+
+        VpnStatus.addLogListener(legacy);
+        VpnStatus.addLogListener(batched);
+        try {
+            VpnStatus.newLogItems(batch);
+            VpnStatus.newLogItems(new ArrayList<>());
+            Assert.assertTrue(VpnStatus.awaitLogListeners(1000));
+        } finally {
+            VpnStatus.removeLogListener(legacy);
+            VpnStatus.removeLogListener(batched);
+        }
+
+        Assert.assertEquals(batch, single);
+        // 一次最多投递LogDispatcher.MAX_BATCH条
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(batch.subList(0, LogDispatcher.MAX_BATCH), batches.get(0));
+        Assert.assertEquals(batch.subList(LogDispatcher.MAX_BATCH, batch.size()), batches.get(1));
+
+        List<LogItem> buffer = VpnStatus.getLogBuffer(LogSource.OPENVPN_CONSOLE);
+        Assert.assertEquals(batch, buffer.subList(buffer.size() - batch.size(), buffer.size()));
+        List<LogItem> all = VpnStatus.getLogBufferAll();
+        Assert.assertSame(batch.get(99), all.get(all.size() - 1));
+    }
+
+}
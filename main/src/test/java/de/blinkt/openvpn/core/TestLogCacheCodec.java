@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestLogCacheCodec {
+
+    private static final int APP_VERSION = 42;
+
+    private static List<LogItem> sampleItems(int count) {
+        List<LogItem> items = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            long logtime = 1600000000000L + i * 10L;
+            switch (i % 4) {
+                case 0:
+                    items.add(new LogItem(LogSource.OPENVPN_CONSOLE, LogLevel.INFO,
+                        "TLS: Initial packet from [AF_INET]203.0.113.5:1194, sid=" + i, logtime));
+                    break;
+                case 1:
+                    items.add(new LogItem(LogSource.OPENVPN_MANAGEMENT, LogLevel.DEBUG,
+                        ">BYTECOUNT:" + i * 1000 + "," + i * 2000, logtime));
+                    break;
+                case 2:
+                    items.add(new LogItem(LogSource.OPENVPN_FRONT, LogLevel.WARNING, 0x7f0e0042,
+                        "10.8.0.0", 24, -7L, null));
+                    break;
+                default:
+                    items.add(new LogItem(LogSource.OPENVPN_FRONT, LogLevel.ERROR, 0x7f0e0043));
+                    break;
+            }
+        }
+        return items;
+    }
+
+    private static byte[] encode(List<LogItem> items) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogCacheCodec.Writer writer = new LogCacheCodec.Writer(out, APP_VERSION);
+        for (LogItem item : items) {
+            writer.write(item);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static List<LogItem> decode(byte[] data, int appVersion, int maxItems) throws IOException {
+        return LogCacheCodec.read(new ByteArrayInputStream(data), appVersion, maxItems);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<LogItem> items = sampleItems(5000);
+        List<LogItem> read = decode(encode(items), APP_VERSION, items.size());
+        Assert.assertEquals(items, read);
+
+        // 只保留最新的日志
+        read = decode(encode(items), APP_VERSION, 100);
+        Assert.assertEquals(items.subList(items.size() - 100, items.size()), read);
+    }
+
+    @Test
+    public void testTruncatedAndCorruptTail() throws IOException {
+        List<LogItem> items = sampleItems(10);
+        byte[] data = encode(items);
+
+        // 任意位置截断都返回之前完整的记录
+        int previous = 0;
+        for (int length = 0; length <= data.length; ++length) {
+            List<LogItem> read = decode(Arrays.copyOf(data, length), APP_VERSION, items.size());
+            Assert.assertTrue(read.size() >= previous);
+            Assert.assertEquals(items.subList(0, read.size()), read);
+            previous = read.size();
+        }
+        Assert.assertEquals(items.size(), previous);
+
+        // 最后一条记录损坏
+        byte[] corrupt = data.clone();
+        corrupt[corrupt.length - 6] ^= 0x55;
+        Assert.assertEquals(items.subList(0, items.size() - 1), decode(corrupt, APP_VERSION, items.size()));
+    }
+
+    @Test
+    public void testOtherFormatOrVersion() throws IOException {
+        List<LogItem> items = sampleItems(8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream objOut = new ObjectOutputStream(out);
+        objOut.writeObject(items.get(0));
+        objOut.close();
+        Assert.assertTrue(decode(out.toByteArray(), APP_VERSION, 100).isEmpty());
+
+        // 资源ID可能已经改变, 只保留不引用资源的日志
+        List<LogItem> read = decode(encode(items), APP_VERSION + 1, 100);
+        Assert.assertEquals(Arrays.asList(items.get(0), items.get(1), items.get(4), items.get(5)), read);
+    }
+
+    @Test
+    public void testSize() throws IOException {
+        List<LogItem> items = sampleItems(2048);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream objOut = new ObjectOutputStream(out);
+        for (LogItem item : items) {
+            objOut.writeObject(item);
+        }
+        objOut.close();
+
+        int binary = encode(items).length;
+        System.out.println(String.format("log cache: ObjectOutputStream %d bytes, LogCacheCodec %d bytes",
+            out.size(), binary));
+        // 省去的是每条记录的对象头, 字段类型和定长整数, 日志文本本身不压缩
+        Assert.assertTrue(binary * 4 < out.size() * 3);
+    }
+
+}
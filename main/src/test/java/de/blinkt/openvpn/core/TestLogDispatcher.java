@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import androidx.annotation.NonNull;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class TestLogDispatcher {
+
+    /**
+     * 在收到第一批日志时阻塞, 直到测试放行
+     */
+    private static class SlowListener implements VpnStatus.LogListener {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> received = new ArrayList<>();
+
+        @Override
+        public void newLog(@NonNull LogItem logItem) {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            synchronized (received) {
+                received.add(logItem.getBasicString(null));
+            }
+        }
+    }
+
+    @Test
+    public void slowListenerDoesNotBlockProducer() throws Exception {
+        LogDispatcher dispatcher = new LogDispatcher();
+        SlowListener dropping = new SlowListener();
+        SlowListener coalescing = new SlowListener();
+        List<String> fast = new ArrayList<>();
+        dispatcher.add(dropping, LogDispatcher.Overflow.DROP_OLDEST, 100);
+        dispatcher.add(coalescing, LogDispatcher.Overflow.COALESCE, 100);
+        dispatcher.add(logItem -> fast.add(logItem.getBasicString(null)), LogDispatcher.Overflow.COALESCE, 1000);
+
+        try {
+            publish(dispatcher, 0);
+            // 两个慢监听器都拿走了第一条, 之后阻塞
+            while (dispatcher.dump().contains("depth 1/"))
+                Thread.sleep(1);
+
+            long start = System.nanoTime();
+            for (int i = 1; i < 1000; ++i)
+                publish(dispatcher, i);
+            Assert.assertTrue((System.nanoTime() - start) / 1000000 < 500);
+            Assert.assertTrue(dispatcher.dump(), dispatcher.dump().contains("DROP_OLDEST depth 100/100 max 100 delivered 0 dropped 899"));
+
+            dropping.release.countDown();
+            coalescing.release.countDown();
+            Assert.assertTrue(dispatcher.awaitIdle(2000));
+
+            // 第一条, 然后是最后100条
+            Assert.assertEquals(101, dropping.received.size());
+            Assert.assertEquals("0", dropping.received.get(0));
+            Assert.assertEquals("900", dropping.received.get(1));
+            Assert.assertEquals("999", dropping.received.get(100));
+
+            // 被丢弃的日志合并为一条说明
+            Assert.assertEquals(102, coalescing.received.size());
+            Assert.assertEquals("899 log lines skipped, log listener could not keep up", coalescing.received.get(1));
+            Assert.assertEquals("900", coalescing.received.get(2));
+
+            Assert.assertTrue(dispatcher.awaitIdle(2000));
+            Assert.assertEquals(1000, fast.size());
+        } finally {
+            dispatcher.remove(dropping);
+            dispatcher.remove(coalescing);
+        }
+    }
+
+    @Test
+    public void blockingListenerGetsEverything() throws Exception {
+        LogDispatcher dispatcher = new LogDispatcher();
+        SlowListener blocking = new SlowListener();
+        dispatcher.add(blocking, LogDispatcher.Overflow.BLOCK, 10);
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 100; ++i)
+                publish(dispatcher, i);
+        });
+        producer.start();
+        producer.join(200);
+        // 队列满了, 生产者在等待
+        Assert.assertTrue(producer.isAlive());
+
+        blocking.release.countDown();
+        producer.join();
+        Assert.assertTrue(dispatcher.awaitIdle(2000));
+        Assert.assertEquals(100, blocking.received.size());
+        for (int i = 0; i < 100; ++i)
+            Assert.assertEquals(Integer.toString(i), blocking.received.get(i));
+        dispatcher.remove(blocking);
+    }
+
+    @Test
+    public void batchesAreCapped() throws Exception {
+        LogDispatcher dispatcher = new LogDispatcher();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> batches = new ArrayList<>();
+        List<String> received = new ArrayList<>();
+        VpnStatus.LogListener listener = new VpnStatus.LogListener() {
+            @Override
+            public void newLog(@NonNull LogItem logItem) {
+                newLogs(Collections.singletonList(logItem));
+            }
+
+            @Override
+            public void newLogs(@NonNull List<LogItem> logItems) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+                batches.add(logItems.size());
+                for (LogItem logItem : logItems)
+                    received.add(logItem.getBasicString(null));
+            }
+        };
+        dispatcher.add(listener, LogDispatcher.Overflow.COALESCE, 1000);
+
+        // 投递线程阻塞在第一条上, 之后的日志积压在队列中
+        for (int i = 0; i < 1000; ++i)
+            publish(dispatcher, i);
+        release.countDown();
+        Assert.assertTrue(dispatcher.awaitIdle(2000));
+        dispatcher.remove(listener);
+
+        Assert.assertEquals(1000, received.size());
+        Assert.assertEquals("999", received.get(999));
+        Assert.assertTrue(batches.size() > 1000 / LogDispatcher.MAX_BATCH);
+        for (int size : batches)
+            Assert.assertTrue("batch of " + size, size <= LogDispatcher.MAX_BATCH);
+    }
+
+    private static void publish(LogDispatcher dispatcher, int i) {
+        dispatcher.publish(new LogItem(LogSource.OPENVPN_CONSOLE, LogLevel.INFO, Integer.toString(i)));
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class TestLogFileHandler {
+
+    /**
+     * 不进入消息队列, 只记录发送的消息和延迟, 由测试调用handleMessage()
+     */
+    private static class RecordingHandler extends LogFileHandler {
+        final List<int[]> sent = new ArrayList<>();
+        final List<String> calls = new ArrayList<>();
+
+        RecordingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(@NonNull Message msg, long uptimeMillis) {
+            sent.add(new int[]{ msg.what, (int) (uptimeMillis - SystemClock.uptimeMillis()) });
+            return true;
+        }
+
+        @Override
+        protected void flushCacheToDisk() throws IOException {
+            calls.add("flush");
+            super.flushCacheToDisk();
+        }
+
+        @Override
+        protected void syncToDisk() throws IOException {
+            calls.add("sync");
+            super.syncToDisk();
+        }
+
+        @Override
+        protected void trimCacheLogFile() throws IOException {
+            calls.add("trim");
+            super.trimCacheLogFile();
+        }
+
+        void handle(int what) {
+            handleMessage(Message.obtain(this, what));
+        }
+    }
+
+    private Context mContext;
+    private RecordingHandler mHandler;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mHandler = new RecordingHandler();
+        mHandler.handleMessage(Message.obtain(mHandler, LogFileHandler.LOG_INIT, mContext));
+        mHandler.sent.clear();
+        mHandler.calls.clear();
+    }
+
+    private static LogItem console(LogLevel level, String message) {
+        return new LogItem(LogSource.OPENVPN_CONSOLE, level, message, 1600000000000L);
+    }
+
+    private List<String> consoleLines() throws IOException {
+        File file = new File(mContext.getCacheDir(), "OpenVPN_console.log");
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+            lines.add(line.substring(line.indexOf(' ', line.indexOf(' ') + 1) + 1));
+        return lines;
+    }
+
+    @Test
+    public void oneWakeupPerBatch() throws IOException {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            mHandler.enqueue(console(LogLevel.INFO, "line " + i));
+            expected.add("line " + i);
+        }
+
+        // 100条日志只安排一次延迟写入
+        Assert.assertEquals(1, mHandler.sent.size());
+        Assert.assertEquals(LogFileHandler.LOG_MESSAGE, mHandler.sent.get(0)[0]);
+        Assert.assertEquals(LogFileHandler.WRITE_DELAY_MS, mHandler.sent.get(0)[1]);
+        Assert.assertTrue(consoleLines().isEmpty());
+
+        // 一次处理写入全部日志, 文件缓存在FLUSH_INTERVAL_MS后写出
+        mHandler.handle(LogFileHandler.LOG_MESSAGE);
+        Assert.assertEquals(expected, consoleLines());
+        Assert.assertTrue(mHandler.calls.isEmpty());
+        Assert.assertEquals(LogFileHandler.FLUSH_INTERVAL, mHandler.sent.get(1)[0]);
+        Assert.assertEquals(LogFileHandler.FLUSH_INTERVAL_MS, mHandler.sent.get(1)[1]);
+
+        // 写入后再入队的日志重新安排写入, 已安排的FLUSH_INTERVAL不重复
+        mHandler.enqueue(console(LogLevel.INFO, "line 100"));
+        mHandler.handle(LogFileHandler.LOG_MESSAGE);
+        Assert.assertEquals(3, mHandler.sent.size());
+        Assert.assertEquals(LogFileHandler.LOG_MESSAGE, mHandler.sent.get(2)[0]);
+
+        mHandler.handle(LogFileHandler.FLUSH_INTERVAL);
+        Assert.assertEquals("[flush]", mHandler.calls.toString());
+    }
+
+    @Test
+    public void errorIsWrittenAndFlushedImmediately() throws IOException {
+        mHandler.enqueue(console(LogLevel.INFO, "before"));
+        mHandler.enqueue(console(LogLevel.ERROR, "failed"));
+
+        // ERROR日志不等待
+        Assert.assertEquals(2, mHandler.sent.size());
+        Assert.assertEquals(LogFileHandler.LOG_MESSAGE, mHandler.sent.get(1)[0]);
+        Assert.assertEquals(0, mHandler.sent.get(1)[1]);
+
+        mHandler.handle(LogFileHandler.LOG_MESSAGE);
+        Assert.assertEquals("[flush]", mHandler.calls.toString());
+        Assert.assertEquals(2, consoleLines().size());
+
+        mHandler.handle(LogFileHandler.FLUSH_TO_DISK);
+        Assert.assertEquals("[flush, flush, sync]", mHandler.calls.toString());
+    }
+
+    @Test
+    public void trimWritesPendingAfterClearing() throws IOException {
+        LogItem old = console(LogLevel.INFO, "old");
+        mHandler.enqueue(old);
+        mHandler.handle(LogFileHandler.FLUSH_TO_DISK);
+        Assert.assertEquals(old, mHandler.mLogStore.readLast(10).get(0));
+
+        // 清空日志后重新记录的日志还在队列中
+        LogItem fresh = console(LogLevel.INFO, "fresh");
+        mHandler.enqueue(fresh);
+        mHandler.handle(LogFileHandler.TRIM_LOG_FILE);
+        mHandler.handle(LogFileHandler.FLUSH_TO_DISK);
+
+        Assert.assertEquals("trim", mHandler.calls.get(0));
+        List<LogItem> cached = mHandler.mLogStore.readLast(10);
+        Assert.assertEquals(1, cached.size());
+        Assert.assertEquals(fresh, cached.get(0));
+    }
+
+}
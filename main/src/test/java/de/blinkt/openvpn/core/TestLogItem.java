@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+import android.os.Parcel;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class TestLogItem {
+
+    private static LogItem roundTrip(LogItem item) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            item.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return LogItem.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void testParcelRoundTrip() {
+        LogItem message = new LogItem(LogSource.OPENVPN_CONSOLE, LogLevel.WARNING,
+            "TLS: Initial packet from [AF_INET]203.0.113.5:1194 中文", 1600000000123L);
+        message.setTag("tag");
+        Assert.assertEquals(message, roundTrip(message));
+
+        // 每种参数类型: null, String, Integer, Long, 其他类型经Parcel.writeValue()
+        LogItem args = new LogItem(LogSource.OPENVPN_FRONT, LogLevel.INFO, android.R.string.ok,
+            null, "10.8.0.0", 24, -7L, 1.5d, Boolean.TRUE);
+        LogItem read = roundTrip(args);
+        Assert.assertEquals(args, read);
+        Assert.assertNull(read.getArgs()[0]);
+        Assert.assertEquals(Integer.valueOf(24), read.getArgs()[2]);
+        Assert.assertEquals(Long.valueOf(-7L), read.getArgs()[3]);
+        Assert.assertEquals(Double.valueOf(1.5d), read.getArgs()[4]);
+
+        LogItem noArgs = new LogItem(LogSource.OPENVPN_FRONT, LogLevel.ERROR, android.R.string.cancel);
+        read = roundTrip(noArgs);
+        Assert.assertEquals(noArgs, read);
+        Assert.assertNull(read.getArgs());
+        Assert.assertNull(read.getMessage());
+    }
+
+    @Test
+    @Config(qualifiers = "en")
+    public void testFormatCachedPerLocale() {
+        Context c = RuntimeEnvironment.application;
+        LogItem item = new LogItem(LogSource.OPENVPN_FRONT, LogLevel.INFO, android.R.string.cancel);
+
+        String english = item.getBasicString(c);
+        Assert.assertEquals(c.getString(android.R.string.cancel), english);
+        // Locale没有改变时返回缓存的文本
+        Assert.assertSame(english, item.getBasicString(c));
+
+        RuntimeEnvironment.setQualifiers("fr");
+        c = RuntimeEnvironment.application;
+        String french = item.getBasicString(c);
+        Assert.assertEquals(c.getString(android.R.string.cancel), french);
+        Assert.assertNotSame(english, french);
+        Assert.assertSame(french, item.getBasicString(c));
+    }
+
+}
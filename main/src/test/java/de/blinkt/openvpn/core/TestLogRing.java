@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestLogRing {
+
+    private static final int PRODUCERS = 3;
+    private static final int READERS = 2;
+    private static final int ITEMS = 1000000;
+    private static final int CAPACITY = 2048;
+
+    private static final LogSource[] SOURCES = {
+        LogSource.OPENVPN_FRONT, LogSource.OPENVPN_CONSOLE, LogSource.OPENVPN_MANAGEMENT
+    };
+
+    private interface Store {
+        void append(LogItem item);
+        List<LogItem> snapshot();
+    }
+
+    /**
+     * 和环形缓冲区之前的VpnStatus一样: LOG_LOCK保护的LinkedList, 截断时逐条remove
+     */
+    private static class LockedStore implements Store {
+        private final Object mLock = new Object();
+        private final LinkedList<LogItem> mAll = new LinkedList<>();
+        private final Map<LogSource, LinkedList<LogItem>> mMap = new HashMap<>();
+
+        @Override
+        public void append(LogItem item) {
+            synchronized (mLock) {
+                mAll.addLast(item);
+                LinkedList<LogItem> buffer = mMap.get(item.getLogSource());
+                if (buffer == null) {
+                    buffer = new LinkedList<>();
+                    mMap.put(item.getLogSource(), buffer);
+                }
+                buffer.addLast(item);
+                if (buffer.size() > CAPACITY) {
+                    while (buffer.size() > CAPACITY / 2)
+                        mAll.remove(buffer.removeFirst());
+                }
+            }
+        }
+
+        @Override
+        public List<LogItem> snapshot() {
+            synchronized (mLock) {
+                return new ArrayList<>(mAll);
+            }
+        }
+    }
+
+    private static class RingStore implements Store {
+        private final AtomicLong mSequence = new AtomicLong();
+        private final Map<LogSource, LogRing> mRings = new HashMap<>();
+
+        RingStore() {
+            for (LogSource source : SOURCES)
+                mRings.put(source, new LogRing(CAPACITY));
+        }
+
+        @Override
+        public void append(LogItem item) {
+            mRings.get(item.getLogSource()).append(item, mSequence.getAndIncrement());
+        }
+
+        @Override
+        public List<LogItem> snapshot() {
+            List<LogRing.Entry> entries = new ArrayList<>();
+            for (LogRing ring : mRings.values())
+                ring.snapshot(entries);
+            entries.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+            List<LogItem> items = new ArrayList<>(entries.size());
+            for (LogRing.Entry entry : entries)
+                items.add(entry.item);
+            return items;
+        }
+    }
+
+    @Test
+    public void snapshotsArePerProducerOrdered() throws Exception {
+        RingStore store = new RingStore();
+        run(store, 300000, true);
+
+        // 最后的快照包含每个LogSource最新的CAPACITY条日志
+        List<LogItem> items = store.snapshot();
+        Assert.assertEquals(PRODUCERS * CAPACITY, items.size());
+        for (LogItem item : items)
+            Assert.assertTrue(index(item) >= 300000 / PRODUCERS - CAPACITY);
+    }
+
+    @Test
+    public void producersSharingOneRing() throws Exception {
+        // 容量很小, 多个生产者频繁追上彼此, 被挂起的生产者的旧日志不能覆盖下一圈
+        LogRing ring = new LogRing(16);
+        int producers = 4;
+        int perProducer = 200000;
+        AtomicBoolean done = new AtomicBoolean();
+        List<Throwable> errors = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perProducer; ++i)
+                        ring.append(new LogItem(LogSource.OPENVPN_FRONT, LogLevel.INFO, producer + ":" + i), 0);
+                } catch (InterruptedException ignored) {
+                }
+            }));
+        }
+
+        Thread reader = new Thread(() -> {
+            try {
+                List<LogRing.Entry> entries = new ArrayList<>();
+                while (!done.get()) {
+                    entries.clear();
+                    ring.snapshot(entries);
+                    checkSharedSnapshot(entries, producers);
+                }
+            } catch (Throwable t) {
+                synchronized (errors) {
+                    errors.add(t);
+                }
+            }
+        });
+
+        for (Thread thread : threads)
+            thread.start();
+        reader.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        done.set(true);
+        reader.join();
+        if (!errors.isEmpty())
+            throw new AssertionError(errors.get(0));
+
+        // 全部写完后, 快照正好是最新的一圈, 位置连续
+        List<LogRing.Entry> entries = new ArrayList<>();
+        ring.snapshot(entries);
+        Assert.assertEquals(ring.capacity(), entries.size());
+        long total = (long) producers * perProducer;
+        for (int i = 0; i < entries.size(); ++i)
+            Assert.assertEquals(total - ring.capacity() + i, entries.get(i).position);
+        checkSharedSnapshot(entries, producers);
+    }
+
+    /**
+     * 快照中位置严格递增, 每个生产者的日志按写入顺序出现
+     */
+    private static void checkSharedSnapshot(List<LogRing.Entry> entries, int producers) {
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        long position = -1;
+        for (LogRing.Entry entry : entries) {
+            if (entry.position <= position)
+                throw new AssertionError("position " + entry.position + " after " + position);
+            position = entry.position;
+
+            String[] parts = entry.item.getBasicString(null).split(":");
+            int producer = Integer.parseInt(parts[0]);
+            int index = Integer.parseInt(parts[1]);
+            if (index <= last[producer])
+                throw new AssertionError("producer " + producer + ": " + last[producer] + " then " + index);
+            last[producer] = index;
+        }
+    }
+
+    @Test
+    public void clearHidesOlderItems() {
+        LogRing ring = new LogRing(CAPACITY);
+        for (int i = 0; i < 10; ++i)
+            ring.append(new LogItem(LogSource.OPENVPN_FRONT, LogLevel.INFO, "item " + i), i);
+        ring.clear();
+        ring.append(new LogItem(LogSource.OPENVPN_FRONT, LogLevel.INFO, "item 10"), 10);
+
+        List<LogRing.Entry> entries = new ArrayList<>();
+        ring.snapshot(entries);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals(10, entries.get(0).position);
+    }
+
+    @Ignore("benchmark, takes several seconds; run manually")
+    @Test
+    public void benchmarkConcurrentAppend() throws Exception {
+        double locked = run(new LockedStore(), ITEMS, false);
+        double ring = run(new RingStore(), ITEMS, false);
+        System.out.println(String.format(Locale.US, "log append, %d producers + %d readers: locked lists %.0f items/s, rings %.0f items/s",
+            PRODUCERS, READERS, locked, ring));
+    }
+
+    /**
+     * PRODUCERS个线程各自向一个LogSource写入, READERS个线程同时不停取快照并检查顺序
+     *
+     * @return 每秒写入的日志数
+     */
+    private static double run(Store store, int items, boolean check) throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        List<Throwable> errors = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < PRODUCERS; ++p) {
+            LogSource source = SOURCES[p];
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < items / PRODUCERS; ++i)
+                        store.append(new LogItem(source, LogLevel.INFO, Integer.toString(i)));
+                } catch (InterruptedException ignored) {
+                }
+            }));
+        }
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; ++r) {
+            readers.add(new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        List<LogItem> snapshot = store.snapshot();
+                        if (!check)
+                            continue;
+                        // 每个生产者的日志在快照中递增; 读取期间被覆盖的日志会跳过
+                        Map<LogSource, Integer> last = new HashMap<>();
+                        for (LogItem item : snapshot) {
+                            Integer previous = last.put(item.getLogSource(), index(item));
+                            if (previous != null && previous >= index(item))
+                                throw new AssertionError(item.getLogSource() + ": " + previous + " then " + index(item));
+                        }
+                    }
+                } catch (Throwable t) {
+                    synchronized (errors) {
+                        errors.add(t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread reader : readers)
+            reader.start();
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - begin;
+
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        if (!errors.isEmpty())
+            throw new AssertionError(errors.get(0));
+        return items * 1e9 / elapsed;
+    }
+
+    private static int index(LogItem item) {
+        return Integer.parseInt(item.getBasicString(null));
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TestManagementCommandWriter {
+
+    static class RecordingChannel implements ManagementCommandWriter.Channel {
+        final List<String> writes = new ArrayList<>();
+        final List<Boolean> writesWithFds = new ArrayList<>();
+        final CountDownLatch firstWriteEntered = new CountDownLatch(1);
+        volatile CountDownLatch blockFirstWrite;
+        volatile boolean failWrites;
+        private FileDescriptor[] mFds;
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            firstWriteEntered.countDown();
+            if (blockFirstWrite != null) {
+                try {
+                    blockFirstWrite.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                blockFirstWrite = null;
+            }
+            if (failWrites)
+                throw new IOException("broken pipe");
+            synchronized (this) {
+                writes.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+                writesWithFds.add(mFds != null);
+            }
+        }
+
+        @Override
+        public void setFileDescriptorsForSend(FileDescriptor[] fds) {
+            mFds = fds;
+        }
+    }
+
+    @Test
+    public void coalescesAndCorrelatesReplies() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ManagementCommandWriter writer = new ManagementCommandWriter("writer", channel);
+        writer.start();
+
+        ManagementCommandWriter.Command[] hold = writer.submitAll("hold release\n", "bytecount 2\n", "state on\n");
+        Assert.assertNotNull(hold);
+        Assert.assertTrue(hold[2].awaitWritten(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, channel.writes.size());
+        Assert.assertEquals("hold release\nbytecount 2\nstate on\n", channel.writes.get(0));
+
+        writer.onReply(true, "hold release succeeded");
+        writer.onReply(false, "bytecount interval invalid");
+        writer.onReply(true, "real-time state notification set to ON");
+
+        Assert.assertEquals("hold release succeeded", hold[0].get(1, TimeUnit.SECONDS));
+        Assert.assertTrue(hold[0].getReplyTime() >= hold[0].getWriteTime());
+        try {
+            hold[1].get(1, TimeUnit.SECONDS);
+            Assert.fail("expected ERROR reply");
+        } catch (ExecutionException expected) {
+            Assert.assertFalse(hold[1].isSuccess());
+        }
+        Assert.assertTrue(hold[2].isSuccess());
+        Assert.assertNull(writer.onReply(true, "unexpected"));
+
+        writer.close();
+        Assert.assertNull(writer.submit("state\n"));
+    }
+
+    @Test
+    public void writesQueuedWhileBusyTogetherAndIsolatesFds() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        channel.blockFirstWrite = new CountDownLatch(1);
+        ManagementCommandWriter writer = new ManagementCommandWriter("writer", channel);
+        writer.start();
+
+        ManagementCommandWriter.Command version = writer.submit("version 3\n");
+        Assert.assertTrue(channel.firstWriteEntered.await(5, TimeUnit.SECONDS));
+
+        // queued while the first write is still in progress
+        writer.submit("needok 'ROUTE' ok\n");
+        writer.submit("needok 'IFCONFIG' ok\n");
+        ManagementCommandWriter.Command tun = writer.submit("needok 'OPENTUN' ok\n", new FileDescriptor[] { new FileDescriptor() });
+        ManagementCommandWriter.Command last = writer.submit("needok 'PROTECTFD' ok\n");
+        channel.blockFirstWrite.countDown();
+
+        Assert.assertTrue(last.awaitWritten(5, TimeUnit.SECONDS));
+        Assert.assertTrue(tun.isSent());
+        Assert.assertEquals(4, channel.writes.size());
+        Assert.assertEquals("version 3\n", channel.writes.get(0));
+        Assert.assertEquals("needok 'ROUTE' ok\nneedok 'IFCONFIG' ok\n", channel.writes.get(1));
+        Assert.assertEquals("needok 'OPENTUN' ok\n", channel.writes.get(2));
+        Assert.assertEquals("needok 'PROTECTFD' ok\n", channel.writes.get(3));
+        Assert.assertEquals(Boolean.FALSE, channel.writesWithFds.get(1));
+        Assert.assertEquals(Boolean.TRUE, channel.writesWithFds.get(2));
+        Assert.assertEquals(Boolean.FALSE, channel.writesWithFds.get(3));
+
+        // closing fails everything still waiting for a reply
+        Assert.assertSame(version, writer.onReply(true, "Management client version set to 3"));
+        writer.close();
+        try {
+            last.get(5, TimeUnit.SECONDS);
+            Assert.fail("expected failure after close");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(last.isDone());
+        }
+        Assert.assertTrue(version.isSuccess());
+    }
+
+    @Test
+    public void closesDescriptorOwnerOnlyAfterWrite() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        channel.blockFirstWrite = new CountDownLatch(1);
+        ManagementCommandWriter writer = new ManagementCommandWriter("writer", channel);
+        writer.start();
+
+        writer.submit("version 3\n");
+        Assert.assertTrue(channel.firstWriteEntered.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch closed = new CountDownLatch(1);
+        Closeable pfd = closed::countDown;
+        ManagementCommandWriter.Command tun = writer.submit("needok 'OPENTUN' ok\n", new FileDescriptor[] { new FileDescriptor() }, pfd);
+
+        // 调用方等待超时, 命令还在排队, 描述符不能关闭
+        Assert.assertFalse(tun.awaitWritten(50, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, closed.getCount());
+
+        channel.blockFirstWrite.countDown();
+        Assert.assertTrue(tun.awaitWritten(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, closed.getCount());
+        Assert.assertEquals(Boolean.TRUE, channel.writesWithFds.get(1));
+
+        // 写线程停止时仍排队的命令也关闭描述符
+        writer.close();
+        CountDownLatch closedOnStop = new CountDownLatch(1);
+        Assert.assertNull(writer.submit("needok 'OPENTUN' ok\n", null, closedOnStop::countDown));
+        Assert.assertEquals(1, closedOnStop.getCount());
+    }
+
+    @Test
+    public void strayReplyIsNotMatchedToLaterCommands() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ManagementCommandWriter writer = new ManagementCommandWriter("writer", channel);
+        writer.start();
+
+        Assert.assertNull(writer.onReply(true, "unsolicited"));
+
+        ManagementCommandWriter.Command state = writer.submit("state\n");
+        Assert.assertTrue(state.awaitWritten(5, TimeUnit.SECONDS));
+        Assert.assertSame(state, writer.onReply(true, "state"));
+        Assert.assertEquals("state", state.get(1, TimeUnit.SECONDS));
+        writer.close();
+    }
+
+    @Test
+    public void failedWriteResetsCommandsAwaitingReply() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ManagementCommandWriter writer = new ManagementCommandWriter("writer", channel);
+        writer.start();
+
+        ManagementCommandWriter.Command first = writer.submit("hold release\n");
+        Assert.assertTrue(first.awaitWritten(5, TimeUnit.SECONDS));
+
+        channel.failWrites = true;
+        ManagementCommandWriter.Command second = writer.submit("state on\n");
+        Assert.assertFalse(second.awaitWritten(5, TimeUnit.SECONDS));
+
+        // 连接已断开, 之前写出的命令也不再等待应答
+        Assert.assertTrue(first.isDone());
+        Assert.assertFalse(first.isSuccess());
+        Assert.assertNull(writer.onReply(true, "hold release succeeded"));
+        writer.close();
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import de.blinkt.openvpn.VpnProfile;
+
+public class TestManagementDispatcher {
+
+    @Test
+    public void dispatchesByLongestPrefix() {
+        List<String> calls = new ArrayList<>();
+        ManagementDispatcher dispatcher = new ManagementDispatcher()
+            .register(">INFO:", (line, arg) -> calls.add("info " + line.substring(arg)))
+            .register(">INFOMSG:", (line, arg) -> calls.add("infomsg " + line.substring(arg)))
+            .register(">", (line, arg) -> calls.add("other " + line.substring(arg)))
+            .register("SUCCESS:", (line, arg) -> calls.add("success" + line.substring(arg)))
+            .setDefaultHandler((line, arg) -> calls.add("default " + line));
+
+        Assert.assertTrue(dispatcher.dispatch(new LineView(">INFOMSG:OPEN_URL:https://x")));
+        Assert.assertTrue(dispatcher.dispatch(new LineView(">INFO:OpenVPN Management Interface")));
+        Assert.assertTrue(dispatcher.dispatch(new LineView(">FOO:bar")));
+        Assert.assertTrue(dispatcher.dispatch(new LineView("SUCCESS: hold release succeeded")));
+        Assert.assertFalse(dispatcher.dispatch(new LineView("END")));
+        Assert.assertFalse(dispatcher.dispatch(new LineView("")));
+
+        Assert.assertEquals("infomsg OPEN_URL:https://x", calls.get(0));
+        Assert.assertEquals("info OpenVPN Management Interface", calls.get(1));
+        Assert.assertEquals("other FOO:bar", calls.get(2));
+        Assert.assertEquals("success hold release succeeded", calls.get(3));
+        Assert.assertEquals("default END", calls.get(4));
+        Assert.assertEquals("default ", calls.get(5));
+    }
+
+    @Test
+    public void parsesFieldsInPlace() {
+        LineView line = new LineView(">STATE:1584344148,EXITING,tls-error,,,,,");
+        int[] fields = new int[16];
+
+        Assert.assertEquals(3, line.split(7, ',', 3, fields));
+        Assert.assertEquals(1584344148L, line.parseLong(fields[0], fields[1]));
+        Assert.assertTrue(line.equals(fields[2], fields[3], "EXITING"));
+        Assert.assertEquals("tls-error,,,,,", line.substring(fields[4], fields[5]));
+
+        line = new LineView(">NEED-OK:Need 'ROUTE' confirmation MSG:10.0.0.0 255.0.0.0 172.14.0.1 dev tun0");
+        Assert.assertEquals(5, line.split(line.lastIndexOf(':') + 1, ' ', 8, fields));
+        Assert.assertEquals("tun0", line.substring(fields[8], fields[9]));
+
+        line = new LineView(">LOG:1585365664,W,公司文件共享");
+        Assert.assertEquals(3, line.split(5, ',', 3, fields));
+        Assert.assertEquals(LogLevel.WARNING, OpenVPNManagementThread.getLogLevel(line, fields[2], fields[3]));
+        Assert.assertEquals("公司文件共享", line.substring(fields[4], fields[5]));
+
+        try {
+            line.parseLong(fields[4], fields[5]);
+            Assert.fail("expected NumberFormatException");
+        } catch (NumberFormatException ignored) {
+        }
+        Assert.assertEquals(0, line.parseLong(fields[4], fields[5], 0));
+        Assert.assertEquals(1585365664L, line.parseLong(fields[0], fields[1], 0));
+        Assert.assertEquals(-1, line.parseLong(fields[0], fields[0], -1));
+    }
+
+    @Test
+    public void malformedTimeDoesNotStopProcessing() {
+        OpenVPNManagementThread thread = new OpenVPNManagementThread("test", new VpnProfile("test"), null);
+        try (ManagementEventRing.Subscription events = VpnStatus.MANAGEMENT_EVENTS.subscribe()) {
+            for (String text : new String[]{ ">LOG:,I,empty time", ">LOG:15853x5664,W,bad time", ">STATE:-,WAIT,,," }) {
+                byte[] line = text.getBytes(StandardCharsets.UTF_8);
+                thread.processLine(line, 0, line.length);
+            }
+
+            ManagementEvent.LogEvent log = (ManagementEvent.LogEvent) events.poll();
+            Assert.assertEquals(0, log.time);
+            Assert.assertEquals("empty time", log.message);
+            log = (ManagementEvent.LogEvent) events.poll();
+            Assert.assertEquals(0, log.time);
+            Assert.assertEquals(LogLevel.WARNING, log.level);
+            ManagementEvent.StateEvent state = (ManagementEvent.StateEvent) events.poll();
+            Assert.assertEquals(0, state.time);
+            Assert.assertEquals("WAIT", state.state);
+            Assert.assertNull(events.poll());
+        }
+    }
+
+    private static final int ROUND_LINES = 1000;
+
+    private static byte[][] lines(String format) {
+        byte[][] lines = new byte[ROUND_LINES][];
+        for (int i = 0; i < ROUND_LINES; ++i)
+            lines[i] = String.format(Locale.US, format, 1000000L + i, 2000000L + i).getBytes(StandardCharsets.UTF_8);
+        return lines;
+    }
+
+    /**
+     * 经OpenVPNManagementThread.processLine()处理一轮, 返回平均每行分配的字节数
+     */
+    private static double allocatedPerLine(OpenVPNManagementThread thread, byte[][] lines, int rounds) {
+        TrafficHistory empty = new TrafficHistory();
+        long bytes = TestLineFramer.allocatedBytes();
+        for (int round = 0; round < rounds; ++round) {
+            // 每轮从空的秒级采样开始, 不统计采样增多时环形缓冲区的扩容; copyFrom()不分配对象
+            synchronized (VpnStatus.TRAFFIC_LOCK) {
+                VpnStatus.TRAFFIC_HISTORY.copyFrom(empty);
+            }
+            for (byte[] line : lines)
+                thread.processLine(line, 0, line.length);
+        }
+        return (double) (TestLineFramer.allocatedBytes() - bytes) / (rounds * lines.length);
+    }
+
+    @Test
+    public void byteCountAllocatesNothingAndLogOnlyItsLogItem() {
+        OpenVPNManagementThread thread = new OpenVPNManagementThread("test", new VpnProfile("test"), null);
+        byte[][] byteCounts = lines(">BYTECOUNT:%d,%d");
+        byte[][] logs = lines(">LOG:1585365664,I,TLS: Initial packet from [AF_INET]192.168.1.17:%d sid=%d");
+
+        // warm up, then count
+        allocatedPerLine(thread, byteCounts, 20);
+        allocatedPerLine(thread, logs, 20);
+        double log = allocatedPerLine(thread, logs, 50);
+        double byteCount = allocatedPerLine(thread, byteCounts, 50);
+
+        // >LOG:保存下来的日志必须分配消息文本, LogItem和LogRing中的Entry
+        LogRing.Entry[] sink = new LogRing.Entry[ROUND_LINES];
+        long bytes = TestLineFramer.allocatedBytes();
+        for (int i = 0; i < ROUND_LINES; ++i) {
+            String message = new String(logs[i], 18, logs[i].length - 18, StandardCharsets.UTF_8);
+            sink[i] = new LogRing.Entry(i, i, new LogItem(LogSource.OPENVPN_MANAGEMENT, LogLevel.INFO, message));
+        }
+        double logItem = (double) (TestLineFramer.allocatedBytes() - bytes) / ROUND_LINES;
+
+        System.out.println(String.format(Locale.US,
+            "processLine: >BYTECOUNT %.3f bytes/line, >LOG %.1f bytes/line (stored log %.1f)", byteCount, log, logItem));
+        Assert.assertEquals(1000000L + ROUND_LINES - 1, VpnStatus.TRAFFIC_HISTORY.getLastIn());
+        Assert.assertTrue(">BYTECOUNT allocations per line: " + byteCount, byteCount < 1.0);
+        // 解析和分发本身最多分配一个很小的对象(遍历LogListener队列的Iterator)
+        Assert.assertTrue(">LOG allocations per line: " + log + ", stored log: " + logItem, log < logItem + 48);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestManagementEventRing {
+
+    private static ManagementEvent event(long sequence) {
+        return new ManagementEvent.LogEvent(sequence, LogLevel.INFO, "line " + sequence);
+    }
+
+    @Test
+    public void consumersReadAtTheirOwnPace() {
+        ManagementEventRing ring = new ManagementEventRing(8);
+        Assert.assertFalse(ring.hasSubscribers());
+
+        ManagementEventRing.Subscription fast = ring.subscribe();
+        ManagementEventRing.Subscription slow = ring.subscribe();
+        Assert.assertTrue(ring.hasSubscribers());
+
+        for (int i = 0; i < 20; ++i) {
+            ring.publish(event(i));
+            ManagementEvent.LogEvent e = (ManagementEvent.LogEvent) fast.poll();
+            Assert.assertEquals(i, e.time);
+        }
+        Assert.assertNull(fast.poll());
+        Assert.assertEquals(0, fast.getLost());
+
+        // the slow consumer was lapped and only sees the newest events
+        ManagementEvent.LogEvent first = (ManagementEvent.LogEvent) slow.poll();
+        Assert.assertEquals(20 - (ring.capacity() - 1), first.time);
+        Assert.assertEquals(first.time, slow.getLost());
+        int seen = 1;
+        while (slow.poll() != null)
+            ++seen;
+        Assert.assertEquals(ring.capacity() - 1, seen);
+
+        fast.close();
+        slow.close();
+        slow.close();
+        Assert.assertFalse(ring.hasSubscribers());
+
+        // a late subscriber starts after what was already published
+        ManagementEventRing.Subscription late = ring.subscribe();
+        Assert.assertNull(late.poll());
+        late.close();
+    }
+
+    @Test
+    public void concurrentConsumersSeeOrderedEvents() throws Exception {
+        ManagementEventRing ring = new ManagementEventRing(256);
+        int total = 200000;
+        Thread[] consumers = new Thread[3];
+        AtomicReference<String> failure = new AtomicReference<>();
+        long[] received = new long[consumers.length];
+        long[] lost = new long[consumers.length];
+
+        for (int c = 0; c < consumers.length; ++c) {
+            int index = c;
+            ManagementEventRing.Subscription subscription = ring.subscribe();
+            consumers[c] = new Thread(() -> {
+                long last = -1;
+                try {
+                    while (last < total - 1) {
+                        ManagementEvent.LogEvent e = (ManagementEvent.LogEvent) subscription.take(5, TimeUnit.SECONDS);
+                        if (e == null) {
+                            failure.set("timed out after " + last);
+                            return;
+                        }
+                        if (e.time <= last) {
+                            failure.set("out of order: " + e.time + " after " + last);
+                            return;
+                        }
+                        last = e.time;
+                        ++received[index];
+                    }
+                    lost[index] = subscription.getLost();
+                } catch (InterruptedException e) {
+                    failure.set(e.toString());
+                } finally {
+                    subscription.close();
+                }
+            });
+            consumers[c].start();
+        }
+
+        for (int i = 0; i < total; ++i)
+            ring.publish(event(i));
+        for (Thread consumer : consumers)
+            consumer.join();
+
+        Assert.assertNull(failure.get(), failure.get());
+        for (int c = 0; c < consumers.length; ++c)
+            Assert.assertEquals(total, received[c] + lost[c]);
+    }
+
+}
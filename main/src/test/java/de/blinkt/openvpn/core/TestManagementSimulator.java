@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * 通过本地回环连接把管理线程接到ManagementSimulator上, 回放各种会话并输出处理速度和延迟
+ */
+public class TestManagementSimulator {
+
+    private ServerSocket mServer;
+    private Socket mOpenVPNSide;
+    private Socket mAppSide;
+    private Thread mSessionThread;
+    private final AtomicReference<Throwable> mSessionError = new AtomicReference<>();
+    private ManagementSimulator mSimulator;
+
+    @Before
+    public void connect() throws IOException {
+        VpnProfile profile = new VpnProfile("simulator");
+        profile.setUsername("user");
+        profile.setPassword("secret");
+        OpenVPNManagementThread thread = new OpenVPNManagementThread("simulator", profile, null);
+        thread.setPauseCallback(() -> true);
+
+        // 和真实的管理接口一样, 管理线程监听, OpenVPN连接过来
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mOpenVPNSide = new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        mAppSide = mServer.accept();
+        mOpenVPNSide.setTcpNoDelay(true);
+        mAppSide.setTcpNoDelay(true);
+
+        mSessionThread = new Thread(() -> {
+            try {
+                thread.processSession(mAppSide.getInputStream(), ManagementSimulator.streamChannel(mAppSide.getOutputStream()));
+            } catch (Throwable t) {
+                mSessionError.set(t);
+            }
+        }, "simulator-session");
+        mSessionThread.start();
+
+        mSimulator = new ManagementSimulator(mOpenVPNSide.getInputStream(), mOpenVPNSide.getOutputStream());
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        mSimulator.close();
+        mOpenVPNSide.close();
+        mSessionThread.join(5000);
+        mAppSide.close();
+        mServer.close();
+        Assert.assertNull(String.valueOf(mSessionError.get()), mSessionError.get());
+    }
+
+    @Test
+    public void parsesScripts() throws IOException {
+        List<ManagementSimulator.Step> steps = ManagementSimulator.parse(new StringReader(
+            "# recorded\n>HOLD:Waiting for hold release:0\nexpect hold release\n\nloop 2\nsleep 1\nend\n"));
+        Assert.assertEquals(3, steps.size());
+
+        for (String broken : new String[]{ "loop 2\nsend x\n", "end\n", "repeat x 0 y\n", "frobnicate\n" }) {
+            try {
+                ManagementSimulator.parse(new StringReader(broken));
+                Assert.fail(broken);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void replaysHoldAndPasswordSessions() throws Exception {
+        ManagementSimulator.Result hold = mSimulator.run(ManagementSimulator.HOLD);
+        Assert.assertEquals(2, hold.roundTrips.getCount());
+
+        ManagementSimulator.Result password = mSimulator.run(ManagementSimulator.PASSWORD);
+        Assert.assertEquals(200, password.roundTrips.getCount());
+        Assert.assertTrue(mSimulator.getCommands().contains("username 'Auth' user"));
+        report("password", password, null);
+    }
+
+    @Test
+    public void sustainsLogStormsAndByteCounts() throws Exception {
+        try (ManagementSimulator.EventProbe probe = new ManagementSimulator.EventProbe()) {
+            ManagementSimulator.Result logs = mSimulator.run(ManagementSimulator.LOG_STORM);
+            Assert.assertTrue(probe.await(logs.linesSent, 30000));
+            report("log storm", logs, probe);
+        }
+
+        try (ManagementSimulator.EventProbe probe = new ManagementSimulator.EventProbe()) {
+            ManagementSimulator.Result states = mSimulator.run(ManagementSimulator.STATE_CHANGES);
+            Assert.assertTrue(probe.await(states.linesSent, 30000));
+            report("state", states, probe);
+        }
+
+        try (ManagementSimulator.EventProbe probe = new ManagementSimulator.EventProbe()) {
+            ManagementSimulator.Result bytecount = mSimulator.run(ManagementSimulator.BYTECOUNT_100HZ);
+            Assert.assertTrue(probe.await(bytecount.linesSent, 30000));
+            // 限速发送, 每一行都应该及时处理
+            Assert.assertEquals(0, probe.getLost());
+            report("bytecount 100Hz", bytecount, probe);
+        }
+    }
+
+    private static void report(String name, ManagementSimulator.Result result, ManagementSimulator.EventProbe probe) {
+        StringBuilder builder = new StringBuilder(String.format(Locale.US, "%-16s %7d lines %10.0f lines/s sent",
+            name, result.linesSent, result.getLinesPerSecond()));
+
+        LatencyHistogram latency = result.roundTrips;
+        if (probe != null) {
+            // 管理线程处理完最后一行的时间
+            long elapsed = probe.getLastTime() - result.startTime;
+            builder.append(String.format(Locale.US, " %10.0f lines/s processed (%d lost)",
+                (probe.getCount() + probe.getLost()) * 1e9 / Math.max(1, elapsed), probe.getLost()));
+            latency = probe.getLatency();
+        }
+        builder.append(String.format(Locale.US, "  p50 %.2f ms p99 %.2f ms max %.2f ms",
+            latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0, latency.getMax() / 1000.0));
+        System.out.println(builder);
+    }
+
+}
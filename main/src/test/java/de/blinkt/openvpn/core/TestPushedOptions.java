@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class TestPushedOptions {
+
+    @Test
+    public void parsesPushReply() {
+        PushedOptions options = PushedOptions.parse("PUSH_REPLY,route 192.168.1.0 255.255.255.0,route-ipv6 fd00::/64,"
+            + "dhcp-option DNS 10.8.0.1,dhcp-option DOMAIN example.com,route-gateway 10.8.0.1,topology subnet,"
+            + "ping 10,ping-restart 120,ifconfig-ipv6 fd00::1000/64 fd00::1,ifconfig 10.8.0.2 255.255.255.0,"
+            + "peer-id 3,cipher AES-256-GCM,  redirect-gateway  def1 ,,block-outside-dns");
+
+        Assert.assertEquals(Arrays.asList("192.168.1.0 255.255.255.0"), options.getRoutes());
+        Assert.assertEquals(Arrays.asList("fd00::/64"), options.getRoutesIPv6());
+        Assert.assertEquals(Arrays.asList("DNS 10.8.0.1", "DOMAIN example.com"), options.getDhcpOptions());
+        Assert.assertEquals(Arrays.asList("redirect-gateway  def1", "block-outside-dns"), options.getOtherOptions());
+        Assert.assertEquals("10.8.0.1", options.getRouteGateway());
+        Assert.assertEquals("subnet", options.getTopology());
+        Assert.assertEquals(10, options.getPing());
+        Assert.assertEquals(120, options.getPingRestart());
+        Assert.assertEquals("10.8.0.2 255.255.255.0", options.getIfconfig());
+        Assert.assertEquals("fd00::1000/64 fd00::1", options.getIfconfigIPv6());
+        Assert.assertEquals(3, options.getPeerId());
+        Assert.assertEquals("AES-256-GCM", options.getCipher());
+        Assert.assertEquals(14, options.getOptionCount());
+        Assert.assertEquals(1, options.getMessageCount());
+
+        PushedOptions empty = PushedOptions.parse("PUSH_REPLY");
+        Assert.assertEquals(0, empty.getOptionCount());
+        Assert.assertEquals(-1, empty.getPeerId());
+        Assert.assertNull(empty.getRouteGateway());
+    }
+
+    @Test
+    public void accumulatesContinuations() {
+        PushedOptions.Builder builder = new PushedOptions.Builder();
+        StringBuilder message = new StringBuilder("PUSH_REPLY");
+        int total = 0;
+        for (int i = 0; i < 3000; ++i) {
+            message.append(",route 10.").append(i / 256).append('.').append(i % 256).append(".0 255.255.255.0");
+            if (i % 1000 == 999) {
+                message.append(i == 2999 ? ",push-continuation 1" : ",push-continuation 2");
+                total += message.length();
+                Assert.assertEquals(i == 2999, builder.add(message.toString()));
+                message.setLength(0);
+                message.append("PUSH_REPLY");
+            }
+        }
+
+        PushedOptions options = builder.build();
+        Assert.assertEquals(3000, options.getRoutes().size());
+        Assert.assertEquals("10.11.183.0 255.255.255.0", options.getRoutes().get(2999));
+        Assert.assertEquals(3000, options.getOptionCount());
+        Assert.assertEquals(3, options.getMessageCount());
+        Assert.assertEquals(total, options.getLength());
+        try {
+            options.getRoutes().add("x");
+            Assert.fail("routes must be immutable");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void restartDropsPartialPushReply() {
+        OpenVPNThread thread = new OpenVPNThread("test", null, new String[0], "", new File("."));
+        ConsoleLineClassifier classifier = new ConsoleLineClassifier();
+        String[] lines = {
+            "PUSH: Received control message: 'PUSH_REPLY,route 10.0.0.0 255.255.255.0,push-continuation 2'",
+            "SIGUSR1[soft,ping-restart] received, process restarting",
+            "PUSH: Received control message: 'PUSH_REPLY,route 10.1.0.0 255.255.255.0,push-continuation 1'",
+        };
+        for (String line : lines)
+            thread.processTunnelInfo(line, classifier.classify(line));
+
+        PushedOptions options;
+        synchronized (VpnStatus.STATUS_LOCK) {
+            options = VpnStatus.LAST_VPN_TUNNEL.getPushedOptions();
+        }
+        Assert.assertEquals(Arrays.asList("10.1.0.0 255.255.255.0"), options.getRoutes());
+        Assert.assertEquals(1, options.getMessageCount());
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class TestSegmentedLogStore {
+
+    private static final int APP_VERSION = 7;
+    private static final long SEGMENT_SIZE = 4 * 1024;
+    private static final long MAX_SIZE = 16 * 1024;
+
+    // 压缩任务在调用线程中立即执行
+    private static final Executor DIRECT = Runnable::run;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("logstore").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    private static List<LogItem> items(int from, int to) {
+        List<LogItem> items = new ArrayList<>();
+        for (int i = from; i < to; ++i) {
+            items.add(new LogItem(LogSource.OPENVPN_CONSOLE, LogLevel.INFO,
+                "MANAGEMENT: >STATE:" + i + ",GET_CONFIG,,,,,,", 1600000000000L + i));
+        }
+        return items;
+    }
+
+    private List<String> fileNames() {
+        List<String> names = new ArrayList<>();
+        for (File file : mDir.listFiles()) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testRollCompressAndLimit() throws IOException {
+        SegmentedLogStore store = new SegmentedLogStore(mDir, APP_VERSION, SEGMENT_SIZE, MAX_SIZE, DIRECT);
+        List<LogItem> items = items(0, 5000);
+        for (LogItem item : items) {
+            store.append(item);
+        }
+        store.flush();
+
+        // 写满的段都已压缩, 只有当前段没有压缩
+        int uncompressed = 0;
+        for (String name : fileNames()) {
+            Assert.assertTrue(name, name.endsWith(SegmentedLogStore.SEGMENT_SUFFIX)
+                || name.endsWith(SegmentedLogStore.COMPRESSED_SUFFIX));
+            if (name.endsWith(SegmentedLogStore.SEGMENT_SUFFIX))
+                ++uncompressed;
+        }
+        Assert.assertEquals(1, uncompressed);
+        Assert.assertTrue(store.getTotalSize() <= MAX_SIZE + SEGMENT_SIZE);
+
+        // 最旧的段已被删除, 保留的是连续的最新日志
+        List<LogItem> read = store.readLast(Integer.MAX_VALUE);
+        Assert.assertTrue(read.size() < items.size());
+        Assert.assertEquals(items.subList(items.size() - read.size(), items.size()), read);
+        Assert.assertEquals(items.subList(items.size() - 100, items.size()), store.readLast(100));
+
+        store.clear();
+        Assert.assertEquals(0, store.getSegmentCount());
+        Assert.assertTrue(fileNames().isEmpty());
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        SegmentedLogStore store = new SegmentedLogStore(mDir, APP_VERSION, SEGMENT_SIZE, MAX_SIZE, DIRECT);
+        for (LogItem item : items(0, 300)) {
+            store.append(item);
+        }
+        store.close();
+
+        // 上次的段都不再追加, 没有压缩的段在打开时压缩; 压缩了一半的临时文件删除
+        Assert.assertTrue(new File(mDir, "00000099-0.seg.gz.tmp").createNewFile());
+        store = new SegmentedLogStore(mDir, APP_VERSION, SEGMENT_SIZE, MAX_SIZE, DIRECT);
+        // 上次的当前段压缩时建立索引: 序号-最早时间-最晚时间-索引位
+        for (String name : fileNames()) {
+            Assert.assertTrue(name, name.endsWith(SegmentedLogStore.COMPRESSED_SUFFIX));
+            Assert.assertEquals(name, 4, name.split("-").length);
+        }
+
+        for (LogItem item : items(300, 400)) {
+            store.append(item);
+        }
+        store.flush();
+        Assert.assertEquals(items(0, 400), store.readLast(1000));
+    }
+
+    @Test
+    public void testQuery() throws IOException {
+        SegmentedLogStore store = new SegmentedLogStore(mDir, APP_VERSION, SEGMENT_SIZE, 1024 * 1024, DIRECT);
+        LogSource[] sources = LogSource.values();
+        LogLevel[] levels = LogLevel.values();
+        List<LogItem> items = new ArrayList<>();
+        for (int i = 0; i < 3000; ++i) {
+            // 错误日志只出现在一小段时间内, 其他段按索引跳过
+            LogLevel level = i >= 2000 && i < 2010 ? LogLevel.ERROR : levels[1 + i % 4];
+            LogItem item = new LogItem(sources[i % 3], level, "line " + i + (i % 7 == 0 ? " Inactivity timeout" : ""),
+                1600000000000L + i * 1000L);
+            items.add(item);
+            store.append(item);
+        }
+        store.flush();
+
+        LogQuery[] queries = {
+            new LogQuery.Builder().setMinLevel(LogLevel.ERROR).build(),
+            new LogQuery.Builder().setText("inactivity TIMEOUT").addSource(LogSource.OPENVPN_CONSOLE)
+                .setTimeRange(1600000500000L, 1600001500000L).build(),
+            new LogQuery.Builder().setMinLevel(LogLevel.WARNING).setLimit(20).build(),
+            new LogQuery.Builder().setText("no such line").build(),
+        };
+
+        for (LogQuery query : queries) {
+            List<LogItem> expected = new ArrayList<>();
+            for (LogItem item : items) {
+                if (query.matches(item, null))
+                    expected.add(item);
+            }
+            if (expected.size() > query.getLimit())
+                expected = expected.subList(expected.size() - query.getLimit(), expected.size());
+            Assert.assertEquals(expected, store.query(query, null));
+        }
+
+        Assert.assertEquals(10, store.query(queries[0], null).size());
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2020 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestTrafficHistory {
+
+    @Test
+    public void ringWrapsGrowsAndExpires() {
+        TrafficRing ring = new TrafficRing(4);
+        for (int i = 0; i < 3; ++i)
+            ring.add(i * 1000, i, 10 * i);
+        ring.expire(3000, 1000, 2);
+        Assert.assertEquals(1, ring.size());
+        Assert.assertEquals(2, ring.in(0));
+
+        // head is now at slot 2, adding six more wraps and then grows
+        for (int i = 3; i < 9; ++i)
+            ring.add(i * 1000, i, 10 * i);
+        Assert.assertEquals(7, ring.size());
+        for (int i = 0; i < ring.size(); ++i) {
+            Assert.assertEquals((i + 2) * 1000, ring.timestamp(i));
+            Assert.assertEquals(i + 2, ring.in(i));
+            Assert.assertEquals(10 * (i + 2), ring.out(i));
+        }
+        Assert.assertEquals(7, ring.toList().size());
+
+        // copies the wrapped contents in order
+        TrafficRing copy = new TrafficRing(2);
+        copy.copyFrom(ring);
+        Assert.assertEquals(7, copy.size());
+        for (int i = 0; i < copy.size(); ++i)
+            Assert.assertEquals(ring.timestamp(i), copy.timestamp(i));
+    }
+
+    @Test
+    public void addReportsDiffsWithoutAllocating() {
+        TrafficHistory history = new TrafficHistory();
+        history.add(1000, 2000);
+        Assert.assertEquals(1000, history.getLastDiffIn());
+        Assert.assertEquals(2000, history.getLastDiffOut());
+
+        history.add(1500, 2100);
+        Assert.assertEquals(1500, history.getLastIn());
+        Assert.assertEquals(500, history.getLastDiffIn());
+        Assert.assertEquals(100, history.getLastDiffOut());
+
+        // counters restart after a reconnect, diffs never go negative
+        history.add(10, 20);
+        Assert.assertEquals(0, history.getLastDiffIn());
+        Assert.assertEquals(0, history.getLastDiffOut());
+
+        TrafficHistory copy = new TrafficHistory();
+        copy.copyFrom(history);
+        Assert.assertEquals(3, copy.getSeconds().size());
+        Assert.assertEquals(10, copy.getLastIn());
+
+        // stay below the ring capacity, samples are only expired on minute boundaries
+        TrafficHistory fresh = new TrafficHistory();
+        fresh.add(0, 0);
+        int samples = TrafficRing.DEFAULT_CAPACITY / 2;
+        long bytes = TestLineFramer.allocatedBytes();
+        for (int i = 1; i <= samples; ++i)
+            fresh.add(i * 1000L, i * 2000L);
+        bytes = TestLineFramer.allocatedBytes() - bytes;
+
+        // allow for a single minute rollover during the loop
+        Assert.assertTrue("allocated " + bytes + " bytes for " + samples + " samples", bytes < 1024);
+        Assert.assertEquals(1000, fresh.getLastDiffIn());
+    }
+
+}
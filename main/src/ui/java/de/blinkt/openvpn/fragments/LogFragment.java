@@ -393,10 +393,15 @@ public class LogFragment extends ListFragment implements VpnStatus.StatusListene
         private static final int MESSAGE_NEWTS = 2;
         private static final int MESSAGE_NEWLOGSOURCE = 3;
         private static final int MESSAGE_NEWLOGLEVEL = 4;
+        private static final int MESSAGE_NEWLOGS = 5;
 
         private static final int MAX_LOG_ENTRIES = 1000;
         private final LinkedList<LogItem> allLogBuffers = new LinkedList<>();
-        private final LinkedList<LogItem> currLogBuffers = new LinkedList<>();
+        // getView()按位置随机访问, 不要用LinkedList
+        private final ArrayList<LogItem> currLogBuffers = new ArrayList<>();
+        // 只在UI线程中使用
+        private java.text.DateFormat mIsoTimeFormat;
+        private java.text.DateFormat mShortTimeFormat;
 
         private final Handler mHandler;
         private final List<DataSetObserver> observers = new ArrayList<>();
@@ -415,9 +420,7 @@ public class LogFragment extends ListFragment implements VpnStatus.StatusListene
 
         private void initLogBuffer() {
             allLogBuffers.clear();
-            synchronized (VpnStatus.LOG_LOCK) {
-                allLogBuffers.addAll(VpnStatus.getLogBufferAll());
-            }
+            allLogBuffers.addAll(VpnStatus.getLogBufferAll());
             initCurrentLogBuffers();
         }
 
@@ -485,11 +488,17 @@ public class LogFragment extends ListFragment implements VpnStatus.StatusListene
 
         private String getTime(LogItem item, int time) {
             if (time != TIME_FORMAT_NONE) {
+                // 滚动时每行都要格式化时间, 不要每次创建DateFormat
                 java.text.DateFormat timeformat;
-                if (time == TIME_FORMAT_ISO)
-                    timeformat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-                else
-                    timeformat = android.text.format.DateFormat.getTimeFormat(getActivity());
+                if (time == TIME_FORMAT_ISO) {
+                    if (mIsoTimeFormat == null)
+                        mIsoTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+                    timeformat = mIsoTimeFormat;
+                } else {
+                    if (mShortTimeFormat == null)
+                        mShortTimeFormat = android.text.format.DateFormat.getTimeFormat(getActivity());
+                    timeformat = mShortTimeFormat;
+                }
                 return timeformat.format(new Date(item.getLogtime())) + " ";
             } else {
                 return "";
@@ -532,6 +541,17 @@ public class LogFragment extends ListFragment implements VpnStatus.StatusListene
             mHandler.sendMessage(msg);
         }
 
+        @Override
+        public void newLogs(List<LogItem> logItems) {
+            Message msg = Message.obtain();
+            assert (msg != null);
+            msg.what = MESSAGE_NEWLOGS;
+            Bundle bundle = new Bundle();
+            bundle.putParcelableArrayList("log_messages", new ArrayList<>(logItems));
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
+
         @Override
         public boolean handleMessage(Message msg) {
             // We have been called
@@ -543,6 +563,19 @@ public class LogFragment extends ListFragment implements VpnStatus.StatusListene
                     }
                 }
 
+            } else if (msg.what == MESSAGE_NEWLOGS) {
+                // 一批日志只通知一次
+                ArrayList<LogItem> logItems = msg.getData().getParcelableArrayList("log_messages");
+                boolean changed = false;
+                for (LogItem logItem : logItems) {
+                    changed |= addLogItem(logItem);
+                }
+                if (changed) {
+                    for (DataSetObserver observer : observers) {
+                        observer.onChanged();
+                    }
+                }
+
             } else if (msg.what == MESSAGE_CLEARLOG) {
                 for (DataSetObserver observer : observers) {
                     observer.onInvalidated();
@@ -550,6 +583,7 @@ public class LogFragment extends ListFragment implements VpnStatus.StatusListene
                 initLogBuffer();
 
             } else if (msg.what == MESSAGE_NEWTS) {
+                mShortTimeFormat = null;
                 for (DataSetObserver observer : observers) {
                     observer.onInvalidated();
                 }
@@ -586,8 +620,9 @@ public class LogFragment extends ListFragment implements VpnStatus.StatusListene
             allLogBuffers.add(logItem);
 
             if (allLogBuffers.size() > MAX_LOG_ENTRIES) {
-                while (allLogBuffers.size() < (MAX_LOG_ENTRIES - 50)) {
-                    allLogBuffers.remove(0);
+                // 一次多删50条, 不必每条新日志都重建currLogBuffers
+                while (allLogBuffers.size() > (MAX_LOG_ENTRIES - 50)) {
+                    allLogBuffers.removeFirst();
                 }
                 initCurrentLogBuffers();
                 return true;
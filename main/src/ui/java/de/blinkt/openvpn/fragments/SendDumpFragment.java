@@ -28,6 +28,7 @@ import java.util.Date;
 
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.utils.ActivityUtils;
+import de.blinkt.openvpn.utils.OpenVPNUtils;
 
 public class SendDumpFragment extends Fragment {
 
@@ -83,6 +84,8 @@ public class SendDumpFragment extends Fragment {
         Pair<File, Long> newestDump = getLastestDump(getActivity());
         if (newestDump == null) {
             VpnStatus.logError("No Minidump found!");
+            // 没有minidump时仍然可以分享日志等诊断信息
+            OpenVPNUtils.shareDiagnostics(getActivity());
             return;
         }
 
@@ -110,6 +113,7 @@ public class SendDumpFragment extends Fragment {
         ArrayList<Uri> uris = new ArrayList<>();
         uris.add(Uri.parse("content://" + authority + "/" + newestDump.first.getName()));
         uris.add(Uri.parse("content://" + authority + "/" + newestDump.first.getName() + ".log"));
+        uris.add(OpenVPNUtils.newDiagnosticsUri(getActivity()));
 
         emailIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         emailIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);